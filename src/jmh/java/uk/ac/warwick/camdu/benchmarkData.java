@@ -0,0 +1,187 @@
+package uk.ac.warwick.camdu;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Calibration;
+import ij.process.ShortProcessor;
+
+import java.util.Random;
+
+
+/**
+ *
+ * benchmarkData - deterministic inputs for the benchmarks
+ *<p>
+ * Everything is generated from a fixed seed, so every run (and every JMH fork) benchmarks exactly the same pixels.
+ * Stacks are 16-bit with a calibration similar to our bead slides (0.1 um pixels, 0.2 um steps), beads are 3D
+ * Gaussians on a constant background with Gaussian noise.
+ *</p>
+ */
+class benchmarkData {
+
+    static final long SEED = 20190601L;
+
+    private static final double PIXEL_SIZE = 0.1;
+    private static final double Z_STEP = 0.2;
+    private static final double BACKGROUND = 100;
+    private static final double NOISE = 10;
+
+    private benchmarkData(){
+    }
+
+
+    /**
+     * Creates a stack with Gaussian beads at random positions (away from the borders).
+     * @param width width of the stack
+     * @param height height of the stack
+     * @param depth number of slices
+     * @param nBeads number of beads
+     * @param sigmaXY lateral standard deviation of the beads, in pixels
+     * @param sigmaZ axial standard deviation of the beads, in slices
+     * @param seed seed for bead positions, intensities and noise
+     * @return ImagePlus with the 16-bit stack
+     */
+    static ImagePlus beadStack(int width, int height, int depth, int nBeads, double sigmaXY, double sigmaZ, long seed){
+        Random random = new Random(seed);
+        double[] bx = new double[nBeads];
+        double[] by = new double[nBeads];
+        double[] bz = new double[nBeads];
+        double[] amp = new double[nBeads];
+        int margin = (int) Math.ceil(4 * sigmaXY);
+        int b;
+        for (b = 0; b < nBeads; b++){
+            bx[b] = margin + random.nextDouble() * Math.max(1, width - 2 * margin);
+            by[b] = margin + random.nextDouble() * Math.max(1, height - 2 * margin);
+            bz[b] = depth / 2.0 + (random.nextDouble() - 0.5) * depth / 4.0;
+            amp[b] = 2000 + random.nextDouble() * 8000;
+        }
+
+        ImageStack stack = new ImageStack(width, height);
+        int radius = (int) Math.ceil(4 * sigmaXY);
+        int x, y, z;
+        for (z = 0; z < depth; z++){
+            double[] plane = new double[width * height];
+            for (b = 0; b < nBeads; b++){
+                double gz = Math.exp(-(z - bz[b]) * (z - bz[b]) / (2 * sigmaZ * sigmaZ));
+                if (gz < 1e-4){
+                    continue;
+                }
+                int x0 = Math.max(0, (int) bx[b] - radius);
+                int x1 = Math.min(width - 1, (int) bx[b] + radius);
+                int y0 = Math.max(0, (int) by[b] - radius);
+                int y1 = Math.min(height - 1, (int) by[b] + radius);
+                for (y = y0; y <= y1; y++){
+                    double gy = Math.exp(-(y - by[b]) * (y - by[b]) / (2 * sigmaXY * sigmaXY));
+                    for (x = x0; x <= x1; x++){
+                        double gx = Math.exp(-(x - bx[b]) * (x - bx[b]) / (2 * sigmaXY * sigmaXY));
+                        plane[y * width + x] += amp[b] * gx * gy * gz;
+                    }
+                }
+            }
+            stack.addSlice(toShort(plane, width, height, random));
+        }
+
+        ImagePlus imp = new ImagePlus("beads", stack);
+        imp.setCalibration(calibration());
+        return imp;
+    }
+
+
+    /**
+     * Creates a stack with a single Gaussian bead in the middle, like the crops handed to PSFprofiler.
+     * @param size width and height of the crop
+     * @param depth number of slices
+     * @param seed seed for the noise
+     * @return ImagePlus with the 16-bit bead crop
+     */
+    static ImagePlus singleBead(int size, int depth, long seed){
+        Random random = new Random(seed);
+        double sigmaXY = 1.2;
+        double sigmaZ = 2.5;
+        double c = size / 2.0 + 0.3;
+        double cz = depth / 2.0 - 0.4;
+        ImageStack stack = new ImageStack(size, size);
+        int x, y, z;
+        for (z = 0; z < depth; z++){
+            double[] plane = new double[size * size];
+            double gz = Math.exp(-(z - cz) * (z - cz) / (2 * sigmaZ * sigmaZ));
+            for (y = 0; y < size; y++){
+                for (x = 0; x < size; x++){
+                    double r2 = (x - c) * (x - c) + (y - c) * (y - c);
+                    plane[y * size + x] = 8000 * gz * Math.exp(-r2 / (2 * sigmaXY * sigmaXY));
+                }
+            }
+            stack.addSlice(toShort(plane, size, size, random));
+        }
+        ImagePlus imp = new ImagePlus("bead", stack);
+        imp.setCalibration(calibration());
+        return imp;
+    }
+
+
+    /**
+     * Creates a 2D flat-field image with a smooth, off-centre fall-off, like a fluorescent slide.
+     * @param width width of the image
+     * @param height height of the image
+     * @param seed seed for the noise
+     * @return ImagePlus with the 16-bit image
+     */
+    static ImagePlus illumination(int width, int height, long seed){
+        Random random = new Random(seed);
+        double cx = width * 0.55;
+        double cy = height * 0.45;
+        double s = 0.6 * Math.max(width, height);
+        double[] plane = new double[width * height];
+        int x, y;
+        for (y = 0; y < height; y++){
+            for (x = 0; x < width; x++){
+                double r2 = (x - cx) * (x - cx) + (y - cy) * (y - cy);
+                plane[y * width + x] = 20000 * Math.exp(-r2 / (2 * s * s));
+            }
+        }
+        ImagePlus imp = new ImagePlus("field", toShort(plane, width, height, random));
+        imp.setCalibration(calibration());
+        return imp;
+    }
+
+
+    /**
+     * Creates maxima coordinates sorted as MaximumFinder would hand them to the bead selection (brightest first),
+     * on integer pixel positions.
+     * @param n number of maxima
+     * @param width width of the image
+     * @param height height of the image
+     * @param seed seed for the positions
+     * @return float[2][n] with x and y coordinates
+     */
+    static float[][] maxima(int n, int width, int height, long seed){
+        Random random = new Random(seed);
+        float[][] xy = new float[2][n];
+        int i;
+        for (i = 0; i < n; i++){
+            xy[0][i] = random.nextInt(width);
+            xy[1][i] = random.nextInt(height);
+        }
+        return xy;
+    }
+
+
+    private static ShortProcessor toShort(double[] plane, int width, int height, Random random){
+        short[] pixels = new short[width * height];
+        int i;
+        for (i = 0; i < pixels.length; i++){
+            double value = BACKGROUND + plane[i] + NOISE * random.nextGaussian();
+            pixels[i] = (short) Math.max(0, Math.min(65535, Math.round(value)));
+        }
+        return new ShortProcessor(width, height, pixels, null);
+    }
+
+    private static Calibration calibration(){
+        Calibration cal = new Calibration();
+        cal.pixelWidth = PIXEL_SIZE;
+        cal.pixelHeight = PIXEL_SIZE;
+        cal.pixelDepth = Z_STEP;
+        cal.setUnit("micron");
+        return cal;
+    }
+}
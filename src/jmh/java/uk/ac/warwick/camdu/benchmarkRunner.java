@@ -0,0 +1,47 @@
+package uk.ac.warwick.camdu;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+
+
+/**
+ *
+ * benchmarkRunner - runs the JMH benchmarks and writes the results as JSON
+ *<p>
+ * Used by the "benchmarks" Maven profile (mvn -Pbenchmarks test-compile exec:exec). Warmup, measurement and fork
+ * settings come from the annotations on the benchmark classes, and the inputs from fixed seeds, so results from
+ * different runs can be compared directly to spot regressions after a Fiji or dependency update.
+ *</p>
+ */
+public class benchmarkRunner {
+
+    /**
+     * @param args optional: path of the JSON output file (default: target/benchmarks/results.json), then a regular
+     *             expression selecting which benchmarks to run (default: all)
+     * @throws RunnerException if JMH fails
+     */
+    public static void main(String[] args) throws RunnerException {
+        String output = args.length > 0 ? args[0] : "target" + File.separator + "benchmarks" + File.separator
+                + "results.json";
+        String include = args.length > 1 ? args[1] : hotPathBenchmarks.class.getSimpleName();
+
+        File parent = new File(output).getAbsoluteFile().getParentFile();
+        if (parent != null && !parent.exists() && !parent.mkdirs()){
+            System.out.println("Could not create directory " + parent);
+        }
+
+        Options options = new OptionsBuilder()
+                .include(include)
+                .resultFormat(ResultFormatType.JSON)
+                .result(output)
+                .shouldFailOnError(true)
+                .build();
+        new Runner(options).run();
+        System.out.println("Benchmark results written to " + output);
+    }
+}
@@ -0,0 +1,163 @@
+package uk.ac.warwick.camdu;
+
+import ij.ImagePlus;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ *
+ * hotPathBenchmarks - JMH benchmarks for the routines that dominate the QC run time
+ *<p>
+ * Each nested State holds the inputs of one group of benchmarks, built once per fork from benchmarkData (fixed seeds),
+ * at the sizes we actually see: 20x20 bead crops for PSFprofiler and findMax, 35x35 crops for findCentre, the
+ * 300x300 central region for the segmentation and side views, full camera frames for fieldIllumination and
+ * thousands of maxima for the bead selection.
+ *</p>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Djava.awt.headless=true"})
+public class hotPathBenchmarks {
+
+    @State(Scope.Benchmark)
+    public static class beadCrop {
+        @Param({"32", "64", "128"})
+        public int depth;
+
+        ImagePlus psfCrop;
+        ImagePlus colocCrop;
+
+        @Setup(Level.Trial)
+        public void setup(){
+            psfCrop = benchmarkData.singleBead(20, depth, benchmarkData.SEED);
+            colocCrop = benchmarkData.singleBead(35, depth, benchmarkData.SEED + 1);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class region {
+        @Param({"32", "64", "128"})
+        public int depth;
+
+        ImagePlus stack;
+        HistogramSegmentation segmentation;
+
+        @Setup(Level.Trial)
+        public void setup(){
+            stack = benchmarkData.beadStack(300, 300, depth, 40, 1.5, 3.0, benchmarkData.SEED);
+            segmentation = new HistogramSegmentation(stack);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class field {
+        @Param({"512", "2048"})
+        public int size;
+
+        ImagePlus image;
+
+        @Setup(Level.Trial)
+        public void setup(){
+            image = benchmarkData.illumination(size, size, benchmarkData.SEED);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class candidates {
+        @Param({"1000", "10000"})
+        public int nMaxima;
+
+        float[][] xy;
+
+        @Setup(Level.Trial)
+        public void setup(){
+            xy = benchmarkData.maxima(nMaxima, 2048, 2048, benchmarkData.SEED);
+        }
+    }
+
+
+    @Benchmark
+    public double[] psfProfiler(beadCrop data){
+        return new PSFprofiler(data.psfCrop).getResolutions();
+    }
+
+    @Benchmark
+    public double[] psfProfilerSimplex(beadCrop data){
+        return new PSFprofiler(data.psfCrop, PSFprofiler.SIMPLEX_FIT).getResolutions();
+    }
+
+    @Benchmark
+    public int[] findMaxCoordinates(beadCrop data){
+        return new findMax().getAllCoordinates(data.psfCrop);
+    }
+
+    @Benchmark
+    public double[] findCentreCoordinates(beadCrop data){
+        return new findCentre().getAllCoordinates(data.colocCrop);
+    }
+
+    @Benchmark
+    public double[] findCentreEllipse(beadCrop data){
+        return new findCentre(findCentre.ELLIPSE_METHOD).getAllCoordinates(data.colocCrop);
+    }
+
+    @Benchmark
+    public double[] findCentreEllipseOtsu(beadCrop data){
+        return new findCentre(findCentre.ELLIPSE_OTSU_METHOD).getAllCoordinates(data.colocCrop);
+    }
+
+    @Benchmark
+    public Object histogramConstructor(region data){
+        return new HistogramSegmentation(data.stack);
+    }
+
+    @Benchmark
+    public int[] histogramCalcLimits(region data){
+        return data.segmentation.calcLimits(2, 100, 0, true);
+    }
+
+    @Benchmark
+    public int[] histogramCalcLimitsOtsu(region data){
+        return data.segmentation.calcLimitsOtsu(2);
+    }
+
+    @Benchmark
+    public ImagePlus sideViewXZ(region data){
+        return new sideViewGenerator().getXZview(data.stack, sideViewGenerator.MAX_METHOD, true);
+    }
+
+    @Benchmark
+    public ImagePlus sideViewYZ(region data){
+        return new sideViewGenerator().getYZview(data.stack, sideViewGenerator.MAX_METHOD, true);
+    }
+
+    @Benchmark
+    public Object fieldIlluminationConstructor(field data){
+        return new fieldIllumination(data.image);
+    }
+
+    @Benchmark
+    public Object fieldIlluminationGrid(field data){
+        return new fieldIllumination(data.image, 64).getResult();
+    }
+
+    @Benchmark
+    public int[] beadSelection(candidates data){
+        return new beadSelector(data.xy[0], data.xy[1], 15).select(Integer.MAX_VALUE);
+    }
+}
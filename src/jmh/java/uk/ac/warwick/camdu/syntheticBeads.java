@@ -0,0 +1,564 @@
+package uk.ac.warwick.camdu;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Calibration;
+import ij.process.ShortProcessor;
+import loci.common.DataTools;
+import loci.common.services.DependencyException;
+import loci.common.services.ServiceException;
+import loci.common.services.ServiceFactory;
+import loci.formats.FormatException;
+import loci.formats.FormatTools;
+import loci.formats.MetadataTools;
+import loci.formats.meta.IMetadata;
+import loci.formats.out.OMETiffWriter;
+import loci.formats.services.OMEXMLService;
+import net.imglib2.img.planar.PlanarImg;
+import net.imglib2.img.planar.PlanarImgs;
+import net.imglib2.img.basictypeaccess.array.ShortArray;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import ome.units.UNITS;
+import ome.units.quantity.Length;
+
+import java.io.IOException;
+import java.util.Random;
+
+
+/**
+ *
+ * syntheticBeads - generates bead images with a known ground truth
+ *<p>
+ * Builds calibrated 16-bit images (X, Y, channels, Z, time) with sub-resolution beads at known positions, to feed
+ * autoPSF, autoColoc and autoStageRepro (or PSFprofiler and coAlignement directly) and compare what they measure with
+ * what was put in:
+ *</p>
+ *<ul>
+ *  <li>the PSF is either a 3D Gaussian with a chosen FWHM, or the paraxial Born &amp; Wolf model for a given
+ *  wavelength, NA and refractive index (lateral FWHM 0.5145 lambda/NA, axial FWHM 0.8859 lambda n/NA^2);</li>
+ *  <li>each channel can be shifted by a known chromatic offset;</li>
+ *  <li>each time point is shifted by a known, random stage jitter;</li>
+ *  <li>photons are Poisson distributed, then converted to grey levels with a gain, an offset and Gaussian read
+ *  noise.</li>
+ *</ul>
+ *<p>
+ * Planes are rendered one at a time and only the pixels near each bead are computed, so images from 256x256 up to
+ * 4096x4096 with a few hundred planes can be written to OME-TIFF plane by plane (writeOMETiff) without holding the
+ * whole image in memory. Smaller images can also be rendered straight into an ImagePlus or an imglib2 Img. Every plane
+ * uses its own random generator seeded from the global seed and the plane position, so the same settings always give
+ * the same pixels, whichever planes are rendered and in whichever order.
+ *</p>
+ */
+class syntheticBeads {
+
+    static final int GAUSSIAN = 0;
+    static final int BORN_WOLF = 1;
+
+    private static final double FWHM_TO_SIGMA = 1.0 / (2.0 * Math.sqrt(2.0 * Math.log(2.0)));
+    // the PSF is computed out to this many FWHMs from the bead centre
+    private static final double EXTENT = 2.5;
+    private static final int QUADRATURE_POINTS = 64;
+    private static final int TABLE_OVERSAMPLING = 8;
+
+    private final int width;
+    private final int height;
+    private final int depth;
+    private final int channels;
+    private final int frames;
+
+    private double pixelSize = 0.1;
+    private double zStep = 0.2;
+
+    private int model = GAUSSIAN;
+    private double fwhmXY = 0.25;
+    private double fwhmZ = 0.7;
+    private double wavelength = 0.52;
+    private double NA = 1.4;
+    private double refractiveIndex = 1.518;
+
+    private int nBeads = 20;
+    private double photons = 5000;
+    private double background = 20;
+    private double gain = 1.0;
+    private double offset = 100;
+    private double readNoise = 2.0;
+
+    private final double[][] chromaticOffsets;
+    private double jitterSigma = 0;
+    private long seed = 1;
+
+    private double[][] beads = null;
+    private double[][] jitter = null;
+
+
+    /**
+     * @param width width of the image in pixels
+     * @param height height of the image in pixels
+     * @param depth number of Z planes
+     * @param channels number of channels
+     * @param frames number of time points
+     */
+    syntheticBeads(int width, int height, int depth, int channels, int frames){
+        if (width < 1 || height < 1 || depth < 1 || channels < 1 || frames < 1){
+            throw new IllegalArgumentException("Image dimensions must be at least 1");
+        }
+        this.width = width;
+        this.height = height;
+        this.depth = depth;
+        this.channels = channels;
+        this.frames = frames;
+        chromaticOffsets = new double[channels][3];
+    }
+
+
+    /**
+     * @param pixelSize lateral pixel size in microns
+     * @param zStep distance between Z planes in microns
+     */
+    void setSampling(double pixelSize, double zStep){
+        this.pixelSize = pixelSize;
+        this.zStep = zStep;
+        reset();
+    }
+
+    /**
+     * Uses a 3D Gaussian PSF.
+     * @param fwhmXY lateral FWHM in microns
+     * @param fwhmZ axial FWHM in microns
+     */
+    void setGaussianPSF(double fwhmXY, double fwhmZ){
+        model = GAUSSIAN;
+        this.fwhmXY = fwhmXY;
+        this.fwhmZ = fwhmZ;
+        reset();
+    }
+
+    /**
+     * Uses the paraxial Born &amp; Wolf PSF.
+     * @param wavelength emission wavelength in microns
+     * @param NA numerical aperture of the objective
+     * @param refractiveIndex refractive index of the immersion medium
+     */
+    void setBornWolfPSF(double wavelength, double NA, double refractiveIndex){
+        if (NA <= 0 || NA >= refractiveIndex){
+            throw new IllegalArgumentException("NA must be between 0 and the refractive index");
+        }
+        model = BORN_WOLF;
+        this.wavelength = wavelength;
+        this.NA = NA;
+        this.refractiveIndex = refractiveIndex;
+        fwhmXY = 0.5145 * wavelength / NA;
+        fwhmZ = 0.8859 * wavelength * refractiveIndex / (NA * NA);
+        reset();
+    }
+
+    /**
+     * @param nBeads number of beads
+     * @param photons number of photons collected from each bead (peak of the Gaussian PSF, or the Born &amp; Wolf
+     *                focus)
+     */
+    void setBeads(int nBeads, double photons){
+        this.nBeads = nBeads;
+        this.photons = photons;
+        reset();
+    }
+
+    /**
+     * @param background background photons per pixel
+     * @param gain grey levels per photon
+     * @param offset camera offset in grey levels
+     * @param readNoise standard deviation of the read noise, in grey levels
+     */
+    void setNoise(double background, double gain, double offset, double readNoise){
+        this.background = background;
+        this.gain = gain;
+        this.offset = offset;
+        this.readNoise = readNoise;
+    }
+
+    /**
+     * @param channel channel index, starting at 0
+     * @param dx shift along X in microns
+     * @param dy shift along Y in microns
+     * @param dz shift along Z in microns
+     */
+    void setChromaticOffset(int channel, double dx, double dy, double dz){
+        chromaticOffsets[channel] = new double[]{dx, dy, dz};
+    }
+
+    /**
+     * @param sigma standard deviation (in microns, on each axis) of the random stage shift of each time point
+     */
+    void setStageJitter(double sigma){
+        jitterSigma = sigma;
+        reset();
+    }
+
+    /**
+     * @param seed seed for bead positions, stage jitter and noise
+     */
+    void setSeed(long seed){
+        this.seed = seed;
+        reset();
+    }
+
+    private void reset(){
+        beads = null;
+        jitter = null;
+    }
+
+
+    /**
+     * @return double[] with the X, Y and Z FWHM of the PSF, in microns
+     */
+    double[] getFwhm(){
+        return new double[]{fwhmXY, fwhmXY, fwhmZ};
+    }
+
+    /**
+     * @return double[nBeads][3] with the X, Y, Z positions of the beads in microns (channel 0, no jitter), with the
+     * ImageJ convention that pixel i covers [i, i+1) times the pixel size
+     */
+    double[][] getBeadPositions(){
+        placeBeads();
+        double[][] copy = new double[beads.length][];
+        int b;
+        for (b = 0; b < beads.length; b++){
+            copy[b] = beads[b].clone();
+        }
+        return copy;
+    }
+
+    /**
+     * @param channel channel index, starting at 0
+     * @return double[] with the X, Y, Z chromatic offset of the channel in microns
+     */
+    double[] getChromaticOffset(int channel){
+        return chromaticOffsets[channel].clone();
+    }
+
+    /**
+     * @return double[frames][3] with the X, Y, Z stage shift of each time point in microns
+     */
+    double[][] getStageJitter(){
+        placeBeads();
+        double[][] copy = new double[frames][];
+        int t;
+        for (t = 0; t < frames; t++){
+            copy[t] = jitter[t].clone();
+        }
+        return copy;
+    }
+
+    /**
+     * @return Calibration with the pixel sizes, in microns
+     */
+    Calibration getCalibration(){
+        Calibration cal = new Calibration();
+        cal.pixelWidth = pixelSize;
+        cal.pixelHeight = pixelSize;
+        cal.pixelDepth = zStep;
+        cal.setUnit("micron");
+        return cal;
+    }
+
+
+    /**
+     * Places the beads at random, at least 4 FWHM from each other (when there is room) and far enough from the
+     * borders for their PSF to fit, and draws the stage jitter of every time point.
+     */
+    private synchronized void placeBeads(){
+        if (beads != null){
+            return;
+        }
+        Random random = new Random(seed);
+        double margin = EXTENT * fwhmXY + 3 * jitterSigma;
+        double sizeX = width * pixelSize;
+        double sizeY = height * pixelSize;
+        double sizeZ = depth * zStep;
+        double minDistSq = Math.pow(4 * fwhmXY, 2);
+        double[][] placed = new double[nBeads][];
+        int b, k;
+        for (b = 0; b < nBeads; b++){
+            double[] candidate = null;
+            for (int attempt = 0; attempt < 1000 && candidate == null; attempt++){
+                candidate = new double[]{
+                        margin + random.nextDouble() * Math.max(0, sizeX - 2 * margin),
+                        margin + random.nextDouble() * Math.max(0, sizeY - 2 * margin),
+                        sizeZ / 2 + (random.nextDouble() - 0.5) * sizeZ / 4};
+                for (k = 0; k < b; k++){
+                    double dx = placed[k][0] - candidate[0];
+                    double dy = placed[k][1] - candidate[1];
+                    if (dx * dx + dy * dy < minDistSq){
+                        candidate = null;
+                        break;
+                    }
+                }
+            }
+            if (candidate == null){
+                // crowded image: accept overlapping beads rather than fewer beads
+                candidate = new double[]{margin + random.nextDouble() * Math.max(0, sizeX - 2 * margin),
+                        margin + random.nextDouble() * Math.max(0, sizeY - 2 * margin), sizeZ / 2};
+            }
+            placed[b] = candidate;
+        }
+        double[][] shifts = new double[frames][3];
+        int t;
+        for (t = 0; t < frames; t++){
+            for (k = 0; k < 3; k++){
+                shifts[t][k] = jitterSigma * random.nextGaussian();
+            }
+        }
+        jitter = shifts;
+        beads = placed;
+    }
+
+
+    /**
+     * Renders one plane.
+     * @param c channel index, starting at 0
+     * @param z Z index, starting at 0
+     * @param t time index, starting at 0
+     * @return short[] with the 16-bit pixels of the plane, row by row
+     */
+    short[] renderPlane(int c, int z, int t){
+        placeBeads();
+        double[] expected = new double[width * height];
+        double zPos = (z + 0.5) * zStep;
+        double radius = EXTENT * fwhmXY;
+        int b;
+        for (b = 0; b < beads.length; b++){
+            double bx = beads[b][0] + chromaticOffsets[c][0] + jitter[t][0];
+            double by = beads[b][1] + chromaticOffsets[c][1] + jitter[t][1];
+            double bz = beads[b][2] + chromaticOffsets[c][2] + jitter[t][2];
+            double dz = zPos - bz;
+            if (Math.abs(dz) > EXTENT * fwhmZ * (model == BORN_WOLF ? 2 : 1)){
+                continue;
+            }
+            int x0 = Math.max(0, (int) Math.floor((bx - radius) / pixelSize));
+            int x1 = Math.min(width - 1, (int) Math.ceil((bx + radius) / pixelSize));
+            int y0 = Math.max(0, (int) Math.floor((by - radius) / pixelSize));
+            int y1 = Math.min(height - 1, (int) Math.ceil((by + radius) / pixelSize));
+            if (model == GAUSSIAN){
+                addGaussian(expected, bx, by, dz, x0, x1, y0, y1);
+            } else {
+                addBornWolf(expected, bx, by, dz, x0, x1, y0, y1, radius);
+            }
+        }
+
+        Random random = new Random(seed ^ (0x9E3779B97F4A7C15L * (((long) t * depth + z) * channels + c + 1)));
+        short[] pixels = new short[width * height];
+        int i;
+        for (i = 0; i < pixels.length; i++){
+            double value = offset + gain * poisson(background + expected[i], random) + readNoise * random.nextGaussian();
+            pixels[i] = (short) Math.max(0, Math.min(65535, Math.round(value)));
+        }
+        return pixels;
+    }
+
+    private void addGaussian(double[] expected, double bx, double by, double dz, int x0, int x1, int y0, int y1){
+        double sxy = fwhmXY * FWHM_TO_SIGMA;
+        double sz = fwhmZ * FWHM_TO_SIGMA;
+        double amplitude = photons * Math.exp(-dz * dz / (2 * sz * sz));
+        double[] gx = new double[x1 - x0 + 1];
+        int x, y;
+        for (x = x0; x <= x1; x++){
+            double d = (x + 0.5) * pixelSize - bx;
+            gx[x - x0] = Math.exp(-d * d / (2 * sxy * sxy));
+        }
+        for (y = y0; y <= y1; y++){
+            double d = (y + 0.5) * pixelSize - by;
+            double gy = amplitude * Math.exp(-d * d / (2 * sxy * sxy));
+            int row = y * width;
+            for (x = x0; x <= x1; x++){
+                expected[row + x] += gy * gx[x - x0];
+            }
+        }
+    }
+
+    private void addBornWolf(double[] expected, double bx, double by, double dz, int x0, int x1, int y0, int y1,
+                             double radius){
+        // radial profile for this defocus, sampled finely and interpolated linearly
+        double step = pixelSize / TABLE_OVERSAMPLING;
+        int n = (int) Math.ceil(radius * Math.sqrt(2) / step) + 2;
+        double[] profile = new double[n];
+        int i;
+        for (i = 0; i < n; i++){
+            profile[i] = photons * bornWolf(i * step, dz);
+        }
+        int x, y;
+        for (y = y0; y <= y1; y++){
+            double ddy = (y + 0.5) * pixelSize - by;
+            int row = y * width;
+            for (x = x0; x <= x1; x++){
+                double ddx = (x + 0.5) * pixelSize - bx;
+                double pos = Math.sqrt(ddx * ddx + ddy * ddy) / step;
+                int k = (int) pos;
+                if (k >= n - 1){
+                    continue;
+                }
+                double f = pos - k;
+                expected[row + x] += profile[k] * (1 - f) + profile[k + 1] * f;
+            }
+        }
+    }
+
+
+    /**
+     * Paraxial Born &amp; Wolf intensity, normalised to 1 at the focus.
+     * @param r distance from the optical axis in microns
+     * @param z defocus in microns
+     * @return relative intensity
+     */
+    private double bornWolf(double r, double z){
+        double k = 2 * Math.PI / wavelength;
+        double v = k * NA * r;
+        double u = k * NA * NA * z / refractiveIndex;
+        // Simpson's rule on the integral of J0(v rho) exp(-i u rho^2 / 2) rho, rho from 0 to 1
+        double re = 0;
+        double im = 0;
+        int j;
+        for (j = 0; j <= QUADRATURE_POINTS; j++){
+            double rho = (double) j / QUADRATURE_POINTS;
+            double w = (j == 0 || j == QUADRATURE_POINTS) ? 1 : (j % 2 == 1 ? 4 : 2);
+            double a = besselJ0(v * rho) * rho * w;
+            double phase = -0.5 * u * rho * rho;
+            re += a * Math.cos(phase);
+            im += a * Math.sin(phase);
+        }
+        re /= 3.0 * QUADRATURE_POINTS;
+        im /= 3.0 * QUADRATURE_POINTS;
+        return 4 * (re * re + im * im);
+    }
+
+    /**
+     * Bessel function of the first kind, order 0 (rational approximations from Numerical Recipes, error below 1e-7).
+     * @param x argument
+     * @return J0(x)
+     */
+    private static double besselJ0(double x){
+        double ax = Math.abs(x);
+        if (ax < 8.0){
+            double y = x * x;
+            double ans1 = 57568490574.0 + y * (-13362590354.0 + y * (651619640.7
+                    + y * (-11214424.18 + y * (77392.33017 + y * (-184.9052456)))));
+            double ans2 = 57568490411.0 + y * (1029532985.0 + y * (9494680.718
+                    + y * (59272.64853 + y * (267.8532712 + y))));
+            return ans1 / ans2;
+        }
+        double z = 8.0 / ax;
+        double y = z * z;
+        double xx = ax - 0.785398164;
+        double ans1 = 1.0 + y * (-0.1098628627e-2 + y * (0.2734510407e-4
+                + y * (-0.2073370639e-5 + y * 0.2093887211e-6)));
+        double ans2 = -0.1562499995e-1 + y * (0.1430488765e-3
+                + y * (-0.6911147651e-5 + y * (0.7621095161e-6 - y * 0.934935152e-7)));
+        return Math.sqrt(0.636619772 / ax) * (Math.cos(xx) * ans1 - z * Math.sin(xx) * ans2);
+    }
+
+    /**
+     * Draws a Poisson distributed number (exact for small means, normal approximation for large ones).
+     * @param mean mean of the distribution
+     * @param random random generator
+     * @return number of photons
+     */
+    private static double poisson(double mean, Random random){
+        if (mean <= 0){
+            return 0;
+        }
+        if (mean > 50){
+            return Math.max(0, Math.round(mean + Math.sqrt(mean) * random.nextGaussian()));
+        }
+        double limit = Math.exp(-mean);
+        double p = random.nextDouble();
+        int count = 0;
+        while (p > limit){
+            p *= random.nextDouble();
+            count++;
+        }
+        return count;
+    }
+
+
+    /**
+     * Renders the whole image into an ImagePlus (a hyperstack if it has more than one channel, slice or frame).
+     * @return ImagePlus with the calibrated 16-bit image
+     */
+    ImagePlus toImagePlus(){
+        ImageStack stack = new ImageStack(width, height);
+        int c, z, t;
+        for (t = 0; t < frames; t++){
+            for (z = 0; z < depth; z++){
+                for (c = 0; c < channels; c++){
+                    stack.addSlice(new ShortProcessor(width, height, renderPlane(c, z, t), null));
+                }
+            }
+        }
+        ImagePlus imp = new ImagePlus("synthetic beads", stack);
+        imp.setDimensions(channels, depth, frames);
+        if (imp.getNDimensions() > 3){
+            imp.setOpenAsHyperStack(true);
+        }
+        imp.setCalibration(getCalibration());
+        return imp;
+    }
+
+    /**
+     * Renders the whole image into an imglib2 Img with dimensions X, Y, C, Z, T (always all five).
+     * @return PlanarImg with the 16-bit image
+     */
+    PlanarImg<UnsignedShortType, ShortArray> toImg(){
+        PlanarImg<UnsignedShortType, ShortArray> img = PlanarImgs.unsignedShorts(width, height, channels, depth,
+                frames);
+        int c, z, t;
+        for (t = 0; t < frames; t++){
+            for (z = 0; z < depth; z++){
+                for (c = 0; c < channels; c++){
+                    short[] plane = img.getPlane((t * depth + z) * channels + c).getCurrentStorageArray();
+                    System.arraycopy(renderPlane(c, z, t), 0, plane, 0, plane.length);
+                }
+            }
+        }
+        return img;
+    }
+
+
+    /**
+     * Writes the image as an OME-TIFF file, one plane at a time (BigTIFF when it is larger than 2 GB).
+     * @param path String with the path of the output file
+     * @throws FormatException if Bio-Formats can't write the file
+     * @throws IOException if the file can't be written or the OME-XML service is missing
+     */
+    void writeOMETiff(String path) throws FormatException, IOException {
+        IMetadata meta;
+        try {
+            OMEXMLService service = new ServiceFactory().getInstance(OMEXMLService.class);
+            meta = service.createOMEXMLMetadata();
+        } catch (DependencyException | ServiceException e) {
+            throw new IOException("Could not create OME-XML metadata", e);
+        }
+        MetadataTools.populateMetadata(meta, 0, "synthetic beads", false, "XYCZT",
+                FormatTools.getPixelTypeString(FormatTools.UINT16), width, height, depth, channels, frames, 1);
+        meta.setPixelsPhysicalSizeX(new Length(pixelSize, UNITS.MICROMETER), 0);
+        meta.setPixelsPhysicalSizeY(new Length(pixelSize, UNITS.MICROMETER), 0);
+        meta.setPixelsPhysicalSizeZ(new Length(zStep, UNITS.MICROMETER), 0);
+
+        OMETiffWriter writer = new OMETiffWriter();
+        try {
+            writer.setMetadataRetrieve(meta);
+            writer.setBigTiff(2L * width * height * depth * channels * frames > 2000000000L);
+            writer.setId(path);
+            int c, z, t;
+            for (t = 0; t < frames; t++){
+                for (z = 0; z < depth; z++){
+                    for (c = 0; c < channels; c++){
+                        int no = (t * depth + z) * channels + c;
+                        writer.saveBytes(no, DataTools.shortsToBytes(renderPlane(c, z, t), false));
+                    }
+                }
+            }
+        } finally {
+            writer.close();
+        }
+    }
+}
@@ -0,0 +1,266 @@
+package uk.ac.warwick.camdu;
+
+import ij.ImagePlus;
+import ij.plugin.ChannelSplitter;
+import loci.formats.FormatException;
+import net.imglib2.FinalInterval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.img.display.imagej.ImageJFunctions;
+import net.imglib2.view.Views;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+
+
+/**
+ *
+ * syntheticHarness - measures speed and accuracy of PSFprofiler and coAlignement on synthetic beads
+ *<p>
+ * Generates bead images with syntheticBeads (fixed seeds), crops every bead around its known position as autoPSF and
+ * autoColoc do (20 and 35 pixels, as virtual float stacks wrapping the image), and runs PSFprofiler and coAlignement on the crops. For each scenario it reports
+ * the number of beads analysed per second and how far the measured FWHMs and channel distances are from the values
+ * that were put in. Results are printed and written as a CSV file.
+ *</p>
+ *<p>
+ * Run with mvn -Pbenchmarks test-compile exec:exec -Dbenchmark.main=uk.ac.warwick.camdu.syntheticHarness
+ * -Dbenchmark.output=target/benchmarks/synthetic.csv. A second argument, a directory, also writes the test images
+ * (including a 4096x4096x200 stack) there as OME-TIFF files, to test the commands themselves on them.
+ *</p>
+ */
+public class syntheticHarness {
+
+    private static final String[] HEADER = {"scenario", "beads", "beads/s", "FWHM x rel. error", "FWHM y rel. error",
+            "FWHM z rel. error", "distance error (um)"};
+
+
+    /**
+     * @param args optional: path of the CSV output file (default: target/benchmarks/synthetic.csv), then a directory
+     *             where the test images are written as OME-TIFF
+     * @throws IOException if the results or the images can't be written
+     * @throws FormatException if Bio-Formats can't write the images
+     */
+    public static void main(String[] args) throws IOException, FormatException {
+        String output = args.length > 0 ? args[0] : "target" + File.separator + "benchmarks" + File.separator
+                + "synthetic.csv";
+        File parent = new File(output).getAbsoluteFile().getParentFile();
+        if (parent != null && !parent.exists() && !parent.mkdirs()){
+            System.out.println("Could not create directory " + parent);
+        }
+
+        try (Writer fw = new FileWriter(output)) {
+            writeRow(fw, HEADER);
+
+            syntheticBeads gaussian = new syntheticBeads(512, 512, 64, 1, 1);
+            gaussian.setSampling(0.08, 0.15);
+            gaussian.setGaussianPSF(0.25, 0.7);
+            gaussian.setBeads(30, 5000);
+            gaussian.setSeed(benchmarkData.SEED);
+            writeRow(fw, psfAccuracy("PSF gaussian", gaussian));
+
+            syntheticBeads bornWolf = new syntheticBeads(512, 512, 64, 1, 1);
+            bornWolf.setSampling(0.08, 0.15);
+            bornWolf.setBornWolfPSF(0.52, 1.4, 1.518);
+            bornWolf.setBeads(30, 5000);
+            bornWolf.setSeed(benchmarkData.SEED + 1);
+            writeRow(fw, psfAccuracy("PSF Born-Wolf", bornWolf));
+
+            syntheticBeads coloc = new syntheticBeads(512, 512, 48, 3, 1);
+            coloc.setSampling(0.08, 0.15);
+            coloc.setGaussianPSF(0.25, 0.7);
+            coloc.setBeads(20, 5000);
+            coloc.setChromaticOffset(1, 0.04, -0.03, 0.12);
+            coloc.setChromaticOffset(2, -0.06, 0.05, 0.25);
+            coloc.setSeed(benchmarkData.SEED + 2);
+            writeRow(fw, colocAccuracy("Coloc 3 channels", coloc));
+        }
+        System.out.println("Synthetic bead results written to " + output);
+
+        if (args.length > 1){
+            writeImages(args[1]);
+        }
+    }
+
+
+    /**
+     * Runs PSFprofiler on every bead of a single channel image.
+     * @param scenario name of the scenario
+     * @param beads generator for the image
+     * @return String[] with the row of results
+     */
+    private static String[] psfAccuracy(String scenario, syntheticBeads beads){
+        ImagePlus imp = beads.toImagePlus();
+        double[][] positions = beads.getBeadPositions();
+        double[] truth = beads.getFwhm();
+        double[][] errors = new double[3][positions.length];
+        int analysed = 0;
+
+        long start = System.nanoTime();
+        for (double[] position : positions){
+            ImagePlus crop = crop(imp, position, 20, imp.getCalibration().pixelWidth);
+            try {
+                double[] fwhm = new PSFprofiler(crop).getResolutions();
+                int k;
+                for (k = 0; k < 3; k++){
+                    errors[k][analysed] = (fwhm[k] - truth[k]) / truth[k];
+                }
+                analysed++;
+            } catch (RuntimeException e) {
+                System.out.println("PSFprofiler failed on bead at " + position[0] + ", " + position[1]);
+            }
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        String[] row = {scenario, String.valueOf(analysed), format(analysed / seconds),
+                summary(errors[0], analysed), summary(errors[1], analysed), summary(errors[2], analysed), ""};
+        System.out.println(String.join("\t", row));
+        return row;
+    }
+
+
+    /**
+     * Runs coAlignement on every bead of a 3 channel image.
+     * @param scenario name of the scenario
+     * @param beads generator for the image, with chromatic offsets
+     * @return String[] with the row of results
+     */
+    private static String[] colocAccuracy(String scenario, syntheticBeads beads){
+        ImagePlus[] channels = ChannelSplitter.split(beads.toImagePlus());
+        double[][] positions = beads.getBeadPositions();
+        double[][] offsets = {beads.getChromaticOffset(0), beads.getChromaticOffset(1), beads.getChromaticOffset(2)};
+        double[] truth = {distance(offsets[0], offsets[1]), distance(offsets[0], offsets[2]),
+                distance(offsets[1], offsets[2])};
+        double[] errors = new double[3 * positions.length];
+        int analysed = 0;
+
+        long start = System.nanoTime();
+        for (double[] position : positions){
+            ImagePlus[] crops = new ImagePlus[channels.length];
+            microscope[] conditions = new microscope[channels.length];
+            int c;
+            for (c = 0; c < channels.length; c++){
+                crops[c] = crop(channels[c], position, 35, channels[c].getCalibration().pixelWidth);
+                conditions[c] = new microscope(crops[c].getCalibration(), microscope.WIDEFIELD, 500, 1.4, 0.0, "",
+                        "");
+            }
+            try {
+                coAlignement coa = new coAlignement(crops, conditions);
+                errors[3 * analysed] = coa.RGDistCal - truth[0];
+                errors[3 * analysed + 1] = coa.RBDistCal - truth[1];
+                errors[3 * analysed + 2] = coa.GBDistCal - truth[2];
+                analysed++;
+            } catch (RuntimeException e) {
+                System.out.println("coAlignement failed on bead at " + position[0] + ", " + position[1]);
+            }
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        String[] row = {scenario, String.valueOf(analysed), format(analysed / seconds), "", "", "",
+                summary(errors, 3 * analysed)};
+        System.out.println(String.join("\t", row));
+        return row;
+    }
+
+
+    /**
+     * Writes the test images as OME-TIFF, from the smallest to the largest supported size.
+     * @param directory String with the output directory
+     * @throws IOException if the files can't be written
+     * @throws FormatException if Bio-Formats can't write the files
+     */
+    private static void writeImages(String directory) throws IOException, FormatException {
+        File dir = new File(directory);
+        if (!dir.exists() && !dir.mkdirs()){
+            throw new IOException("Could not create directory " + dir);
+        }
+
+        syntheticBeads small = new syntheticBeads(256, 256, 32, 1, 1);
+        small.setSeed(benchmarkData.SEED);
+        write(small, new File(dir, "beads_256.ome.tif"));
+
+        syntheticBeads coloc = new syntheticBeads(1024, 1024, 64, 3, 1);
+        coloc.setChromaticOffset(1, 0.04, -0.03, 0.12);
+        coloc.setChromaticOffset(2, -0.06, 0.05, 0.25);
+        coloc.setBeads(100, 5000);
+        coloc.setSeed(benchmarkData.SEED + 2);
+        write(coloc, new File(dir, "coloc_1024.ome.tif"));
+
+        syntheticBeads stage = new syntheticBeads(512, 512, 1, 1, 50);
+        stage.setStageJitter(0.05);
+        stage.setSeed(benchmarkData.SEED + 3);
+        write(stage, new File(dir, "stage_512.ome.tif"));
+
+        syntheticBeads large = new syntheticBeads(4096, 4096, 200, 1, 1);
+        large.setBeads(500, 5000);
+        large.setSeed(benchmarkData.SEED + 4);
+        write(large, new File(dir, "beads_4096.ome.tif"));
+    }
+
+    private static void write(syntheticBeads beads, File file) throws IOException, FormatException {
+        if (file.exists() && !file.delete()){
+            throw new IOException("Could not replace " + file);
+        }
+        long start = System.nanoTime();
+        beads.writeOMETiff(file.getPath());
+        System.out.println("Wrote " + file + " in " + format((System.nanoTime() - start) / 1e9) + " s");
+    }
+
+
+    /**
+     * Crops a square around a bead, over the whole stack, the way autoPSF and autoColoc do: a view of the wrapped
+     * image seen as floats through ImageJFunctions.wrapFloat, i.e. a virtual stack and not an in-memory copy, so that
+     * code only working on in-memory stacks shows up here.
+     * @param imp ImagePlus with a single channel stack
+     * @param position double[] with the bead position in microns
+     * @param size width and height of the crop in pixels
+     * @param pixelSize pixel size in microns
+     * @return ImagePlus with the calibrated crop
+     */
+    private static ImagePlus crop(ImagePlus imp, double[] position, int size, double pixelSize){
+        long x = Math.max(0, Math.min(imp.getWidth() - size, (int) (position[0] / pixelSize) - size / 2));
+        long y = Math.max(0, Math.min(imp.getHeight() - size, (int) (position[1] / pixelSize) - size / 2));
+        Img image = ImageJFunctions.wrapReal(imp);
+        FinalInterval interval = new FinalInterval(new long[]{x, y, 0},
+                new long[]{x + size - 1, y + size - 1, imp.getStackSize() - 1});
+        RandomAccessibleInterval view = Views.zeroMin(Views.interval(image, interval));
+        ImagePlus crop = ImageJFunctions.wrapFloat(view, "bead");
+        crop.setDimensions(1, imp.getStackSize(), 1);
+        crop.setOpenAsHyperStack(true);
+        crop.setCalibration(imp.getCalibration().copy());
+        return crop;
+    }
+
+    private static double distance(double[] a, double[] b){
+        return Math.sqrt(Math.pow(a[0] - b[0], 2) + Math.pow(a[1] - b[1], 2) + Math.pow(a[2] - b[2], 2));
+    }
+
+    /**
+     * @return String with the mean and standard deviation of the first n values
+     */
+    private static String summary(double[] values, int n){
+        if (n == 0){
+            return "NaN";
+        }
+        double sum = 0;
+        double sumSq = 0;
+        int i;
+        for (i = 0; i < n; i++){
+            sum += values[i];
+            sumSq += values[i] * values[i];
+        }
+        double mean = sum / n;
+        double sd = n > 1 ? Math.sqrt(Math.max(0, (sumSq - n * mean * mean) / (n - 1))) : 0;
+        return format(mean) + " +/- " + format(sd);
+    }
+
+    private static String format(double value){
+        return String.valueOf(dataTricks.round(value, 4));
+    }
+
+    private static void writeRow(Writer fw, String[] row) throws IOException {
+        fw.append(String.join(",", row)).append("\n");
+        fw.flush();
+    }
+}
@@ -8,14 +8,27 @@ package uk.ac.warwick.camdu;
 
 import ij.IJ;
 import ij.ImagePlus;
+import ij.ImageStack;
 import ij.gui.NewImage;
-import ij.process.ImageProcessor;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 class HistogramSegmentation {
+    // below this number of voxels the histogram is built in the calling thread
+    private static final long PARALLEL_VOXELS = 1L << 21;
+    // at most this many bins are searched by calcLimitsOtsu
+    private static final int OTSU_BINS = 256;
     private int[] histo;
     private int min = 0;
     private int max = 0;
     private int[] limits;
+    private double[][] prefixSums;
+    private double[][] logPrefixSums;
 
     HistogramSegmentation(ImagePlus ip) {
         int bitDepth = ip.getBitDepth();
@@ -25,24 +38,111 @@ class HistogramSegmentation {
             this.max = 0;
             this.min = (int)Math.pow(2.0D, (double)bitDepth);
             this.histo = new int[this.min];
+            this.buildHistogram(ip.getStack(), ip.getNSlices());
+        }
+    }
 
-            for(int z = 1; z <= ip.getNSlices(); ++z) {
-                ip.setSlice(z);
+    /**
+     * Builds the histogram, min and max in one pass over the raw byte[]/short[] slice arrays. Large stacks are split
+     * by slices between threads, each filling its own partial histogram, merged at the end.
+     */
+    private void buildHistogram(ImageStack stack, int nSlices) {
+        int nChunks = this.getChunks(stack, nSlices);
+        if (nChunks <= 1) {
+            this.addSlices(stack, 1, nSlices, this.histo, this);
+            return;
+        }
 
-                for(int y = 0; y < ip.getHeight(); ++y) {
-                    for(int x = 0; x < ip.getWidth(); ++x) {
-                        int val = ip.getPixel(x, y)[0];
-                        this.min = Math.min(this.min, val);
-                        this.max = Math.max(this.max, val);
-                        int var10002 = this.histo[val]++;
-                    }
-                }
+        HistogramSegmentation[] partials = new HistogramSegmentation[nChunks];
+        this.runChunks(nChunks, k -> {
+            partials[k] = new HistogramSegmentation(this.histo.length);
+            this.addSlices(stack, 1 + k * nSlices / nChunks, (k + 1) * nSlices / nChunks, partials[k].histo, partials[k]);
+        });
+        for (HistogramSegmentation partial : partials) {
+            for(int i = 0; i < this.histo.length; ++i) {
+                this.histo[i] += partial.histo[i];
+            }
+            this.min = Math.min(this.min, partial.min);
+            this.max = Math.max(this.max, partial.max);
+        }
+    }
+
+    /**
+     * @return number of slice chunks to process in parallel (1: in the calling thread)
+     */
+    private int getChunks(ImageStack stack, int nSlices) {
+        long voxels = (long)stack.getWidth() * (long)stack.getHeight() * (long)nSlices;
+        return voxels >= PARALLEL_VOXELS ? Math.min(Runtime.getRuntime().availableProcessors(), nSlices) : 1;
+    }
+
+    private interface chunkTask {
+        void run(int chunk);
+    }
+
+    private void runChunks(int nChunks, chunkTask task) {
+        ExecutorService pool = Executors.newFixedThreadPool(nChunks);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for(int k = 0; k < nChunks; ++k) {
+                final int chunk = k;
+                futures.add(pool.submit(() -> task.run(chunk)));
+            }
+            for (Future<?> future : futures) {
+                future.get();
             }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while processing the stack", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Histogram segmentation failed", e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
 
+    /**
+     * Empty histogram for a partial result of buildHistogram.
+     */
+    private HistogramSegmentation(int size) {
+        this.histo = new int[size];
+        this.min = size;
+        this.max = 0;
+    }
+
+    /**
+     * Adds slices first to last (starting at 1, included) to a histogram, updating target's min and max.
+     */
+    private void addSlices(ImageStack stack, int first, int last, int[] histogram, HistogramSegmentation target) {
+        int lo = target.min;
+        int hi = target.max;
+        for(int z = first; z <= last; ++z) {
+            Object pixels = stack.getPixels(z);
+            if (pixels instanceof byte[]) {
+                byte[] values = (byte[])pixels;
+                for(int i = 0; i < values.length; ++i) {
+                    int val = values[i] & 255;
+                    lo = Math.min(lo, val);
+                    hi = Math.max(hi, val);
+                    ++histogram[val];
+                }
+            } else {
+                short[] values = (short[])pixels;
+                for(int i = 0; i < values.length; ++i) {
+                    int val = values[i] & 0xffff;
+                    lo = Math.min(lo, val);
+                    hi = Math.max(hi, val);
+                    ++histogram[val];
+                }
+            }
         }
+        target.min = lo;
+        target.max = hi;
     }
 
     int[] calcLimits(int nClasses, int maxIt, int epsilon, boolean log) {
+        double[][] sums = this.getPrefixSums(log);
+        double[] cumFreq = sums[0];
+        double[] cumMoment = sums[1];
         double[] means = new double[nClasses];
         this.limits = new int[nClasses + 1];
         this.limits[0] = this.min;
@@ -61,18 +161,9 @@ class HistogramSegmentation {
 
             int i;
             for(i = 0; i < nClasses; ++i) {
-                double freq = 0.0D;
-                double mean = 0.0D;
                 int limLow = this.limits[i];
                 int limHigh = i == nClasses - 1 ? this.limits[i + 1] + 1 : this.limits[i + 1];
-
-                for(int j = limLow; j < limHigh; ++j) {
-                    int val = this.histo[j];
-                    freq += log ? (val != 0 ? Math.log((double)val) : 0.0D) : (double)val;
-                    mean += log ? (val != 0 ? Math.log((double)val) * (double)j : 0.0D) : (double)(val * j);
-                }
-
-                means[i] = mean / freq;
+                means[i] = rangeSum(cumMoment, limLow, limHigh) / rangeSum(cumFreq, limLow, limHigh);
             }
 
             for(i = 1; i < nClasses; ++i) {
@@ -91,6 +182,100 @@ class HistogramSegmentation {
         return this.limits;
     }
 
+    /**
+     * Multi-level Otsu thresholding: the limits maximising the between-class variance, found exactly by dynamic
+     * programming over the cumulative counts and moments. Deterministic and non-iterative, so a faster alternative to
+     * calcLimits. Above 256 grey levels between min and max, the histogram is searched in 256 bins, as ImageJ does for
+     * its 16-bit thresholds.
+     * @param nClasses number of classes
+     * @return int[] with the nClasses + 1 limits, in the same layout as calcLimits
+     */
+    int[] calcLimitsOtsu(int nClasses) {
+        double[][] sums = this.getPrefixSums(false);
+        int range = this.max - this.min + 1;
+        int binWidth = (range + OTSU_BINS - 1) / OTSU_BINS;
+        int nBins = (range + binWidth - 1) / binWidth;
+        if (nClasses < 1 || nClasses > nBins) {
+            throw new IllegalArgumentException("Can't split " + nBins + " grey levels in " + nClasses + " classes.");
+        }
+
+        double[] cumFreq = new double[nBins + 1];
+        double[] cumMoment = new double[nBins + 1];
+        for(int b = 0; b <= nBins; ++b) {
+            int val = Math.min(this.min + b * binWidth, this.max + 1);
+            cumFreq[b] = sums[0][val];
+            cumMoment[b] = sums[1][val];
+        }
+
+        // best[k][j]: highest sum of moment^2/count splitting bins 0 to j-1 in k classes; from[k][j]: start of the last
+        double[][] best = new double[nClasses + 1][nBins + 1];
+        int[][] from = new int[nClasses + 1][nBins + 1];
+        for(int k = 0; k <= nClasses; ++k) {
+            Arrays.fill(best[k], Double.NEGATIVE_INFINITY);
+        }
+        best[0][0] = 0.0D;
+
+        for(int k = 1; k <= nClasses; ++k) {
+            for(int j = k; j <= nBins - nClasses + k; ++j) {
+                for(int i = k - 1; i < j; ++i) {
+                    if (best[k - 1][i] == Double.NEGATIVE_INFINITY) {
+                        continue;
+                    }
+                    double freq = cumFreq[j] - cumFreq[i];
+                    double moment = cumMoment[j] - cumMoment[i];
+                    double value = best[k - 1][i] + (freq > 0.0D ? moment * moment / freq : 0.0D);
+                    if (value > best[k][j]) {
+                        best[k][j] = value;
+                        from[k][j] = i;
+                    }
+                }
+            }
+        }
+
+        this.limits = new int[nClasses + 1];
+        this.limits[0] = this.min;
+        this.limits[nClasses] = this.max;
+        int j = nBins;
+        for(int k = nClasses; k > 1; --k) {
+            j = from[k][j];
+            this.limits[k - 1] = this.min + j * binWidth;
+        }
+
+        return this.limits;
+    }
+
+    /**
+     * Cumulative counts and moments of the histogram, built once per weighting: element j is the sum over the grey
+     * levels below j, so any class is summed with two array reads.
+     * @param log true to weight with the log of the counts, as calcLimits does for fluorescence
+     * @return double[2][histogram size + 1] with the cumulative counts then moments
+     */
+    private double[][] getPrefixSums(boolean log) {
+        double[][] sums = log ? this.logPrefixSums : this.prefixSums;
+        if (sums == null) {
+            sums = new double[2][this.histo.length + 1];
+            for(int j = 0; j < this.histo.length; ++j) {
+                int val = this.histo[j];
+                double freq = log ? (val != 0 ? Math.log((double)val) : 0.0D) : (double)val;
+                sums[0][j + 1] = sums[0][j] + freq;
+                sums[1][j + 1] = sums[1][j] + freq * (double)j;
+            }
+            if (log) {
+                this.logPrefixSums = sums;
+            } else {
+                this.prefixSums = sums;
+            }
+        }
+        return sums;
+    }
+
+    /**
+     * @return sum of the values from low (included) to high (excluded), 0 for an empty range
+     */
+    private static double rangeSum(double[] cumulative, int low, int high) {
+        return high > low ? cumulative[high] - cumulative[low] : 0.0D;
+    }
+
     public int[] getLimitsFluo(int nClasses) {
         return this.calcLimits(nClasses, 1000, 0, true);
     }
@@ -99,6 +284,28 @@ class HistogramSegmentation {
         return this.calcLimits(nClasses, 1000, 0, false);
     }
 
+    /**
+     * @param nClasses number of classes
+     * @return int[] with the limits of the multi-level Otsu thresholding (see calcLimitsOtsu)
+     */
+    public int[] getLimitsOtsu(int nClasses) {
+        return this.calcLimitsOtsu(nClasses);
+    }
+
+    /**
+     * @return lowest grey level of the image
+     */
+    int getMin() {
+        return this.min;
+    }
+
+    /**
+     * @return highest grey level of the image
+     */
+    int getMax() {
+        return this.max;
+    }
+
     public int[] getHisto() {
         return this.histo;
     }
@@ -253,32 +460,7 @@ class HistogramSegmentation {
             throw new IllegalArgumentException("calcLimits has not yet been called.");
         } else {
             ImagePlus dest = IJ.createImage("SegImg_" + ip.getTitle(), ip.getBitDepth() + "-bit", ip.getWidth(), ip.getHeight(), ip.getNSlices());
-
-            for(int z = 1; z <= ip.getNSlices(); ++z) {
-                ip.setSlice(z);
-                dest.setSlice(z);
-                ImageProcessor oriProc = ip.getProcessor();
-                ImageProcessor destProc = dest.getProcessor();
-
-                for(int y = 0; y < ip.getHeight(); ++y) {
-                    for(int x = 0; x < ip.getWidth(); ++x) {
-                        int val = oriProc.get(x, y);
-                        boolean wasChanged = false;
-
-                        for(int borne = 0; borne < this.limits.length - 1; ++borne) {
-                            if (val >= this.limits[borne] && val < this.limits[borne + 1]) {
-                                destProc.set(x, y, borne + 1);
-                                wasChanged = true;
-                            }
-                        }
-
-                        if (!wasChanged) {
-                            destProc.set(x, y, this.limits.length - 1);
-                        }
-                    }
-                }
-            }
-
+            this.applyLut(ip.getStack(), ip.getNSlices(), this.getClassLut(ip.getBitDepth()), dest.getStack());
             dest.setSlice(1);
             dest.setDisplayRange(0.0D, (double)(this.limits.length - 1));
             dest.updateAndDraw();
@@ -291,29 +473,12 @@ class HistogramSegmentation {
             throw new IllegalArgumentException("calcLimits has not yet been called.");
         } else if (nClass >= 0 && nClass < this.limits.length) {
             ImagePlus dest = NewImage.createImage("SegImg_class_" + nClass + "_" + ip.getTitle(), ip.getWidth(), ip.getHeight(), ip.getNSlices(), 8, 1);
-
-            for(int z = 1; z <= ip.getNSlices(); ++z) {
-                ip.setSlice(z);
-                dest.setSlice(z);
-                ImageProcessor oriProc = ip.getProcessor();
-                ImageProcessor destProc = dest.getProcessor();
-
-                for(int y = 0; y < ip.getHeight(); ++y) {
-                    for(int x = 0; x < ip.getWidth(); ++x) {
-                        int val = oriProc.get(x, y);
-                        boolean wasChanged = false;
-                        if (val >= this.limits[nClass]) {
-                            destProc.set(x, y, 255);
-                            wasChanged = true;
-                        }
-
-                        if (!wasChanged) {
-                            destProc.set(x, y, 0);
-                        }
-                    }
-                }
+            int[] lut = new int[this.getLutSize(ip.getBitDepth())];
+            for(int val = 0; val < lut.length; ++val) {
+                lut[val] = val >= this.limits[nClass] ? 255 : 0;
             }
 
+            this.applyLut(ip.getStack(), ip.getNSlices(), lut, dest.getStack());
             dest.setSlice(1);
             dest.setDisplayRange(0.0D, 255.0D);
             dest.updateAndDraw();
@@ -324,32 +489,64 @@ class HistogramSegmentation {
     }
 
     public void doSegmentation(ImagePlus ip) {
-        for(int z = 1; z <= ip.getNSlices(); ++z) {
-            ip.setSlice(z);
-            ImageProcessor iproc = ip.getProcessor();
-
-            for(int y = 0; y < ip.getHeight(); ++y) {
-                for(int x = 0; x < ip.getWidth(); ++x) {
-                    int val = iproc.get(x, y);
-                    boolean wasChanged = false;
-
-                    for(int borne = 0; borne < this.limits.length - 1; ++borne) {
-                        if (val >= this.limits[borne] && val < this.limits[borne + 1]) {
-                            iproc.set(x, y, borne + 1);
-                            wasChanged = true;
-                        }
-                    }
+        this.applyLut(ip.getStack(), ip.getNSlices(), this.getClassLut(ip.getBitDepth()), ip.getStack());
+        ip.setSlice(1);
+        ip.setDisplayRange(0.0D, (double)(this.limits.length - 1));
+        ip.updateAndDraw();
+    }
 
-                    if (!wasChanged) {
-                        iproc.set(x, y, this.limits.length - 1);
-                    }
+    /**
+     * Class (1 to number of classes) of every possible intensity: the last class whose limits contain it, or the
+     * last class if none does, as the per-pixel loop over the limits gave.
+     * @param bitDepth 8 or 16
+     * @return int[] with 256 or 65536 entries
+     */
+    private int[] getClassLut(int bitDepth) {
+        int[] lut = new int[this.getLutSize(bitDepth)];
+        for(int val = 0; val < lut.length; ++val) {
+            lut[val] = this.limits.length - 1;
+            for(int borne = 0; borne < this.limits.length - 1; ++borne) {
+                if (val >= this.limits[borne] && val < this.limits[borne + 1]) {
+                    lut[val] = borne + 1;
                 }
             }
         }
+        return lut;
+    }
 
-        ip.setSlice(1);
-        ip.setDisplayRange(0.0D, (double)(this.limits.length - 1));
-        ip.updateAndDraw();
+    private int getLutSize(int bitDepth) {
+        if (bitDepth != 8 && bitDepth != 16) {
+            throw new IllegalArgumentException("Histo_seg expect a 8- or 16-bits images");
+        }
+        return 1 << bitDepth;
+    }
+
+    /**
+     * Maps every voxel of the first nSlices slices of src through the lookup table into dest (8 or 16-bit, can be
+     * src itself), working on the slice arrays, split by slices between threads for large stacks.
+     */
+    private void applyLut(ImageStack src, int nSlices, int[] lut, ImageStack dest) {
+        int nChunks = this.getChunks(src, nSlices);
+        if (nChunks <= 1) {
+            this.applyLut(src, 1, nSlices, lut, dest);
+        } else {
+            this.runChunks(nChunks, k -> this.applyLut(src, 1 + k * nSlices / nChunks, (k + 1) * nSlices / nChunks, lut, dest));
+        }
     }
-}
 
+    private void applyLut(ImageStack src, int first, int last, int[] lut, ImageStack dest) {
+        for(int z = first; z <= last; ++z) {
+            Object in = src.getPixels(z);
+            Object out = dest.getPixels(z);
+            int n = src.getWidth() * src.getHeight();
+            for(int i = 0; i < n; ++i) {
+                int val = in instanceof byte[] ? ((byte[])in)[i] & 255 : ((short[])in)[i] & 0xffff;
+                if (out instanceof byte[]) {
+                    ((byte[])out)[i] = (byte)lut[val];
+                } else {
+                    ((short[])out)[i] = (short)lut[val];
+                }
+            }
+        }
+    }
+}
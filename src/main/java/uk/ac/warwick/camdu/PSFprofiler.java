@@ -6,12 +6,13 @@
 package uk.ac.warwick.camdu;
 
 import ij.ImagePlus;
-import ij.gui.Line;
+import ij.ImageStack;
 import ij.gui.Plot;
 import ij.io.FileSaver;
 import ij.measure.Calibration;
 import ij.measure.CurveFitter;
-import ij.plugin.Slicer;
+import ij.process.ImageStatistics;
+import ij.process.StackStatistics;
 import java.awt.Color;
 import java.io.BufferedWriter;
 import java.io.FileWriter;
@@ -24,6 +25,8 @@ class PSFprofiler {
     public static final int X = 0;
     public static final int Y = 1;
     public static final int Z = 2;
+    public static final int LM_FIT = 0;
+    public static final int SIMPLEX_FIT = 1;
     private ImagePlus ip;
     private int[] center;
     private double[][] xProfile;
@@ -37,8 +40,19 @@ class PSFprofiler {
     private String zParamString;
     private Calibration cal;
     private final double[] resol;
+    private final int fitMethod;
+    private final gaussianFitter fitter = new gaussianFitter();
 
     PSFprofiler(ImagePlus ip) {
+        this(ip, LM_FIT);
+    }
+
+    /**
+     * @param ip ImagePlus with the bead stack
+     * @param fitMethod LM_FIT (gaussianFitter, default) or SIMPLEX_FIT (ImageJ's CurveFitter, as in earlier versions)
+     */
+    PSFprofiler(ImagePlus ip, int fitMethod) {
+        this.fitMethod = fitMethod;
         this.xProfile = null;
         double[] xParams = null;
         this.xR2 = 0.0D / 0.0;
@@ -83,13 +97,13 @@ class PSFprofiler {
     }
 
     private void getZprofileAndFit() {
-        this.ip.setCalibration(new Calibration());
-        this.ip.setRoi(new Line(0, this.center[1], this.ip.getWidth() - 1, this.center[1]));
-        ImagePlus crossX = (new Slicer()).reslice(this.ip);
-        this.ip.killRoi();
-        this.ip.setCalibration(this.cal);
+        // reads the (x, y) column from the processor of each slice, same values as an XZ reslice along the centre line;
+        // not getVoxel, which only sees in-memory stacks and not the virtual ones wrapping an Img (autoPSF's crops)
+        ImageStack stack = this.ip.getStack();
         this.zProfile = new double[3][this.ip.getNSlices()];
-        this.zProfile[1] = crossX.getProcessor().getLine((double)this.center[0], 0.0D, (double)this.center[0], (double)(crossX.getHeight() - 1));
+        for(int z = 0; z < this.zProfile[1].length; ++z) {
+            this.zProfile[1][z] = (double)stack.getProcessor(this.ip.getStackIndex(this.ip.getChannel(), z + 1, this.ip.getFrame())).getf(this.center[0], this.center[1]);
+        }
         this.fitProfile(this.zProfile, 2);
     }
 
@@ -123,24 +137,36 @@ class PSFprofiler {
             }
         }
 
-        CurveFitter cv = new CurveFitter(profile[0], profile[1]);
-        cv.setInitialParameters(params);
-        cv.doFit(12);
-        params = cv.getParams();
-        String paramString = cv.getResultString();
-        paramString = paramString.substring(paramString.lastIndexOf("ms") + 2);
+        String paramString;
+        double fitGoodness;
+        if (this.fitMethod == SIMPLEX_FIT) {
+            CurveFitter cv = new CurveFitter(profile[0], profile[1]);
+            cv.setInitialParameters(params);
+            cv.doFit(12);
+            params = cv.getParams();
+            paramString = cv.getResultString();
+            paramString = paramString.substring(paramString.lastIndexOf("ms") + 2);
+            fitGoodness = cv.getFitGoodness();
+        } else {
+            // starting values are estimated by the fitter itself, from the profile
+            this.fitter.fit(profile[0], profile[1]);
+            params = this.fitter.getParams();
+            paramString = this.fitter.getResultString();
+            fitGoodness = this.fitter.getFitGoodness();
+        }
+
         switch(dimension) {
             case 0:
                 this.xParamString = this.xParamString + paramString;
-                this.xR2 = cv.getFitGoodness();
+                this.xR2 = fitGoodness;
                 break;
             case 1:
                 this.yParamString = this.yParamString + paramString;
-                this.yR2 = cv.getFitGoodness();
+                this.yR2 = fitGoodness;
                 break;
             case 2:
                 this.zParamString = this.zParamString + paramString;
-                this.zR2 = cv.getFitGoodness();
+                this.zR2 = fitGoodness;
         }
 
         for(int i = 0; i < profile[0].length; ++i) {
@@ -183,6 +209,32 @@ class PSFprofiler {
         return plot;
     }
 
+    /**
+     * Fits a 3D Gaussian to the whole crop, starting from the brightest voxel (with sub-pixel refinement) and the
+     * FWHMs of the line profiles.
+     * @param rotated if true, the PSF may be rotated around the optical axis (astigmatism)
+     * @return gaussian3DFitter with the fitted centre, FWHMs and residuals
+     */
+    gaussian3DFitter fit3D(boolean rotated) {
+        double[] peak = (new findMax()).getSubPixelCoordinates(this.ip);
+        ImageStatistics stats = new StackStatistics(this.ip);
+        double[] start = new double[8];
+        start[0] = stats.min;
+        start[1] = stats.max - stats.min;
+        start[2] = peak[0] * this.cal.pixelWidth;
+        start[3] = peak[1] * this.cal.pixelHeight;
+        start[4] = (peak[2] - 1.0D) * this.cal.pixelDepth;
+        double[] spacing = new double[]{this.cal.pixelWidth, this.cal.pixelHeight, this.cal.pixelDepth};
+        for(int i = 0; i < 3; ++i) {
+            double sigma = this.resol[i] / (2.0D * SQRT2LN2);
+            start[5 + i] = sigma > 0.0D && !Double.isInfinite(sigma) ? sigma : 2.0D * spacing[i];
+        }
+
+        gaussian3DFitter fitter = new gaussian3DFitter(rotated);
+        fitter.fit(this.ip, start);
+        return fitter;
+    }
+
     double[] getResolutions() {
         return this.resol;
     }
@@ -3,23 +3,18 @@ package uk.ac.warwick.camdu;
 
 import ij.IJ;
 import ij.ImagePlus;
-import ij.gui.Roi;
 import ij.io.FileSaver;
 import ij.measure.Calibration;
 import ij.plugin.ChannelSplitter;
-import ij.plugin.filter.MaximumFinder;
+import ij.process.FloatProcessor;
 import ij.process.ImageProcessor;
 import loci.formats.FormatException;
-import loci.plugins.BF;
-import loci.plugins.in.ImportProcess;
-import loci.plugins.in.ImporterOptions;
 import net.imagej.ImageJ;
 import net.imagej.ops.Ops;
 import net.imagej.ops.special.computer.Computers;
 import net.imagej.ops.special.computer.UnaryComputerOp;
 import net.imglib2.FinalDimensions;
 import net.imglib2.FinalInterval;
-import net.imglib2.RandomAccess;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.img.Img;
 import net.imglib2.img.display.imagej.ImageJFunctions;
@@ -34,14 +29,16 @@ import java.awt.*;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
 import java.sql.Timestamp;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Objects;
 
-import static ij.WindowManager.*;
 import static java.lang.Math.ceil;
 import static java.lang.Math.round;
 
@@ -103,6 +100,24 @@ public class autoColoc<T extends RealType<T>> extends Component implements Comma
     @Parameter(label = "(Optional) match string for filename:")
     private String match = "";
 
+    /**
+     * batchThreads: integer, number of files read and processed at the same time.
+     */
+    @Parameter(label = "Files processed at the same time:")
+    private int batchThreads = 1;
+    /**
+     * heapBudgetMB: long, memory (in MB) that files being processed at the same time can use. 0 means automatic
+     * (3/4 of the maximum heap size).
+     */
+    @Parameter(label = "Memory budget for batch (MB, 0 = automatic):")
+    private long heapBudgetMB = 0;
+    /**
+     * cropOnRead: boolean, if true only the central 300x300 region is read from the file, instead of reading everything
+     * and cropping afterwards.
+     */
+    @Parameter(label = "Read only the analysed region:")
+    private boolean cropOnRead = true;
+
     /**
      * setBeads: only used when running this as a Java program rather than in Fiji.
      * @param beadnum number of beads
@@ -374,41 +389,82 @@ public class autoColoc<T extends RealType<T>> extends Component implements Comma
         //File selectedDir = srcDir;
         final SimpleDateFormat sdf = new SimpleDateFormat("yyyyMMdd.HHmmss");
         Timestamp timestamp = new Timestamp(System.currentTimeMillis());
-        List<Img> currentFiles;
         String selectedDir = srcDir[0].getAbsolutePath();
         String resultPath = selectedDir + File.separator + sdf.format(timestamp)+"summary_coloc.csv";
         FileWriter fw = printOutputHeader(resultPath);
 
 
-        for (final File fileEntry : Objects.requireNonNull(srcDir)){
-
-
-            //if (fileEntry.getName().contains(match)) {
-                System.out.println("Opening file: " + fileEntry.getName());
-                String path = fileEntry.getPath();
-
-                currentFiles = readFile(path);
-                System.out.println("Processing file: " + fileEntry.getName());
-
-                processing(currentFiles, path, fw, fileEntry.getName());
+        // measurements are global ImageJ settings: set them once here, not from the concurrent file tasks
+        IJ.run("Set Measurements...", "min centroid integrated redirect=None decimal=3");
+        // several files can be read and processed at the same time; rows still come out in file order
+        batchExecutor batch = new batchExecutor(batchThreads, heapBudgetMB);
+        batch.run(Objects.requireNonNull(srcDir), this::processFile, fw);
 
-                System.out.println("Writing output: ");
 
-                //WriteFile(fw, fileEntry.getName(), finalResult);
 
-            //}
+        CloseFile(fw);
+        // skip irrelevant filenames, do stuff for relevant ones
 
 
+    }
 
 
+    /**
+     * Reads and processes a single file, returning its rows for the summary file.
+     *<p>
+     * Used by the batchExecutor in run(), possibly for several files at the same time. The series of the file are read
+     * and processed one at a time. The work is done on a copy of this object (see copySettings), since readSeries
+     * stores the calibration of the current series in the object.
+     *</p>
+     * @param fileEntry File to be processed
+     * @return String with the CSV rows for this file
+     * @throws IOException if the file could not be read or a series has the wrong dimensions
+     */
+    private String processFile(File fileEntry) throws IOException {
+        autoColoc<T> worker = copySettings();
+        System.out.println("Opening file: " + fileEntry.getName());
+        String path = fileEntry.getPath();
+
+        StringWriter rows = new StringWriter();
+        // one series at a time: each series is processed and released before the next one is read
+        try (seriesIterator series = worker.openSeries(path)) {
+            while (series.hasNext()) {
+                ImagePlus imp = series.next();
+                Img image = worker.readSeries(imp);
+                if (image == null) {
+                    throw new IOException("Wrong image dimensions in " + fileEntry.getName());
+                }
+                System.out.println("Processing file: " + fileEntry.getName() + ", series " + series.getSeriesLabel());
+                projectionAccumulator projection = series.getProjection();
+                worker.processing(Collections.singletonList(image),
+                        Collections.singletonList(projection == null ? null : projection.getMax()),
+                        path, rows, fileEntry.getName());
+                imp.flush();
+            }
+        } catch (FormatException e) {
+            throw new IOException(e);
         }
+        System.out.println("Writing output: " + fileEntry.getName());
+        return rows.toString();
+    }
 
 
-
-        CloseFile(fw);
-        // skip irrelevant filenames, do stuff for relevant ones
-
-
+    /**
+     * Creates a new autoColoc with the same parameters as this one, so that files processed at the same time don't share
+     * any per-file state.
+     * @return worker autoColoc object with the same parameters
+     */
+    private autoColoc<T> copySettings(){
+        autoColoc<T> worker = new autoColoc<>();
+        worker.ij = ij;
+        worker.beads = beads;
+        worker.beadSize = beadSize;
+        worker.noiseTol = noiseTol;
+        worker.minSeparation = minSeparation;
+        worker.srcDir = srcDir;
+        worker.match = match;
+        worker.cropOnRead = cropOnRead;
+        return worker;
     }
 
 
@@ -463,6 +519,7 @@ public class autoColoc<T extends RealType<T>> extends Component implements Comma
 
 
 
+        IJ.run("Set Measurements...", "min centroid integrated redirect=None decimal=3");
         processing_omero(list_images, srcDir[0].toString(), filenames, fw);
         System.out.println("Writing output: ");
 
@@ -478,82 +535,84 @@ public class autoColoc<T extends RealType<T>> extends Component implements Comma
 
 
     /**
-     * Reads a string with the path to an image file and returns an Img object.
+     * Reads a string with the path to an image file and returns a list of Img objects, one per matching series.
      * <p>
-     *     We use bioformats to open an ImagePlus, make sure that the input is a Z-stack, then generate an Img
-     *     converting the input to floats. If any of that fails, we catch an exception.
+     *     Opens the series one after the other with a seriesIterator and converts each of them with readSeries. This
+     *     keeps every matching series in memory at once, so it is only used when all of them are needed together
+     *     (autoQC_omero); run() streams the series one at a time instead. If anything fails, we catch an exception.
      * </p>
      *
      * @param arg String with the path to file to be read.
-     * @return imgFinal Img object with a Z-stack from the input file.
+     * @return toReturn List of Img objects from the input file, or null if a series has the wrong dimensions.
      */
-    public java.util.List<Img> readFile(String arg) {
 
-        //  OpenDialog od = new OpenDialog("Open Image File...", arg);
-        //  String dir = od.getDirectory();
-        //  String name = od.getFileName();
-        //  String id = dir + name;
+    public java.util.List<Img> readFile(String arg) {
 
         List<Img> toReturn = new ArrayList<>();
-
-        ImagePlus[] imps;
-
-        //ImagePlusReader test = new ImagePlusReader();
-
-        ImagePlus imp = new ImagePlus();
-        try {
-            //ImageReader ir = new ImageReader();
-            //ir.setId(arg);
-            ImporterOptions options = new ImporterOptions();
-            options.setId(arg);
-            options.setOpenAllSeries(true);
-            ImportProcess process = new ImportProcess(options);
-            process.execute();
-            options.setOpenAllSeries(false);
-            int i;
-            imps = new ImagePlus[1];
-            for (i = 0; i < process.getSeriesCount(); i++) {
-                if(process.getSeriesLabel(i).contains(match)){
-                    //System.out.println(process.getSeriesLabel(i));
-                    ImporterOptions int_options = new ImporterOptions();
-                    int_options.setId(arg);
-                    int_options.setSeriesOn(i,true);
-                    imps = BF.openImagePlus(int_options);
-                    imp = imps[0];
-                    //System.out.println(imp.getProperties().toString());
-                    calibration = imp.getCalibration();
-                    if (imp.getNDimensions() != 4){
-                        IJ.error("Number of image dimensions is different from 4");
-                        return null;
-                    }
-                    if (imp.getDimensions()[2] > 3){
-                        System.out.println("WARNING: number of channels is larger than 3. Make sure your dimensions are in the right order!");
-                    }
-
-                    toReturn.add(ImageJFunctions.convertFloat(imps[0]));
+        try (seriesIterator series = openSeries(arg)) {
+            while (series.hasNext()) {
+                Img image = readSeries(series.next());
+                if (image == null) {
+                    return null;
                 }
+                toReturn.add(image);
             }
-
-
-        }catch (FormatException | IOException exc) {
+        } catch (FormatException | IOException exc) {
 
             IJ.error("Sorry, an error occurred: " + exc.getMessage());
-            imps = new ImagePlus[1];
 
         }
 
-        calibration = imp.getCalibration();
-
-        // for (ImagePlus imp : imps) imp.show();
-        // We don't need to show them
-
+        return toReturn;
 
+    }
 
-        return toReturn;
 
+    /**
+     * Opens the matching series of a file one at a time.
+     * <p>
+     *     If cropOnRead is set, the seriesIterator is asked for the central 300x300 region only, which is all that
+     *     processing uses. The crop is the same one processing does, so the results don't change; processing just finds
+     *     the image is already 300x300 (or smaller).
+     * </p>
+     *
+     * @param arg String with the path to file to be read.
+     * @return series seriesIterator over the matching series of the file
+     * @throws FormatException if Bio-Formats can't read the file
+     * @throws IOException if the file can't be read
+     */
+    private seriesIterator openSeries(String arg) throws FormatException, IOException {
+        seriesIterator series = new seriesIterator(arg, match);
+        if (cropOnRead) {
+            series.setCrop(300, 300);
+            series.setProjection(0);
+        }
+        return series;
+    }
 
 
+    /**
+     * Turns a single series into an Img object.
+     * <p>
+     *     Stores the calibration of the series, makes sure that the input is a multichannel Z-stack, then wraps it as an
+     *     Img of its own pixel type (no copy). The stages after this work on views of these 8/16-bit pixels, and only
+     *     the bead crops handed to coAlignement are seen as floats (converted on the fly by ImageJFunctions.wrapFloat).
+     * </p>
+     *
+     * @param imp ImagePlus with the series, as returned by seriesIterator
+     * @return Img object with the series, or null if it has the wrong dimensions.
+     */
+    private Img readSeries(ImagePlus imp){
+        calibration = imp.getCalibration();
+        if (imp.getNDimensions() != 4){
+            IJ.error("Number of image dimensions is different from 4");
+            return null;
+        }
+        if (imp.getDimensions()[2] > 3){
+            System.out.println("WARNING: number of channels is larger than 3. Make sure your dimensions are in the right order!");
+        }
 
+        return ImageJFunctions.wrapReal(imp);
     }
 
 
@@ -570,11 +629,14 @@ public class autoColoc<T extends RealType<T>> extends Component implements Comma
      * Finally, it returns a matrix with bead IDs, X/Y/Z shifts for that input file.
      *</p>
      * @param images Img object with the input Z-stack
+     * @param projections List of max projections already accumulated while reading (same order as images), or null;
+     *                    for a null projection, the max projection is computed from the image
      * @param path String with the path to the original image file that is being processed
      *
      */
 
-    private void processing(List<Img> images, String path, FileWriter fw, String name){
+    private void processing(List<Img> images, List<FloatProcessor> projections, String path, Writer fw,
+                            String name){
         //private void processing(Img<FloatType> image){
 
         double[][][] toReturn = new double[images.size()][][];
@@ -598,7 +660,6 @@ public class autoColoc<T extends RealType<T>> extends Component implements Comma
         }
 
 
-        IJ.run("Set Measurements...", "min centroid integrated redirect=None decimal=3");
         System.out.println("Opened file, processing");
 
         //ImageJFunctions.show(image);
@@ -631,112 +692,49 @@ public class autoColoc<T extends RealType<T>> extends Component implements Comma
             RandomAccessibleInterval cropped;
             cropped = ij.op().transform().crop(image, interval, true);
             //        ImageJFunctions.show(cropped);
-            int[] projected_dimensions = new int[cropped.numDimensions() - 1];
-
-            int dim = 3;
-            int d;
-            for (d = 0; d < cropped.numDimensions(); ++d) {
-                if (d != dim) projected_dimensions[d] = (int) cropped.dimension(d);
-            }
-
-            Img<FloatType> proj = ij.op().create().img(
-                    new FinalDimensions(projected_dimensions), new FloatType());
+            beadDetector detector;
+            if (projections != null && projections.get(j) != null) {
+                // the max projection of the first channel was already accumulated while the planes were being read
+                detector = new beadDetector(projections.get(j));
+            } else {
+                int[] projected_dimensions = new int[cropped.numDimensions() - 1];
+
+                int dim = 3;
+                int d;
+                for (d = 0; d < cropped.numDimensions(); ++d) {
+                    if (d != dim) projected_dimensions[d] = (int) cropped.dimension(d);
+                }
 
-            UnaryComputerOp maxOp = Computers.unary(ij.op(), Ops.Stats.Max.class, RealType.class, Iterable.class);
+                Img<FloatType> proj = ij.op().create().img(
+                        new FinalDimensions(projected_dimensions), new FloatType());
 
-            Img<T> projection = (Img<T>) ij.op().transform().project(proj, cropped, maxOp, 3);
+                UnaryComputerOp maxOp = Computers.unary(ij.op(), Ops.Stats.Max.class, RealType.class, Iterable.class);
 
-            interval = FinalInterval.createMinSize(0, 0, 0, proj.dimension(0), proj.dimension(1), 1);
-            RandomAccessibleInterval finalcrop;
-            finalcrop = ij.op().transform().crop(proj, interval, true);
-            ImageJFunctions.show(finalcrop);
-            ImagePlus imp = IJ.getImage();
-            MaximumFinder mf = new MaximumFinder();
-            Polygon pol = mf.getMaxima(imp.getProcessor(), (int) noiseTol, true);
-
-            // detect beads and measure for intensity and x/y coords
-            //IJ.run("Find Maxima...", "noise="+noiseTol+" output=[Point Selection] exclude");
-            //ImagePlus imp = IJ.getImage();
-            //IJ.saveAsTiff(imp,path+"_beads"+File.separator+"allbeads"+".tif");
-            // Gets coordinates of ROIs
-
-            //Roi test = imp.getRoi();
-            //FloatPolygon floatPolygon = test.getFloatPolygon();
-            float[][] resultsTable = new float[pol.npoints][3];
-
-            // loops over ROIs and get pixel Vvlue at their coordinate.
-            for (int i = 0; i < pol.npoints; i++) {
-
-                float intx = pol.xpoints[i];
-                float inty = pol.ypoints[i];
-                final RandomAccess<FloatType> r = proj.randomAccess();
-                r.setPosition((int) intx, 0);
-                r.setPosition((int) inty, 1);
-                FloatType pixel = r.get();
-
-                resultsTable[i][0] = intx;
-                resultsTable[i][1] = inty;
-                resultsTable[i][2] = pixel.get();
+                Img<T> projection = (Img<T>) ij.op().transform().project(proj, cropped, maxOp, 3);
 
+                interval = FinalInterval.createMinSize(0, 0, 0, proj.dimension(0), proj.dimension(1), 1);
+                RandomAccessibleInterval finalcrop;
+                finalcrop = ij.op().transform().crop(proj, interval, true);
+                detector = new beadDetector(finalcrop);
             }
+            detector.detect(noiseTol);
+            float[] candX = detector.getX();
+            float[] candY = detector.getY();
 
-
-            // Sorts the Pixel coordinates by the intensity value.
-            //java.util.Arrays.sort(resultsTable, Comparator.comparingDouble(a -> a[2]));
-            java.util.Arrays.sort(resultsTable, (v1, v2) -> Float.compare(v2[2], v1[2]));
-
-            int countSpots = 0;
-            int firstPosition = 0;
             double[] goodX = new double[beads];
             double[] goodY = new double[beads];
 
-
             // selects the selected number of pixels based on the specified criteria
-            while (countSpots < beads && firstPosition < resultsTable.length) {
-
-                float x1 = resultsTable[firstPosition][0];
-
-                float y1 = resultsTable[firstPosition][1];
-
-                int nextPosition = firstPosition + 1;
-                boolean valid = true;
-
-                while (valid && nextPosition < resultsTable.length) {
-
-                    float x2 = resultsTable[nextPosition][0];
-                    float y2 = resultsTable[nextPosition][1];
-
-                    double dist_sq = Math.pow(x1 - x2, 2) + Math.pow(y1 - y2, 2);
-
-                    if (x2 != x1 && y2 != y1 && dist_sq < Math.pow(minSeparation, 2)) {
-
-                        valid = false;
-
-                    }
-
-                    nextPosition++;
-
-
-                }
-
-
-                if (valid) {
-                    Roi beadROI = new Roi(resultsTable[firstPosition][0] - 15, resultsTable[firstPosition][1] - 15, 30, 30);
-                    ImageProcessor ip = imp.getProcessor();
-                    //ip.setRoi(beadROI);
-                    ip.setValue(10000);
-                    ip.draw(beadROI);
-                    goodX[countSpots] = resultsTable[firstPosition][0];
-                    goodY[countSpots] = resultsTable[firstPosition][1];
-                    countSpots++;
-
-                }
-
-                firstPosition++;
-
+            int[] selected = new beadSelector(candX, candY, minSeparation).select(beads);
+            for (int countSpots = 0; countSpots < selected.length; countSpots++) {
+                float x1 = candX[selected[countSpots]];
+                float y1 = candY[selected[countSpots]];
+                detector.markBead(x1, y1, 10000);
+                goodX[countSpots] = x1;
+                goodY[countSpots] = y1;
             }
 
-            IJ.saveAsTiff(imp, path + "_beads" + File.separator + "allbeads" + ".tif");
+            detector.save(path + "_beads" + File.separator + "allbeads" + ".tif");
 
             double[][] finalResults = new double[beads][4];
 
@@ -811,12 +809,6 @@ public class autoColoc<T extends RealType<T>> extends Component implements Comma
 
             }
 
-            String[] titles = getImageTitles();
-            for (String title : titles) {
-                Window window = getWindow(title);
-                window.dispose();
-                removeWindow(window);
-            }
             toReturn[j] = finalResults;
             WriteThisFile(fw,name,finalResults);
         }
@@ -840,11 +832,11 @@ public class autoColoc<T extends RealType<T>> extends Component implements Comma
      * @param images List of Img objects with the input Z-stacks
      * @param path String with the path to the original image file that is being processed
      * @param filenames List of Strings with all filenames for the files being processed
-     * @param fw FileWriter object for the output CSV file
+     * @param fw Writer object for the output CSV file
      *
      */
 
-    private void processing_omero(List<Img> images, String path, List<String> filenames, FileWriter fw){
+    private void processing_omero(List<Img> images, String path, List<String> filenames, Writer fw){
         //private void processing(Img<FloatType> image){
 
         double[][][] toReturn = new double[images.size()][][];
@@ -868,7 +860,6 @@ public class autoColoc<T extends RealType<T>> extends Component implements Comma
         }
 
 
-        IJ.run("Set Measurements...", "min centroid integrated redirect=None decimal=3");
         System.out.println("Opened file, processing");
 
         //ImageJFunctions.show(image);
@@ -919,94 +910,25 @@ public class autoColoc<T extends RealType<T>> extends Component implements Comma
             interval = FinalInterval.createMinSize(0, 0, 0, proj.dimension(0), proj.dimension(1), 1);
             RandomAccessibleInterval finalcrop;
             finalcrop = ij.op().transform().crop(proj, interval, true);
-            ImageJFunctions.show(finalcrop);
-            ImagePlus imp = IJ.getImage();
-            MaximumFinder mf = new MaximumFinder();
-            Polygon pol = mf.getMaxima(imp.getProcessor(), (int) noiseTol, true);
-
-            // detect beads and measure for intensity and x/y coords
-            //IJ.run("Find Maxima...", "noise="+noiseTol+" output=[Point Selection] exclude");
-            //ImagePlus imp = IJ.getImage();
-            //IJ.saveAsTiff(imp,path+"_beads"+File.separator+"allbeads"+".tif");
-            // Gets coordinates of ROIs
-
-            //Roi test = imp.getRoi();
-            //FloatPolygon floatPolygon = test.getFloatPolygon();
-            float[][] resultsTable = new float[pol.npoints][3];
-
-            // loops over ROIs and get pixel Vvlue at their coordinate.
-            for (int i = 0; i < pol.npoints; i++) {
-
-                float intx = pol.xpoints[i];
-                float inty = pol.ypoints[i];
-                final RandomAccess<FloatType> r = proj.randomAccess();
-                r.setPosition((int) intx, 0);
-                r.setPosition((int) inty, 1);
-                FloatType pixel = r.get();
-
-                resultsTable[i][0] = intx;
-                resultsTable[i][1] = inty;
-                resultsTable[i][2] = pixel.get();
-
-            }
+            beadDetector detector = new beadDetector(finalcrop);
+            detector.detect(noiseTol);
+            float[] candX = detector.getX();
+            float[] candY = detector.getY();
 
-
-            // Sorts the Pixel coordinates by the intensity value.
-            //java.util.Arrays.sort(resultsTable, Comparator.comparingDouble(a -> a[2]));
-            java.util.Arrays.sort(resultsTable, (v1, v2) -> Float.compare(v2[2], v1[2]));
-
-            int countSpots = 0;
-            int firstPosition = 0;
             double[] goodX = new double[beads];
             double[] goodY = new double[beads];
 
-
             // selects the selected number of pixels based on the specified criteria
-            while (countSpots < beads && firstPosition < resultsTable.length) {
-
-                float x1 = resultsTable[firstPosition][0];
-
-                float y1 = resultsTable[firstPosition][1];
-
-                int nextPosition = firstPosition + 1;
-                boolean valid = true;
-
-                while (valid && nextPosition < resultsTable.length) {
-
-                    float x2 = resultsTable[nextPosition][0];
-                    float y2 = resultsTable[nextPosition][1];
-
-                    double dist_sq = Math.pow(x1 - x2, 2) + Math.pow(y1 - y2, 2);
-
-                    if (x2 != x1 && y2 != y1 && dist_sq < Math.pow(minSeparation, 2)) {
-
-                        valid = false;
-
-                    }
-
-                    nextPosition++;
-
-
-                }
-
-
-                if (valid) {
-                    Roi beadROI = new Roi(resultsTable[firstPosition][0] - 15, resultsTable[firstPosition][1] - 15, 30, 30);
-                    ImageProcessor ip = imp.getProcessor();
-                    //ip.setRoi(beadROI);
-                    ip.setValue(10000);
-                    ip.draw(beadROI);
-                    goodX[countSpots] = resultsTable[firstPosition][0];
-                    goodY[countSpots] = resultsTable[firstPosition][1];
-                    countSpots++;
-
-                }
-
-                firstPosition++;
-
+            int[] selected = new beadSelector(candX, candY, minSeparation).select(beads);
+            for (int countSpots = 0; countSpots < selected.length; countSpots++) {
+                float x1 = candX[selected[countSpots]];
+                float y1 = candY[selected[countSpots]];
+                detector.markBead(x1, y1, 10000);
+                goodX[countSpots] = x1;
+                goodY[countSpots] = y1;
             }
 
-            IJ.saveAsTiff(imp,path+"_colocresults"+File.separator+name+"_allbeads"+".tif");
+            detector.save(path+"_colocresults"+File.separator+name+"_allbeads"+".tif");
 
             double[][] finalResults = new double[beads][4];
 
@@ -1081,12 +1003,6 @@ public class autoColoc<T extends RealType<T>> extends Component implements Comma
 
             }
 
-            String[] titles = getImageTitles();
-            for (String title : titles) {
-                Window window = getWindow(title);
-                window.dispose();
-                removeWindow(window);
-            }
             toReturn[j] = finalResults;
             WriteThisFile(fw,name,finalResults);
         }
@@ -1099,14 +1015,14 @@ public class autoColoc<T extends RealType<T>> extends Component implements Comma
      * Given a FileWriter, we append the filename of the image that was processed and the results for each bead
      * processed in that image.
      *</p>
-     * @param fileWriter FileWriter object for the output file
+     * @param fileWriter Writer object for the output file
      * @param filename string with the filename of the image currently being processed
      * @param BeadResArray double[][] matrix with the results for the current image
      */
 
 
 
-    private static void WriteThisFile(FileWriter fileWriter, String filename, double[][] BeadResArray){
+    private static void WriteThisFile(Writer fileWriter, String filename, double[][] BeadResArray){
 
 
         try {
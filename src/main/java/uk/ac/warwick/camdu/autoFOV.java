@@ -4,13 +4,13 @@ package uk.ac.warwick.camdu;
 
 import ij.IJ;
 import ij.ImagePlus;
+import ij.io.FileSaver;
 import ij.measure.Calibration;
 import ij.plugin.ChannelSplitter;
+import ij.process.FloatProcessor;
 import ij.process.ImageProcessor;
 import loci.formats.FormatException;
-import loci.plugins.BF;
-import loci.plugins.in.ImportProcess;
-import loci.plugins.in.ImporterOptions;
+import loci.plugins.util.ImageProcessorReader;
 import net.imagej.ImageJ;
 import net.imglib2.img.Img;
 import net.imglib2.img.display.imagej.ImageJFunctions;
@@ -24,14 +24,16 @@ import java.awt.*;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
 import java.sql.Timestamp;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Objects;
 
-import static ij.WindowManager.*;
 
 
 /**
@@ -66,6 +68,43 @@ public class autoFOV<T extends RealType<T>> extends Component implements Command
     @Parameter(label = "(Optional) match string for series:")
     private String match = "";
 
+    /**
+     * batchThreads: integer, number of files read and processed at the same time.
+     */
+    @Parameter(label = "Files processed at the same time:")
+    private int batchThreads = 1;
+    /**
+     * heapBudgetMB: long, memory (in MB) that files being processed at the same time can use. 0 means automatic
+     * (3/4 of the maximum heap size).
+     */
+    @Parameter(label = "Memory budget for batch (MB, 0 = automatic):")
+    private long heapBudgetMB = 0;
+    /**
+     * tileRows: integer, if above 0 the images are read in strips of this many rows instead of whole, so that planes
+     * too large for an ImagePlus (or for the heap) can be processed. A map of the mean intensity in mapBin x mapBin
+     * blocks is then saved next to each file.
+     */
+    @Parameter(label = "Tiled reading, rows per strip (0 = whole image):")
+    private int tileRows = 0;
+    /**
+     * mapBin: integer, size in pixels of the blocks of the illumination map saved in tiled mode, and of the grid used
+     * with gridMetrics.
+     */
+    @Parameter(label = "Illumination map block size (pixels):")
+    private int mapBin = 64;
+    /**
+     * gridMetrics: boolean, if true the relative intensities are measured on the mapBin x mapBin block-averaged grid
+     * (relative to its brightest block) instead of single pixels, so that hot pixels don't skew them.
+     */
+    @Parameter(label = "Measure on the block grid (robust to hot pixels):")
+    private boolean gridMetrics = false;
+    /**
+     * modelOrder: integer, if above 0 a 2D polynomial of this order is fitted to the mapBin x mapBin block grid of
+     * each channel, and its coefficients and the flat-field correction image it gives are saved next to each file.
+     */
+    @Parameter(label = "Flat-field model polynomial order (0 = none):")
+    private int modelOrder = 0;
+
     private Calibration calibration;
 
 
@@ -231,7 +270,6 @@ public class autoFOV<T extends RealType<T>> extends Component implements Command
 
 //        File selectedDir = new File(srcDir);
         //File selectedDir = srcDir;
-        List<Img> currentFiles;
 
 
         String selectedDir = srcDir[0].getParent();
@@ -239,43 +277,146 @@ public class autoFOV<T extends RealType<T>> extends Component implements Command
         FileWriter fw = printOutputHeader(resultPath);
 
 
-        for (final File fileEntry : Objects.requireNonNull(srcDir)){
+        // several files can be read and processed at the same time; rows still come out in file order
+        batchExecutor batch = new batchExecutor(batchThreads, heapBudgetMB);
+        batch.run(Objects.requireNonNull(srcDir), this::processFile, fw);
 
 
-                //if (fileEntry.getName().contains(match)){
-                    System.out.println("Opening file: " + fileEntry.getName());
-                    String path = fileEntry.getPath();
 
-                    currentFiles = readFile(path);
 
-                    if (currentFiles == null){
-                        continue;
-                    }
 
-                    System.out.println("Processing file: " + fileEntry.getName());
-
-                    processing(currentFiles, fw,fileEntry.getName() );
-
-                    System.out.println("Writing output: ");
+        // skip irrelevant filenames, do stuff for relevant ones
 
-                    //WriteFile(fw,fileEntry.getName(),finalResult);
-                //}
+        CloseFile(fw);
+    }
 
 
+    /**
+     * Reads and processes a single file, returning its rows for the summary file.
+     *<p>
+     * Used by the batchExecutor in run(), possibly for several files at the same time. The series of the file are read
+     * and processed one at a time. The work is done on a copy of this object (see copySettings), since readSeries
+     * stores the calibration of the current series in the object.
+     *</p>
+     * @param fileEntry File to be processed
+     * @return String with the CSV rows for this file
+     * @throws IOException if the file could not be read or a series has the wrong dimensions
+     */
+    private String processFile(File fileEntry) throws IOException {
+        autoFOV<T> worker = copySettings();
+        System.out.println("Opening file: " + fileEntry.getName());
+        String path = fileEntry.getPath();
+
+        StringWriter rows = new StringWriter();
+        // one series at a time: each series is processed and released before the next one is read
+        try (seriesIterator series = new seriesIterator(path, match)) {
+            while (series.hasNext()) {
+                if (tileRows > 0) {
+                    // the series is never opened whole, only read in strips
+                    ImageProcessorReader reader = series.nextReader();
+                    System.out.println("Processing file in strips: " + fileEntry.getName() + ", series " + series.getSeriesLabel());
+                    worker.processTiled(reader, series.getCalibration(), rows, fileEntry.getName(), getOutputPrefix(fileEntry, series));
+                    continue;
+                }
+                ImagePlus imp = series.next();
+                Img image = worker.readSeries(imp);
+                if (image == null) {
+                    throw new IOException("Wrong image dimensions in " + fileEntry.getName());
+                }
+                System.out.println("Processing file: " + fileEntry.getName() + ", series " + series.getSeriesLabel());
+                worker.processing(Collections.singletonList(image), rows, fileEntry.getName(), getOutputPrefix(fileEntry, series));
+                imp.flush();
+            }
+        } catch (FormatException e) {
+            throw new IOException(e);
+        }
+        System.out.println("Writing output: " + fileEntry.getName());
+        return rows.toString();
+    }
 
 
+    /**
+     * @return String with the path and start of the filenames of the outputs for the current series of a file, next
+     * to the file
+     */
+    private static String getOutputPrefix(File fileEntry, seriesIterator series){
+        return fileEntry.getAbsoluteFile().getParent() + File.separator + fileEntry.getName() + "_S" + series.getSeriesIndex();
+    }
 
 
+    /**
+     * Creates a new autoFOV with the same parameters as this one, so that files processed at the same time don't share
+     * any per-file state.
+     * @return worker autoFOV object with the same parameters
+     */
+    private autoFOV<T> copySettings(){
+        autoFOV<T> worker = new autoFOV<>();
+        worker.ij = ij;
+        worker.srcDir = srcDir;
+        worker.match = match;
+        worker.tileRows = tileRows;
+        worker.mapBin = mapBin;
+        worker.gridMetrics = gridMetrics;
+        worker.modelOrder = modelOrder;
+        return worker;
+    }
 
+    /**
+     * @return size of the blocks of the grid, if the metrics are measured on it or a model is fitted to it, else 0
+     */
+    private int getGridBin(){
+        if ((gridMetrics || modelOrder > 0) && mapBin <= 0){
+            throw new IllegalArgumentException("Measuring on the block grid or fitting a model needs a block size above 0");
         }
+        return gridMetrics || modelOrder > 0 ? mapBin : 0;
+    }
 
+    /**
+     * Fits the flat-field model to the block grid of a channel and saves its coefficients (CSV) and the flat-field
+     * image (TIFF, 1 at the brightest point: divide the images by it to correct them).
+     * @param map FloatProcessor with the block grid
+     * @param width width of the image
+     * @param height height of the image
+     * @param cal Calibration of the image
+     * @param prefix String with the path and start of the filenames
+     * @param channel channel number, starting at 1
+     * @param fullSize if true the flat field has the size of the image, else that of the grid
+     */
+    private void saveModel(FloatProcessor map, int width, int height, Calibration cal, String prefix, int channel,
+                           boolean fullSize){
+        illuminationModel model = new illuminationModel(modelOrder);
+        if (!model.fit(map, mapBin, width, height)){
+            System.out.println("Could not fit the flat-field model to " + prefix + ", channel " + channel);
+            return;
+        }
 
+        ImagePlus flatField = new ImagePlus("Flat field", fullSize ? model.getFlatField(width, height)
+                : model.getFlatField(map.getWidth(), map.getHeight()));
+        Calibration flatCal = cal.copy();
+        if (!fullSize){
+            flatCal.pixelWidth *= (double) width / map.getWidth();
+            flatCal.pixelHeight *= (double) height / map.getHeight();
+        }
+        flatField.setCalibration(flatCal);
+        new FileSaver(flatField).saveAsTiff(prefix + "_C" + channel + "_flatfield.tif");
+
+        try (FileWriter fileWriter = new FileWriter(prefix + "_C" + channel + "_flatfield_model.csv")) {
+            fileWriter.append("term" + COMMA_DELIMITER + "coefficient" + NEW_LINE_SEPARATOR);
+            String[] terms = model.getTermNames();
+            double[] coefficients = model.getCoefficients();
+            int k;
+            for (k = 0; k < terms.length; k++){
+                fileWriter.append(terms[k]).append(COMMA_DELIMITER).append(String.valueOf(coefficients[k]));
+                fileWriter.append(NEW_LINE_SEPARATOR);
+            }
+            fileWriter.append("R^2").append(COMMA_DELIMITER).append(String.valueOf(model.getRSquared()));
+            fileWriter.append(NEW_LINE_SEPARATOR);
+        } catch (Exception e) {
 
+            System.out.println("Error in CsvFileWriter !!!");
+            e.printStackTrace();
 
-
-        // skip irrelevant filenames, do stuff for relevant ones
-
-        CloseFile(fw);
+        }
     }
 
     /**
@@ -341,100 +482,75 @@ public class autoFOV<T extends RealType<T>> extends Component implements Command
     }
 
     /**
-     * Reads a string with the path to an image file and returns an Img object.
+     * Reads a string with the path to an image file and returns a list of Img objects, one per matching series.
      * <p>
-     *     We use bioformats to open an ImagePlus, make sure that the input is a Z-stack, then generate an Img
-     *     converting the input to floats. If any of that fails, we catch an exception.
+     *     Opens the series one after the other with a seriesIterator and converts each of them with readSeries. This
+     *     keeps every matching series in memory at once, so it is only used when all of them are needed together
+     *     (autoQC_omero); run() streams the series one at a time instead. If anything fails, we catch an exception.
      * </p>
      *
      * @param arg String with the path to file to be read.
-     * @return imgFinal Img object with a Z-stack from the input file.
+     * @return toReturn List of Img objects from the input file, or null if a series has the wrong dimensions.
      */
 
-    public List<Img> readFile(String arg) {
-
-        //  OpenDialog od = new OpenDialog("Open Image File...", arg);
-        //  String dir = od.getDirectory();
-        //  String name = od.getFileName();
-        //  String id = dir + name;
-
-
+    public java.util.List<Img> readFile(String arg) {
 
         List<Img> toReturn = new ArrayList<>();
-
-        ImagePlus[] imps;
-
-        //ImagePlusReader test = new ImagePlusReader();
-
-        ImagePlus imp = new ImagePlus();
-        try {
-            //ImageReader ir = new ImageReader();
-            //ir.setId(arg);
-            ImporterOptions options = new ImporterOptions();
-            options.setId(arg);
-            options.setOpenAllSeries(true);
-            ImportProcess process = new ImportProcess(options);
-            process.execute();
-            options.setOpenAllSeries(false);
-            int i;
-            imps = new ImagePlus[1];
-            for (i = 0; i < process.getSeriesCount(); i++) {
-                if(process.getSeriesLabel(i).contains(match)){
-                    //System.out.println(process.getSeriesLabel(i));
-                    ImporterOptions int_options = new ImporterOptions();
-                    int_options.setId(arg);
-                    int_options.setSeriesOn(i,true);
-                    imps = BF.openImagePlus(int_options);
-                    imp = imps[0];
-
-                    //System.out.println(imp.getProperties().toString());
-                    calibration = imp.getCalibration();
-                    if (imp.getNDimensions() > 3){
-                        IJ.error("Number of image dimensions is larger than 3");
-                        return null;
-                    }
-                    //imps[0].show();
-                    //ImageJFunctions.show((Img)ImageJFunctions.wrapNumeric(imps[0]));
-                    toReturn.add(ImageJFunctions.wrapReal(imps[0]));
-                    //ImageJFunctions.show(toReturn.get(i));
+        try (seriesIterator series = new seriesIterator(arg, match)) {
+            while (series.hasNext()) {
+                Img image = readSeries(series.next());
+                if (image == null) {
+                    return null;
                 }
+                toReturn.add(image);
             }
-
-
-            }catch (FormatException | IOException exc) {
+        } catch (FormatException | IOException exc) {
 
             IJ.error("Sorry, an error occurred: " + exc.getMessage());
-            imps = new ImagePlus[1];
 
         }
 
-            calibration = imp.getCalibration();
-
-            // for (ImagePlus imp : imps) imp.show();
-            // We don't need to show them
-
-
-
         return toReturn;
 
+    }
 
 
+    /**
+     * Turns a single series into an Img object.
+     * <p>
+     *     Stores the calibration of the series, makes sure that the input is a 2D image, then generates an Img
+     *     wrapping the input.
+     * </p>
+     *
+     * @param imp ImagePlus with the series, as returned by seriesIterator
+     * @return Img object with the series, or null if it has the wrong dimensions.
+     */
+    private Img readSeries(ImagePlus imp){
+        calibration = imp.getCalibration();
+        if (imp.getNDimensions() > 3){
+            IJ.error("Number of image dimensions is larger than 3");
+            return null;
+        }
 
+        return ImageJFunctions.wrapReal(imp);
     }
 
 
     /**
      * Does the meat of the processing routine - takes an Img, returns a single double with the result
      *<p>
-     * This function gets an Img. From that, it runs fieldIllumination and parses the result string to get the final
-     * result (i.e. maximum decrease in illumination in the field of view).
+     * This function gets an Img. From that, it runs fieldIllumination and reads the final result from its
+     * illuminationResult (i.e. maximum decrease in illumination in the field of view).
 
      *</p>
      * @param images Img object with the input Z-stack
+     * @param fw Writer object for the output CSV rows
+     * @param name String with the filename written in the CSV rows
+     * @param prefix String with the path and start of the filenames of the flat-field model outputs
      *
      */
 
-    private void processing(List<Img> images, FileWriter fw, String name){
+    private void processing(List<Img> images, Writer fw, String name, String prefix){
         //private void processing(Img<FloatType> image){
 
         long resultssize = 0;
@@ -459,42 +575,96 @@ public class autoFOV<T extends RealType<T>> extends Component implements Command
             ImagePlus input = ImageJFunctions.wrap(image, "test");
             ImageProcessor ip = input.getProcessor();
             input.trimProcessor();
-//
-            input.setProcessor(null, ip.convertToShort(false));
+            // 8/16-bit images are used as they are; only other types (e.g. 32-bit) are converted to 16-bit
+            if (input.getBitDepth() != 8 && input.getBitDepth() != 16) {
+                input.setProcessor(null, ip.convertToShort(false));
+            }
             input.setCalibration(calibration);
             ip.resetMinAndMax();
 
 
-            input.show();
             if (input.getNChannels() > 1){
                 ImagePlus[] multiinput = ChannelSplitter.split(input);
                 System.out.println(multiinput.length);
                 for (int j = 0; j < multiinput.length; j++){
                     ImagePlus newinput = multiinput[j];
                     //newinput.show();
-                    fieldIllumination FI = new fieldIllumination(newinput);
-                    double finalResult = parseResult(FI.getStringData());
-                    results[i] = finalResult;
-                    WriteThisFile(fw, name, j+1, finalResult);
+                    fieldIllumination FI = new fieldIllumination(newinput, getGridBin(), gridMetrics);
+                    illuminationResult result = FI.getResult();
+                    results[i] = result.getMinCornerIntensity();
+                    WriteThisFile(fw, name, j+1, result);
+                    if (modelOrder > 0){
+                        saveModel(FI.getMap(), newinput.getWidth(), newinput.getHeight(), calibration, prefix, j+1, true);
+                    }
                     i++;
                 }
             }else {
-                fieldIllumination FI = new fieldIllumination(input);
-                double finalResult = parseResult(FI.getStringData());
-                results[i] = finalResult;
-                WriteThisFile(fw, name, 1, finalResult);
-            }
-            String[] titles = getImageTitles();
-            for (String title : titles) {
-                Window window = getWindow(title);
-                window.dispose();
-                removeWindow(window);
+                fieldIllumination FI = new fieldIllumination(input, getGridBin(), gridMetrics);
+                illuminationResult result = FI.getResult();
+                results[i] = result.getMinCornerIntensity();
+                WriteThisFile(fw, name, 1, result);
+                if (modelOrder > 0){
+                    saveModel(FI.getMap(), input.getWidth(), input.getHeight(), calibration, prefix, 1, true);
+                }
             }
 
         }
 
     }
 
+    /**
+     * Processes the first plane of each channel of a series a strip at a time, for images too large to be opened whole
+     *<p>
+     * Strips of tileRows full rows are read from the Bio-Formats reader (openProcessors on a region, i.e. openBytes)
+     * and added to an illuminationStats, which keeps only its sums and the block map: memory depends on the width of
+     * the image and the strip height, not on the image size. The result is written as in processing(), and the
+     * illumination map of each channel is saved as a TIFF file.
+     *</p>
+     * @param reader ImageProcessorReader set to the series
+     * @param cal Calibration of the series
+     * @param fw Writer object for the output CSV rows
+     * @param name String with the filename written in the CSV rows
+     * @param prefix String with the path and start of the filename of the maps
+     * @throws FormatException if Bio-Formats can't read a strip
+     * @throws IOException if the file can't be read
+     */
+    private void processTiled(ImageProcessorReader reader, Calibration cal, Writer fw, String name, String prefix)
+            throws FormatException, IOException {
+        int sizeX = reader.getSizeX();
+        int sizeY = reader.getSizeY();
+        // RGB images have several channels stored in each plane
+        int rgb = Math.max(1, reader.getRGBChannelCount());
+        int[][] points = fieldIllumination.getPoints(sizeX, sizeY);
+        // fails early if the grid or the model is asked for without a block size
+        getGridBin();
+
+        int c, y;
+        for (c = 0; c < reader.getSizeC(); c++){
+            illuminationStats stats = new illuminationStats(sizeX, sizeY, points, mapBin);
+            for (y = 0; y < sizeY; y += tileRows){
+                int h = Math.min(tileRows, sizeY - y);
+                ImageProcessor[] ips = reader.openProcessors(reader.getIndex(0, c / rgb, 0), 0, y, sizeX, h);
+                stats.addRows(ips[c % rgb].getPixels(), y, h);
+            }
+            WriteThisFile(fw, name, c + 1, stats.getResult(fieldIllumination.lineHead, cal, gridMetrics));
+            if (modelOrder > 0){
+                // a full size flat field would not fit in memory either
+                saveModel(stats.getMap(), sizeX, sizeY, cal, prefix, c + 1, false);
+            }
+            if (mapBin <= 0){
+                continue;
+            }
+
+            ImagePlus map = new ImagePlus("Illumination map " + name, stats.getMap());
+            Calibration mapCal = cal.copy();
+            mapCal.pixelWidth *= mapBin;
+            mapCal.pixelHeight *= mapBin;
+            map.setCalibration(mapCal);
+            new FileSaver(map).saveAsTiff(prefix + "_C" + (c + 1) + "_illumination_map.tif");
+        }
+    }
+
+
     /**
      * Does the meat of the processing routine - takes an Img, returns a double[][] matrix with all the results
      *<p>
@@ -507,12 +677,12 @@ public class autoFOV<T extends RealType<T>> extends Component implements Command
      * Finally, it returns a matrix with bead IDs, X/Y displacements for that input file.
      *</p>
      * @param images List of Img objects with the input Z-stacks
-     * @param fw FileWriter object for the output CSV file
+     * @param fw Writer object for the output CSV file
      * @param filenames List of Strings with all filenames for the files being processed
      *
      */
 
-    private void processing_omero(List<Img> images, FileWriter fw, List<String> filenames){
+    private void processing_omero(List<Img> images, Writer fw, List<String> filenames){
         //private void processing(Img<FloatType> image){
 
 
@@ -530,6 +700,8 @@ public class autoFOV<T extends RealType<T>> extends Component implements Command
         int i;
         for (i=0;i<images.size();i++) {
             String name = filenames.get(i);
+            // flat-field model outputs go with the summary file
+            String prefix = srcDir[0] + "_FOVresults" + File.separator + name;
             Img image = images.get(i);
             //ImageJFunctions.show(image);
             // Crops the image to get middle of the field of view
@@ -543,30 +715,29 @@ public class autoFOV<T extends RealType<T>> extends Component implements Command
             ip.resetMinAndMax();
 
 
-            input.show();
             if (input.getNChannels() > 1){
                 ImagePlus[] multiinput = ChannelSplitter.split(input);
                 System.out.println(multiinput.length);
                 for (int j = 0; j < multiinput.length; j++){
                     ImagePlus newinput = multiinput[j];
                     //newinput.show();
-                    fieldIllumination FI = new fieldIllumination(newinput);
-                    double finalResult = parseResult(FI.getStringData());
-                    results[i] = finalResult;
-                    WriteThisFile(fw, name, j+1, finalResult);
+                    fieldIllumination FI = new fieldIllumination(newinput, getGridBin(), gridMetrics);
+                    illuminationResult result = FI.getResult();
+                    results[i] = result.getMinCornerIntensity();
+                    WriteThisFile(fw, name, j+1, result);
+                    if (modelOrder > 0){
+                        saveModel(FI.getMap(), newinput.getWidth(), newinput.getHeight(), calibration, prefix, j+1, true);
+                    }
                     i++;
                 }
             }else {
-                fieldIllumination FI = new fieldIllumination(input);
-                double finalResult = parseResult(FI.getStringData());
-                results[i] = finalResult;
-                WriteThisFile(fw, name, 1, finalResult);
-            }
-            String[] titles = getImageTitles();
-            for (String title : titles) {
-                Window window = getWindow(title);
-                window.dispose();
-                removeWindow(window);
+                fieldIllumination FI = new fieldIllumination(input, getGridBin(), gridMetrics);
+                illuminationResult result = FI.getResult();
+                results[i] = result.getMinCornerIntensity();
+                WriteThisFile(fw, name, 1, result);
+                if (modelOrder > 0){
+                    saveModel(FI.getMap(), input.getWidth(), input.getHeight(), calibration, prefix, 1, true);
+                }
             }
 
         }
@@ -578,51 +749,18 @@ public class autoFOV<T extends RealType<T>> extends Component implements Command
 
 
 
-    /**
-     * Parses the return string from fieldIllumination.getStringData() into the value we're interested
-     * <p>
-     *     Checks all 4 corners of the image for the lowest relative illumination compared to the maximum value
-     *     in the image and returns that as the result.
-     * </p>
-     * @param stats output string from fieldIllumination
-     * @return minVal double with the minimum relative intensity from all 4 corners of the image
-     */
-    private double parseResult(String stats){
-        System.out.println(stats);
-        double minVal = 1.0;
-        String[] lines = stats.split("\n");
-
-        int i;
-        int init_line = 0;
-        for (i=0; i< lines.length; i++){
-            if (lines[i].startsWith("Top-left")){
-                init_line = i;
-                break;
-            }
-        }
-        for (i=init_line;i<init_line+4;i++){
-            String[] fields = lines[i].split("\t");
-            double currval = Double.parseDouble(fields[2]);
-            if (currval < minVal){
-                minVal = currval;
-            }
-        }
-        return minVal;
-    }
-
-
     /**
      * Writes a value to an output file.
      *<p>
      * Given a FileWriter, we append the filename of the image that was processed and the results for each bead
      * processed in that image.
      *</p>
-     * @param fileWriter FileWriter object for the output file
+     * @param fileWriter Writer object for the output file
      * @param filename string with the filename of the image currently being processed
-     * @param minIntensity double value with the results for the current image
+     * @param result illuminationResult for the current image (its lowest relative corner intensity is written)
      */
 
-    private static void WriteThisFile(FileWriter fileWriter, String filename, int channel, double minIntensity){
+    private static void WriteThisFile(Writer fileWriter, String filename, int channel, illuminationResult result){
 
 
 
@@ -634,7 +772,7 @@ public class autoFOV<T extends RealType<T>> extends Component implements Command
                 fileWriter.append(COMMA_DELIMITER);
                 fileWriter.append(String.valueOf(channel));
                 fileWriter.append(COMMA_DELIMITER);
-                fileWriter.append(String.valueOf(minIntensity));
+                fileWriter.append(String.valueOf(result.getMinCornerIntensity()));
                 fileWriter.append(NEW_LINE_SEPARATOR);
 
 
@@ -4,22 +4,17 @@ package uk.ac.warwick.camdu;
 
 import ij.IJ;
 import ij.ImagePlus;
-import ij.gui.Roi;
 import ij.io.FileSaver;
 import ij.measure.Calibration;
-import ij.plugin.filter.MaximumFinder;
+import ij.process.FloatProcessor;
 import ij.process.ImageProcessor;
 import loci.formats.FormatException;
-import loci.plugins.BF;
-import loci.plugins.in.ImportProcess;
-import loci.plugins.in.ImporterOptions;
 import net.imagej.ImageJ;
 import net.imagej.ops.Ops;
 import net.imagej.ops.special.computer.Computers;
 import net.imagej.ops.special.computer.UnaryComputerOp;
 import net.imglib2.FinalDimensions;
 import net.imglib2.FinalInterval;
-import net.imglib2.RandomAccess;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.img.Img;
 import net.imglib2.img.display.imagej.ImageJFunctions;
@@ -34,14 +29,20 @@ import java.awt.*;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
 import java.sql.Timestamp;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
-import static ij.WindowManager.*;
 import static java.lang.Math.ceil;
 import static java.lang.Math.round;
 
@@ -66,6 +67,8 @@ public class autoPSF<T extends RealType<T>> extends Component implements Command
 
     private static final String COMMA_DELIMITER = ",";
     private static final String NEW_LINE_SEPARATOR = "\n";
+    // smallest number of beads with a 95% confidence interval on the median (see dataTricks)
+    private static final int MIN_ADAPTIVE_BEADS = 8;
 
     /**
      * All parameters are the user-defined inputs from Fiji
@@ -118,6 +121,25 @@ public class autoPSF<T extends RealType<T>> extends Component implements Command
      */
     @Parameter(label = "Minimum bead separation (px):")
     private int minSeparation = 15;
+    /**
+     * fitThreads: integer, number of beads cropped and fitted at the same time. 1 means one bead after the other.
+     */
+    @Parameter(label = "Bead fitting threads:")
+    private int fitThreads = 1;
+    /**
+     * fitMode: integer, how the FWHMs are measured. 0 fits the line profiles through the brightest voxel, 1 fits a 3D
+     * Gaussian to the whole crop and 2 a 3D Gaussian that can be rotated around the optical axis (astigmatic PSFs).
+     */
+    @Parameter(label = "PSF fit (0 = line profiles, 1 = 3D Gaussian, 2 = rotated 3D Gaussian):")
+    private int fitMode = 0;
+    /**
+     * targetCI: double, target half-width of the 95% confidence interval on the median FWHM of each axis, in
+     * calibrated units. 0 fits the given number of beads; above 0, "number of beads" is only the number fitted before
+     * the interval is first checked, and more beads are fitted (brightest first) until the interval is reached on all
+     * axes or there are no candidates left.
+     */
+    @Parameter(label = "Target 95% CI half-width on median FWHM (0 = fixed number of beads):")
+    private double targetCI = 0;
 
     private Calibration calibration;
     /**
@@ -129,6 +151,24 @@ public class autoPSF<T extends RealType<T>> extends Component implements Command
     @Parameter(label = "(Optional) match string for series:")
     private String match = "";
 
+    /**
+     * batchThreads: integer, number of files read and processed at the same time.
+     */
+    @Parameter(label = "Files processed at the same time:")
+    private int batchThreads = 1;
+    /**
+     * heapBudgetMB: long, memory (in MB) that files being processed at the same time can use. 0 means automatic
+     * (3/4 of the maximum heap size).
+     */
+    @Parameter(label = "Memory budget for batch (MB, 0 = automatic):")
+    private long heapBudgetMB = 0;
+    /**
+     * cropOnRead: boolean, if true only the central 300x300 region and the selected channel are read from the file,
+     * instead of reading everything and cropping afterwards.
+     */
+    @Parameter(label = "Read only the analysed region:")
+    private boolean cropOnRead = true;
+
 
 
 
@@ -205,6 +245,33 @@ public class autoPSF<T extends RealType<T>> extends Component implements Command
 
     }
 
+    /**
+     * setFitThreads: only used when running this as a Java program rather than in Fiji.
+     * @param nthreads number of beads to be fitted at the same time
+     */
+    private void setFitThreads(int nthreads){
+        fitThreads = nthreads;
+
+    }
+
+    /**
+     * setFitMode: only used when running this as a Java program rather than in Fiji.
+     * @param mode 0 for line profiles, 1 for a 3D Gaussian fit, 2 for a rotated 3D Gaussian fit
+     */
+    private void setFitMode(int mode){
+        fitMode = mode;
+
+    }
+
+    /**
+     * setTargetCI: only used when running this as a Java program rather than in Fiji.
+     * @param ci target half-width of the confidence interval on the median FWHMs, 0 to fit a fixed number of beads
+     */
+    private void setTargetCI(double ci){
+        targetCI = ci;
+
+    }
+
     /**
      * setDir: only used when running this as a Java program rather than in Fiji.
      * @param sourceDir directory where source images are
@@ -247,6 +314,9 @@ public class autoPSF<T extends RealType<T>> extends Component implements Command
         JTextField corrZField = new JTextField("1.168",5);
         JTextField sepField = new JTextField("15",5);
         JTextField noiseTolField = new JTextField("100",5);
+        JTextField fitThreadsField = new JTextField("1",5);
+        JTextField fitModeField = new JTextField("0",5);
+        JTextField targetCIField = new JTextField("0",5);
 
         JButton browseBtn = new JButton("Browse:");
 
@@ -285,6 +355,15 @@ public class autoPSF<T extends RealType<T>> extends Component implements Command
         myPanel.add(new JLabel("Noise threshold:"));
         myPanel.add(noiseTolField);
 
+        myPanel.add(new JLabel("Bead fitting threads:"));
+        myPanel.add(fitThreadsField);
+
+        myPanel.add(new JLabel("PSF fit (0 = line profiles, 1 = 3D Gaussian, 2 = rotated 3D Gaussian):"));
+        myPanel.add(fitModeField);
+
+        myPanel.add(new JLabel("Target 95% CI half-width on median FWHM (0 = fixed number of beads):"));
+        myPanel.add(targetCIField);
+
         myPanel.add(new JLabel("Please select your files:"));
         myPanel.add(browseBtn);
 
@@ -302,6 +381,9 @@ public class autoPSF<T extends RealType<T>> extends Component implements Command
         setChannel(Integer.parseInt(channelField.getText()));
         setMinSep(Integer.parseInt(sepField.getText()));
         setNoiseTol(Double.parseDouble(noiseTolField.getText()));
+        setFitThreads(Integer.parseInt(fitThreadsField.getText()));
+        setFitMode(Integer.parseInt(fitModeField.getText()));
+        setTargetCI(Double.parseDouble(targetCIField.getText()));
 
 
 
@@ -331,6 +413,9 @@ public class autoPSF<T extends RealType<T>> extends Component implements Command
         JTextField channelField = new JTextField("1",5);
         JTextField sepField = new JTextField("15",5);
         JTextField noiseTolField = new JTextField("100",5);
+        JTextField fitThreadsField = new JTextField("1",5);
+        JTextField fitModeField = new JTextField("0",5);
+        JTextField targetCIField = new JTextField("0",5);
 
 
 
@@ -367,6 +452,15 @@ public class autoPSF<T extends RealType<T>> extends Component implements Command
         myPanel.add(new JLabel("Noise threshold:"));
         myPanel.add(noiseTolField);
 
+        myPanel.add(new JLabel("Bead fitting threads:"));
+        myPanel.add(fitThreadsField);
+
+        myPanel.add(new JLabel("PSF fit (0 = line profiles, 1 = 3D Gaussian, 2 = rotated 3D Gaussian):"));
+        myPanel.add(fitModeField);
+
+        myPanel.add(new JLabel("Target 95% CI half-width on median FWHM (0 = fixed number of beads):"));
+        myPanel.add(targetCIField);
+
 
 
         myPanel.setLayout(new BoxLayout(myPanel, BoxLayout.Y_AXIS));
@@ -383,6 +477,9 @@ public class autoPSF<T extends RealType<T>> extends Component implements Command
         setChannel(Integer.parseInt(channelField.getText()));
         setMinSep(Integer.parseInt(sepField.getText()));
         setNoiseTol(Double.parseDouble(noiseTolField.getText()));
+        setFitThreads(Integer.parseInt(fitThreadsField.getText()));
+        setFitMode(Integer.parseInt(fitModeField.getText()));
+        setTargetCI(Double.parseDouble(targetCIField.getText()));
 
 
 
@@ -440,6 +537,14 @@ public class autoPSF<T extends RealType<T>> extends Component implements Command
             fileWriter = new FileWriter(FilePath);
             //Write the CSV file header
             fileWriter.append("filename").append(COMMA_DELIMITER).append("bead_id").append(COMMA_DELIMITER).append("x_resolution").append(COMMA_DELIMITER).append("y_resolution").append(COMMA_DELIMITER).append("z_resolution");
+            if (fitMode > 0){
+                // 3D fit: centre of the bead in its crop (the bead tiff file) and quality of the fit
+                fileWriter.append(COMMA_DELIMITER).append("fit_centre_x").append(COMMA_DELIMITER).append("fit_centre_y").append(COMMA_DELIMITER).append("fit_centre_z").append(COMMA_DELIMITER).append("fit_rms_residual");
+            }
+            if (fitMode == 2){
+                // rotated fit: the resolutions above are projected on X/Y, the widths along the PSF axes are here
+                fileWriter.append(COMMA_DELIMITER).append("fit_angle_deg").append(COMMA_DELIMITER).append("major_axis_resolution").append(COMMA_DELIMITER).append("minor_axis_resolution");
+            }
             //Add a new line separator after the header
             fileWriter.append(NEW_LINE_SEPARATOR);
 
@@ -480,38 +585,83 @@ public class autoPSF<T extends RealType<T>> extends Component implements Command
         String selectedDir = srcDir[0].getParent();
         String resultPath = selectedDir + File.separator + sdf.format(timestamp)+"summary_PSF.csv";
         FileWriter fw = printOutputHeader(resultPath);
-        List<Img> currentFiles;
-
-        for (final File fileEntry : Objects.requireNonNull(srcDir)){
-
-            //if (fileEntry.getName().contains(match)) {
 
-                System.out.println("Opening file: " + fileEntry.getName());
-                String path = fileEntry.getPath();
-
-                currentFiles = readFile(path);
-                if (currentFiles == null) {
-                    continue;
-                }
-                System.out.println("Processing file: " + fileEntry.getName());
-
-                processing(currentFiles, path, fw,fileEntry.getName() );
-                System.out.println("Writing output: ");
-
-
-                //WriteFile(fw, fileEntry.getName(), finalResult);
+        // measurements are global ImageJ settings: set them once here, not from the concurrent file tasks
+        IJ.run("Set Measurements...", "min centroid integrated redirect=None decimal=3");
+        // several files can be read and processed at the same time; rows still come out in file order
+        batchExecutor batch = new batchExecutor(batchThreads, heapBudgetMB);
+        batch.run(Objects.requireNonNull(srcDir), this::processFile, fw);
 
 
-            //}
+        // skip irrelevant filenames, do stuff for relevant ones
 
+        CloseFile(fw);
+    }
 
 
+    /**
+     * Reads and processes a single file, returning its rows for the summary file.
+     *<p>
+     * Used by the batchExecutor in run(), possibly for several files at the same time. The series of the file are read
+     * and processed one at a time. The work is done on a copy of this object (see copySettings), since readSeries
+     * stores the calibration of the current series in the object.
+     *</p>
+     * @param fileEntry File to be processed
+     * @return String with the CSV rows for this file
+     * @throws IOException if the file could not be read or a series has the wrong dimensions
+     */
+    private String processFile(File fileEntry) throws IOException {
+        autoPSF<T> worker = copySettings();
+        System.out.println("Opening file: " + fileEntry.getName());
+        String path = fileEntry.getPath();
+
+        StringWriter rows = new StringWriter();
+        // one series at a time: each series is processed and released before the next one is read
+        try (seriesIterator series = worker.openSeries(path)) {
+            while (series.hasNext()) {
+                ImagePlus imp = series.next();
+                Img image = worker.readSeries(imp);
+                if (image == null) {
+                    throw new IOException("Wrong image dimensions in " + fileEntry.getName());
+                }
+                System.out.println("Processing file: " + fileEntry.getName() + ", series " + series.getSeriesLabel());
+                projectionAccumulator projection = series.getProjection();
+                worker.processing(Collections.singletonList(image),
+                        Collections.singletonList(projection == null ? null : projection.getMax()),
+                        path, rows, fileEntry.getName());
+                imp.flush();
+            }
+        } catch (FormatException e) {
+            throw new IOException(e);
         }
+        System.out.println("Writing output: " + fileEntry.getName());
+        return rows.toString();
+    }
 
 
-        // skip irrelevant filenames, do stuff for relevant ones
-
-        CloseFile(fw);
+    /**
+     * Creates a new autoPSF with the same parameters as this one, so that files processed at the same time don't share
+     * any per-file state.
+     * @return worker autoPSF object with the same parameters
+     */
+    private autoPSF<T> copySettings(){
+        autoPSF<T> worker = new autoPSF<>();
+        worker.ij = ij;
+        worker.beads = beads;
+        worker.corr_factor_x = corr_factor_x;
+        worker.corr_factor_y = corr_factor_y;
+        worker.corr_factor_z = corr_factor_z;
+        worker.beadSize = beadSize;
+        worker.channelChoice = channelChoice;
+        worker.noiseTol = noiseTol;
+        worker.minSeparation = minSeparation;
+        worker.fitThreads = fitThreads;
+        worker.fitMode = fitMode;
+        worker.targetCI = targetCI;
+        worker.srcDir = srcDir;
+        worker.match = match;
+        worker.cropOnRead = cropOnRead;
+        return worker;
     }
 
 
@@ -568,6 +718,7 @@ public class autoPSF<T extends RealType<T>> extends Component implements Command
 
 
 
+        IJ.run("Set Measurements...", "min centroid integrated redirect=None decimal=3");
         processing_omero(list_images, srcDir[0].toString(), filenames,fw);
         System.out.println("Writing output: ");
 
@@ -590,81 +741,82 @@ public class autoPSF<T extends RealType<T>> extends Component implements Command
 
 
     /**
-     * Reads a string with the path to an image file and returns an Img object.
+     * Reads a string with the path to an image file and returns a list of Img objects, one per matching series.
      * <p>
-     *     We use bioformats to open an ImagePlus, make sure that the input is a Z-stack, then generate an Img
-     *     converting the input to floats. If any of that fails, we catch an exception.
+     *     Opens the series one after the other with a seriesIterator and converts each of them with readSeries. This
+     *     keeps every matching series in memory at once, so it is only used when all of them are needed together
+     *     (autoQC_omero); run() streams the series one at a time instead. If anything fails, we catch an exception.
      * </p>
      *
      * @param arg String with the path to file to be read.
-     * @return imgFinal Img object with a Z-stack from the input file.
+     * @return toReturn List of Img objects from the input file, or null if a series has the wrong dimensions.
      */
 
     public java.util.List<Img> readFile(String arg) {
 
-        //  OpenDialog od = new OpenDialog("Open Image File...", arg);
-        //  String dir = od.getDirectory();
-        //  String name = od.getFileName();
-        //  String id = dir + name;
-
         List<Img> toReturn = new ArrayList<>();
-
-        ImagePlus[] imps;
-
-        //ImagePlusReader test = new ImagePlusReader();
-
-        ImagePlus imp = new ImagePlus();
-        try {
-            //ImageReader ir = new ImageReader();
-            //ir.setId(arg);
-            ImporterOptions options = new ImporterOptions();
-            options.setId(arg);
-            options.setOpenAllSeries(true);
-            ImportProcess process = new ImportProcess(options);
-            process.execute();
-            options.setOpenAllSeries(false);
-            int i;
-            imps = new ImagePlus[1];
-            for (i = 0; i < process.getSeriesCount(); i++) {
-                if(process.getSeriesLabel(i).contains(match)){
-                    //System.out.println(process.getSeriesLabel(i));
-                    ImporterOptions int_options = new ImporterOptions();
-                    int_options.setId(arg);
-                    int_options.setSeriesOn(i,true);
-                    imps = BF.openImagePlus(int_options);
-                    imp = imps[0];
-                    //System.out.println(imp.getProperties().toString());
-                    calibration = imp.getCalibration();
-                    if (imp.getNDimensions() < 3){
-                        IJ.error("Number of image dimensions is less than 3");
-                        return null;
-                    }
-
-                    toReturn.add(ImageJFunctions.convertFloat(imps[0]));
+        try (seriesIterator series = openSeries(arg)) {
+            while (series.hasNext()) {
+                Img image = readSeries(series.next());
+                if (image == null) {
+                    return null;
                 }
+                toReturn.add(image);
             }
-
-
-        }catch (FormatException | IOException exc) {
+        } catch (FormatException | IOException exc) {
 
             IJ.error("Sorry, an error occurred: " + exc.getMessage());
-            imps = new ImagePlus[1];
 
         }
 
-        calibration = imp.getCalibration();
-
-
-        // for (ImagePlus imp : imps) imp.show();
-        // We don't need to show them
-
+        return toReturn;
 
+    }
 
-        return toReturn;
 
+    /**
+     * Opens the matching series of a file one at a time.
+     * <p>
+     *     If cropOnRead is set, the seriesIterator is asked for the central 300x300 region and the selected channel
+     *     only, which is all that processing uses. The crop is the same one processing does, so the results don't
+     *     change; processing just finds the image is already 300x300 (or smaller).
+     * </p>
+     *
+     * @param arg String with the path to file to be read.
+     * @return series seriesIterator over the matching series of the file
+     * @throws FormatException if Bio-Formats can't read the file
+     * @throws IOException if the file can't be read
+     */
+    private seriesIterator openSeries(String arg) throws FormatException, IOException {
+        seriesIterator series = new seriesIterator(arg, match);
+        if (cropOnRead) {
+            series.setCrop(300, 300);
+            series.setProjection(0);
+            series.setChannel(channelChoice - 1);
+        }
+        return series;
+    }
 
 
+    /**
+     * Turns a single series into an Img object.
+     * <p>
+     *     Stores the calibration of the series, makes sure that the input is a Z-stack, then wraps it as an Img of
+     *     its own pixel type (no copy). The stages after this work on views of these 8/16-bit pixels, and only the bead
+     *     crops handed to the fitting routines are seen as floats (converted on the fly by ImageJFunctions.wrapFloat).
+     * </p>
+     *
+     * @param imp ImagePlus with the series, as returned by seriesIterator
+     * @return Img object with the series, or null if it has the wrong dimensions.
+     */
+    private Img readSeries(ImagePlus imp){
+        calibration = imp.getCalibration();
+        if (imp.getNDimensions() < 3){
+            IJ.error("Number of image dimensions is less than 3");
+            return null;
+        }
 
+        return ImageJFunctions.wrapReal(imp);
     }
 
 
@@ -679,9 +831,11 @@ public class autoPSF<T extends RealType<T>> extends Component implements Command
      * it returns a matrix with bead IDs, X/Y/Z resolutions for that input file.
      *</p>
      * @param images Img object with the input Z-stack
+     * @param projections List of max projections already accumulated while reading (same order as images), or null;
+     *                    for a null projection, the max projection is computed from the image
      * @param path String with the path to the original image file that is being processed
      */
-    private void processing(List<Img> images, String path, FileWriter fw, String name){
+    private void processing(List<Img> images, List<FloatProcessor> projections, String path, Writer fw, String name){
 
 
 
@@ -709,7 +863,6 @@ public class autoPSF<T extends RealType<T>> extends Component implements Command
 
 
 
-        IJ.run("Set Measurements...", "min centroid integrated redirect=None decimal=3");
         System.out.println("Opened file, processing");
 
         //ImageJFunctions.show(image);
@@ -756,119 +909,47 @@ public class autoPSF<T extends RealType<T>> extends Component implements Command
             cropped  = ij.op().transform().crop(image,interval, true);
             System.out.println(cropped.numDimensions());
 //        ImageJFunctions.show(cropped);
-            int[] projected_dimensions;
+            beadDetector detector;
+            if (projections != null && projections.get(j) != null){
+                // the max projection was already accumulated while the planes were being read
+                detector = new beadDetector(projections.get(j));
+            }else {
+                int[] projected_dimensions;
 //            if (image.numDimensions() > 3){
 //                projected_dimensions = new int[cropped.numDimensions() - 2];
 //            }else{
-            projected_dimensions = new int[cropped.numDimensions() - 1];
+                projected_dimensions = new int[cropped.numDimensions() - 1];
 //            }
 
 
-            int dim = 2;
-            int d;
-            for (d = 0; d < cropped.numDimensions(); ++d) {
-                if (d != dim) projected_dimensions[d] = (int) cropped.dimension(d);
-            }
-
-            Img<FloatType> proj = ij.op().create().img(
-                    new FinalDimensions(projected_dimensions), new FloatType());
-
-            UnaryComputerOp maxOp = Computers.unary(ij.op(),Ops.Stats.Max.class,RealType.class, Iterable.class);
-
-            Img<T> projection = (Img<T>) ij.op().transform().project(proj, cropped, maxOp, 2);
-            ImageJFunctions.show(proj);
-            ImagePlus imp = IJ.getImage();
-            MaximumFinder mf = new MaximumFinder();
-            Polygon pol = mf.getMaxima(imp.getProcessor(),(int)noiseTol,true);
-
-            // detect beads and measure for intensity and x/y coords
-            //IJ.run("Find Maxima...", "noise="+noiseTol+" output=[Point Selection] exclude");
-            //ImagePlus imp = IJ.getImage();
-            //IJ.saveAsTiff(imp,path+"_beads"+File.separator+"allbeads"+".tif");
-            // Gets coordinates of ROIs
-
-            //Roi test = imp.getRoi();
-            //FloatPolygon floatPolygon = test.getFloatPolygon();
-            float[][] resultsTable = new float[pol.npoints][3];
-
-            // loops over ROIs and get pixel Vvlue at their coordinate.
-            for (i=0; i < pol.npoints; i++){
-
-                float intx = pol.xpoints[i];
-                float inty = pol.ypoints[i];
-                final RandomAccess<FloatType> r = proj.randomAccess();
-                r.setPosition((int) intx,0);
-                r.setPosition((int) inty,1);
-                FloatType pixel = r.get();
-
-                resultsTable[i][0] = intx;
-                resultsTable[i][1] = inty;
-                resultsTable[i][2] = pixel.get();
-
-            }
-
-
-
-            // Sorts the Pixel coordinates by the intensity value.
-            //java.util.Arrays.sort(resultsTable, Comparator.comparingDouble(a -> a[2]));
-            java.util.Arrays.sort(resultsTable, (v1,v2)->Float.compare(v2[2],v1[2]));
-
-
-            int countSpots = 0;
-            int firstPosition = 0;
-            double[] goodX = new double[beads];
-            double[] goodY = new double[beads];
-
-
-
-
-            // selects the selected number of pixels based on the specified criteria
-            while (countSpots < beads && firstPosition < resultsTable.length ){
-
-                float x1 = resultsTable[firstPosition][0];
-
-                float y1 = resultsTable[firstPosition][1];
-
-                int nextPosition = firstPosition + 1;
-                boolean valid = true;
-
-                while (valid && nextPosition < resultsTable.length){
-
-                    float x2 = resultsTable[nextPosition][0];
-                    float y2 = resultsTable[nextPosition][1];
-
-                    double dist_sq = Math.pow(x1 - x2, 2) + Math.pow(y1 - y2, 2);
-
-                    if (x2 != x1 && y2 != y1 && dist_sq < Math.pow(minSeparation,2)){
-
-                        valid = false;
-
-                    }
-
-                    nextPosition++;
-
-
+                int dim = 2;
+                int d;
+                for (d = 0; d < cropped.numDimensions(); ++d) {
+                    if (d != dim) projected_dimensions[d] = (int) cropped.dimension(d);
                 }
 
-                if (valid){
-                    Roi beadROI  = new Roi(resultsTable[firstPosition][0]-15,resultsTable[firstPosition][1]-15,30,30);
-                    ImageProcessor ip = imp.getProcessor();
-                    //ip.setRoi(beadROI);
-                    ip.setValue(100000);
-                    ip.draw(beadROI);
-                    goodX[countSpots] = resultsTable[firstPosition][0];
-                    goodY[countSpots] = resultsTable[firstPosition][1];
-                    countSpots++;
-
-                }
+                Img<FloatType> proj = ij.op().create().img(
+                        new FinalDimensions(projected_dimensions), new FloatType());
 
-                firstPosition++;
+                UnaryComputerOp maxOp = Computers.unary(ij.op(),Ops.Stats.Max.class,RealType.class, Iterable.class);
 
+                Img<T> projection = (Img<T>) ij.op().transform().project(proj, cropped, maxOp, 2);
+                detector = new beadDetector(proj);
+            }
+            detector.detect(noiseTol);
+            float[] candX = detector.getX();
+            float[] candY = detector.getY();
+
+            // selects the selected number of pixels based on the specified criteria (all valid ones, brightest
+            // first, when sampling until the target confidence interval is reached)
+            int[] selected = new beadSelector(candX, candY, minSeparation)
+                    .select(targetCI > 0 ? Integer.MAX_VALUE : beads);
+            double[] goodX = new double[selected.length];
+            double[] goodY = new double[selected.length];
+            for (int countSpots = 0; countSpots < selected.length; countSpots++) {
+                goodX[countSpots] = candX[selected[countSpots]];
+                goodY[countSpots] = candY[selected[countSpots]];
             }
-
-
-            IJ.saveAsTiff(imp,path+"_beads"+File.separator+"allbeads"+".tif");
-            double[][] finalResults  = new double[beads][4];
 
 
 
@@ -887,75 +968,19 @@ public class autoPSF<T extends RealType<T>> extends Component implements Command
                 cropSize = 20;
             }
 
-            //ij.ui().showUI();
-            // loops over selected pixels and crops out the PSFs
-            for (i = 0; i < goodX.length; i++){
-
-
-                minx = 0;
-                miny = 0;
-                minz = 0;
-                maxx = cropSize;
-                maxy = cropSize;
-                maxz = cropped.dimension(2);
-                if (goodX[i]>cropSize/2 && goodX[i]<cropped.dimension(0)-cropSize){
-                    minx = (long) ceil(goodX[i]-cropSize/2);
-                }
-                if (goodY[i]>cropSize/2 && goodY[i]<cropped.dimension(1)-cropSize){
-                    miny = (long) ceil(goodY[i]-cropSize/2);
-                }
-
-                if (goodX[i]>=cropped.dimension(0)-cropSize){
-                    minx = cropped.dimension(0)-cropSize;
-                }
-
-                if (goodY[i]>=cropped.dimension(1)-cropSize){
-                    miny = cropped.dimension(1)-cropSize;
-                }
-                interval = FinalInterval.createMinSize(minx,miny,minz,maxx,maxy,maxz);
-
-                //interval = FinalInterval.createMinSize(0,0,0,cropSize,cropSize,cropped.dimension(2));
-
-
-                RandomAccessibleInterval newcropped  = ij.op().transform().crop(cropped,interval, true);
-                ImagePlus IPcropped = ImageJFunctions.wrapFloat(newcropped, "test");
-                IPcropped.setDimensions(1, (int) newcropped.dimension(2), 1);
-                IPcropped.setOpenAsHyperStack(true);
-                ImageProcessor ip = IPcropped.getProcessor();
-                ip.resetMinAndMax();
-
-                IPcropped.setCalibration(calibration);
-                System.out.println(calibration.pixelDepth);
-                System.out.println(calibration.toString());
-
-
-                FileSaver fs = new FileSaver(IPcropped);
-                fs.saveAsTiff(path+"_beads"+File.separator+"bead_"+i+".tif");
-                // crops stack around the specified coordinates
-
-                // calls GetRes to extract the resolution form the PSFs
-                double[] qcMetrics = GetRes(IPcropped);
-
-
-                // multiply by the correction factor
-                double xRes = qcMetrics[0] * corr_factor_x;
-                double yRes = qcMetrics[1] * corr_factor_y;
-                double zRes = qcMetrics[2] * corr_factor_z;
-
-                finalResults[i][0] = i;
-                finalResults[i][1] = xRes;
-                finalResults[i][2] = yRes;
-                finalResults[i][3] = zRes;
-
-
+            // crops out the PSFs around the selected pixels and fits them (in parallel if fitThreads > 1)
+            double[][] finalResults;
+            String beadPrefix = path+"_beads"+File.separator+"bead_";
+            if (targetCI > 0){
+                finalResults = fitBeadsAdaptive(cropped, goodX, goodY, cropSize, beadPrefix);
+            } else {
+                finalResults = fitBeads(cropped, goodX, goodY, 0, goodX.length, cropSize, beadPrefix);
             }
-
-            String[] titles = getImageTitles();
-            for (String title:titles){
-                Window window = getWindow(title);
-                window.dispose();
-                removeWindow(window);
+            for (double[] beadResult : finalResults) {
+                detector.markBead(goodX[(int) beadResult[0]], goodY[(int) beadResult[0]], 100000);
             }
+            detector.save(path+"_beads"+File.separator+"allbeads"+".tif");
+
             toReturn[j] = finalResults;
             WriteThisFile(fw,name,finalResults);
         }
@@ -980,11 +1005,11 @@ public class autoPSF<T extends RealType<T>> extends Component implements Command
      * @param images List of Img objects with the input Z-stacks
      * @param path String with the path to the original image file that is being processed
      * @param filenames List of Strings with all filenames for the files being processed
-     * @param fw FileWriter object for the output CSV file
+     * @param fw Writer object for the output CSV file
      *
      */
 
-    private void processing_omero(List<Img> images, String path, List<String> filenames, FileWriter fw){
+    private void processing_omero(List<Img> images, String path, List<String> filenames, Writer fw){
         //private void processing(Img<FloatType> image){
 
         double[][][] toReturn = new double[images.size()][][];
@@ -1010,7 +1035,6 @@ public class autoPSF<T extends RealType<T>> extends Component implements Command
 
 
 
-        IJ.run("Set Measurements...", "min centroid integrated redirect=None decimal=3");
         System.out.println("Opened file, processing");
 
         //ImageJFunctions.show(image);
@@ -1072,105 +1096,26 @@ public class autoPSF<T extends RealType<T>> extends Component implements Command
             UnaryComputerOp maxOp = Computers.unary(ij.op(),Ops.Stats.Max.class,RealType.class, Iterable.class);
 
             Img<T> projection = (Img<T>) ij.op().transform().project(proj, cropped, maxOp, 2);
-            ImageJFunctions.show(proj);
-
-            ImagePlus imp = IJ.getImage();
-            MaximumFinder mf = new MaximumFinder();
-            Polygon pol = mf.getMaxima(imp.getProcessor(),(int)noiseTol,true);
+            beadDetector detector = new beadDetector(proj);
+            detector.detect(noiseTol);
+            float[] candX = detector.getX();
+            float[] candY = detector.getY();
 
             System.out.println("number of points detected:");
-            System.out.println(pol.npoints);
-            // detect beads and measure for intensity and x/y coords
-            //IJ.run("Find Maxima...", "noise="+noiseTol+" output=[Point Selection] exclude");
-            //ImagePlus imp = IJ.getImage();
-            //IJ.saveAsTiff(imp,path+"_beads"+File.separator+"allbeads"+".tif");
-            // Gets coordinates of ROIs
-
-            //Roi test = imp.getRoi();
-            //FloatPolygon floatPolygon = test.getFloatPolygon();
-            float[][] resultsTable = new float[pol.npoints][3];
-
-            // loops over ROIs and get pixel Vvlue at their coordinate.
-            for (i=0; i < pol.npoints; i++){
-
-                float intx = pol.xpoints[i];
-                float inty = pol.ypoints[i];
-                System.out.println(i +" "+ intx +" "+ inty);
-                final RandomAccess<FloatType> r = proj.randomAccess();
-                r.setPosition((int) intx,0);
-                r.setPosition((int) inty,1);
-                FloatType pixel = r.get();
-
-                resultsTable[i][0] = intx;
-                resultsTable[i][1] = inty;
-                resultsTable[i][2] = pixel.get();
-
-            }
-
-
-
-            // Sorts the Pixel coordinates by the intensity value.
-            //java.util.Arrays.sort(resultsTable, Comparator.comparingDouble(a -> a[2]));
-            java.util.Arrays.sort(resultsTable, (v1,v2)->Float.compare(v2[2],v1[2]));
-
-
-            int countSpots = 0;
-            int firstPosition = 0;
-            double[] goodX = new double[beads];
-            double[] goodY = new double[beads];
-
-
-
-
-            // selects the selected number of pixels based on the specified criteria
-            while (countSpots < beads && firstPosition < resultsTable.length ){
-
-                float x1 = resultsTable[firstPosition][0];
-
-                float y1 = resultsTable[firstPosition][1];
-
-                int nextPosition = firstPosition + 1;
-                boolean valid = true;
-
-                while (valid && nextPosition < resultsTable.length){
-
-                    float x2 = resultsTable[nextPosition][0];
-                    float y2 = resultsTable[nextPosition][1];
-
-                    double dist_sq = Math.pow(x1 - x2, 2) + Math.pow(y1 - y2, 2);
-
-                    if (x2 != x1 && y2 != y1 && dist_sq < Math.pow(minSeparation,2)){
-
-                        valid = false;
-
-                    }
-
-                    nextPosition++;
-
-
-                }
-
-                if (valid){
-                    Roi beadROI  = new Roi(resultsTable[firstPosition][0]-15,resultsTable[firstPosition][1]-15,30,30);
-                    ImageProcessor ip = imp.getProcessor();
-                    //ip.setRoi(beadROI);
-                    ip.setValue(100000);
-                    ip.draw(beadROI);
-                    goodX[countSpots] = resultsTable[firstPosition][0];
-                    goodY[countSpots] = resultsTable[firstPosition][1];
-                    countSpots++;
-
-                }
-
-                firstPosition++;
-
+            System.out.println(candX.length);
+
+            // selects the selected number of pixels based on the specified criteria (all valid ones, brightest
+            // first, when sampling until the target confidence interval is reached)
+            int[] selected = new beadSelector(candX, candY, minSeparation)
+                    .select(targetCI > 0 ? Integer.MAX_VALUE : beads);
+            double[] goodX = new double[selected.length];
+            double[] goodY = new double[selected.length];
+            for (int countSpots = 0; countSpots < selected.length; countSpots++) {
+                goodX[countSpots] = candX[selected[countSpots]];
+                goodY[countSpots] = candY[selected[countSpots]];
             }
 
 
-            IJ.saveAsTiff(imp,path+"_PSFresults"+File.separator+name+"_allbeads"+".tif");
-            double[][] finalResults  = new double[beads][4];
-
-
 
 
             long cropSize = 20;
@@ -1187,73 +1132,19 @@ public class autoPSF<T extends RealType<T>> extends Component implements Command
                 cropSize = 20;
             }
 
-            //ij.ui().showUI();
-            // loops over selected pixels and crops out the PSFs
-            for (i = 0; i < goodX.length; i++){
-
-
-                minx = 0;
-                miny = 0;
-                minz = 0;
-                maxx = cropSize;
-                maxy = cropSize;
-                maxz = cropped.dimension(2);
-                if (goodX[i]>cropSize/2 && goodX[i]<cropped.dimension(0)-cropSize){
-                    minx = (long) ceil(goodX[i]-cropSize/2);
-                }
-                if (goodY[i]>cropSize/2 && goodY[i]<cropped.dimension(1)-cropSize){
-                    miny = (long) ceil(goodY[i]-cropSize/2);
-                }
-
-                if (goodX[i]>=cropped.dimension(0)-cropSize){
-                    minx = cropped.dimension(0)-cropSize;
-                }
-
-                if (goodY[i]>=cropped.dimension(1)-cropSize){
-                    miny = cropped.dimension(1)-cropSize;
-                }
-                interval = FinalInterval.createMinSize(minx,miny,minz,maxx,maxy,maxz);
-
-                //interval = FinalInterval.createMinSize(0,0,0,cropSize,cropSize,cropped.dimension(2));
-
-
-                RandomAccessibleInterval newcropped  = ij.op().transform().crop(cropped,interval, true);
-                ImagePlus IPcropped = ImageJFunctions.wrapFloat(newcropped, "test");
-                IPcropped.setDimensions(1, (int) newcropped.dimension(2), 1);
-                IPcropped.setOpenAsHyperStack(true);
-                ImageProcessor ip = IPcropped.getProcessor();
-                ip.resetMinAndMax();
-
-                IPcropped.setCalibration(calibration);
-
-
-                FileSaver fs = new FileSaver(IPcropped);
-                fs.saveAsTiff(path+"_PSFresults"+File.separator+name+"_bead_"+i+".tif");
-                // crops stack around the specified coordinates
-
-                // calls GetRes to extract the resolution form the PSFs
-                double[] qcMetrics = GetRes(IPcropped);
-
-
-                // multiply by the correction factor
-                double xRes = qcMetrics[0] * corr_factor_x;
-                double yRes = qcMetrics[1] * corr_factor_y;
-                double zRes = qcMetrics[2] * corr_factor_z;
-
-                finalResults[i][0] = i;
-                finalResults[i][1] = xRes;
-                finalResults[i][2] = yRes;
-                finalResults[i][3] = zRes;
-
-
+            // crops out the PSFs around the selected pixels and fits them (in parallel if fitThreads > 1)
+            double[][] finalResults;
+            String beadPrefix = path+"_PSFresults"+File.separator+name+"_bead_";
+            if (targetCI > 0){
+                finalResults = fitBeadsAdaptive(cropped, goodX, goodY, cropSize, beadPrefix);
+            } else {
+                finalResults = fitBeads(cropped, goodX, goodY, 0, goodX.length, cropSize, beadPrefix);
             }
-
-            String[] titles = getImageTitles();
-            for (String title:titles){
-                Window window = getWindow(title);
-                window.dispose();
-                removeWindow(window);
+            for (double[] beadResult : finalResults) {
+                detector.markBead(goodX[(int) beadResult[0]], goodY[(int) beadResult[0]], 100000);
             }
+            detector.save(path+"_PSFresults"+File.separator+name+"_allbeads"+".tif");
+
             toReturn[j] = finalResults;
             WriteThisFile(fw,name,finalResults);
         }
@@ -1268,14 +1159,14 @@ public class autoPSF<T extends RealType<T>> extends Component implements Command
      * Given a FileWriter, we append the filename of the image that was processed and the results for each bead
      * processed in that image.
      *</p>
-     * @param fileWriter FileWriter object for the output file
+     * @param fileWriter Writer object for the output file
      * @param filename string with the filename of the image currently being processed
      * @param BeadResArray double[][] matrix with the results for the current image
      */
 
 
 
-    private static void WriteThisFile(FileWriter fileWriter, String filename, double[][] BeadResArray){
+    private static void WriteThisFile(Writer fileWriter, String filename, double[][] BeadResArray){
 
 
         try {
@@ -1292,6 +1183,11 @@ public class autoPSF<T extends RealType<T>> extends Component implements Command
                     fileWriter.append(String.valueOf(doubles[2]));
                     fileWriter.append(COMMA_DELIMITER);
                     fileWriter.append(String.valueOf(doubles[3]));
+                    // 3D fit columns, when there are any
+                    for (int k = 4; k < doubles.length; k++){
+                        fileWriter.append(COMMA_DELIMITER);
+                        fileWriter.append(String.valueOf(doubles[k]));
+                    }
                     fileWriter.append(NEW_LINE_SEPARATOR);
                 }
 
@@ -1306,15 +1202,238 @@ public class autoPSF<T extends RealType<T>> extends Component implements Command
 
     }
 
+    /**
+     * Crops and fits the selected beads first (included) to last (excluded) of one image.
+     *
+     *<p>
+     * The crop views are created here, one per bead, in the calling thread. The work for each bead (wrapping the crop
+     * as an ImagePlus, saving it and fitting it with PSFprofiler) only reads from its own crop, so with fitThreads > 1
+     * it is handed to a fixed thread pool. The results are collected in bead order, so the rows are the same, and in
+     * the same order, as when the beads are fitted one after the other.
+     *</p>
+     * @param cropped RandomAccessibleInterval with the 3D stack the beads were detected on
+     * @param goodX double[] with the x coordinates of the selected beads
+     * @param goodY double[] with the y coordinates of the selected beads
+     * @param first index of the first bead to fit (its bead ID)
+     * @param last index after the last bead to fit
+     * @param cropSize size (in pixels) of the square crop around each bead
+     * @param beadPrefix path prefix for the individual bead tiff files (the bead ID and ".tif" are appended)
+     * @return finalResults double[][] with bead ID and X/Y/Z resolutions for each bead (and the 3D fit columns)
+     */
+    private double[][] fitBeads(RandomAccessibleInterval cropped, double[] goodX, double[] goodY, int first, int last,
+                                long cropSize, String beadPrefix){
+        int nBeads = last - first;
+        double[][] finalResults = new double[nBeads][];
+        RandomAccessibleInterval[] beadCrops = new RandomAccessibleInterval[nBeads];
+        int i;
+        for (i = 0; i < nBeads; i++){
+            beadCrops[i] = cropBead(cropped, goodX[first + i], goodY[first + i], cropSize);
+        }
+
+        if (fitThreads <= 1 || nBeads <= 1){
+            for (i = 0; i < nBeads; i++){
+                finalResults[i] = fitBead(beadCrops[i], first + i, beadPrefix+(first + i)+".tif");
+            }
+            return finalResults;
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(fitThreads, nBeads));
+        try {
+            List<Future<double[]>> futures = new ArrayList<>();
+            for (i = 0; i < nBeads; i++){
+                final RandomAccessibleInterval beadCrop = beadCrops[i];
+                final int beadId = first + i;
+                futures.add(pool.submit(() -> fitBead(beadCrop, beadId, beadPrefix+beadId+".tif")));
+            }
+            for (i = 0; i < nBeads; i++){
+                finalResults[i] = futures.get(i).get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while fitting beads", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Bead fitting failed", e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+        return finalResults;
+    }
+
+
+    /**
+     * Fits beads in brightness order until the median FWHMs are known well enough.
+     *
+     *<p>
+     * Starts with the first "number of beads" candidates (at least MIN_ADAPTIVE_BEADS, the smallest sample with a 95%
+     * confidence interval on the median), then keeps fitting batches of fitThreads beads until the half-width of the
+     * 95% confidence interval on the median FWHM is at most targetCI on all three axes, or until all the candidates
+     * have been fitted. Clean slides therefore stop early and noisy ones get more beads.
+     *</p>
+     * @param cropped RandomAccessibleInterval with the 3D stack the beads were detected on
+     * @param goodX double[] with the x coordinates of all the valid beads, brightest first
+     * @param goodY double[] with the y coordinates of all the valid beads, brightest first
+     * @param cropSize size (in pixels) of the square crop around each bead
+     * @param beadPrefix path prefix for the individual bead tiff files (the bead ID and ".tif" are appended)
+     * @return finalResults double[][] with bead ID and X/Y/Z resolutions for each fitted bead
+     */
+    private double[][] fitBeadsAdaptive(RandomAccessibleInterval cropped, double[] goodX, double[] goodY,
+                                        long cropSize, String beadPrefix){
+        int nCandidates = goodX.length;
+        int fitted = Math.min(nCandidates, Math.max(beads, MIN_ADAPTIVE_BEADS));
+        List<double[]> results = new ArrayList<>(Arrays.asList(
+                fitBeads(cropped, goodX, goodY, 0, fitted, cropSize, beadPrefix)));
+        boolean reached = ciReached(results);
+        while (!reached && fitted < nCandidates){
+            int next = Math.min(nCandidates, fitted + Math.max(1, fitThreads));
+            results.addAll(Arrays.asList(fitBeads(cropped, goodX, goodY, fitted, next, cropSize, beadPrefix)));
+            fitted = next;
+            reached = ciReached(results);
+        }
+        System.out.println("Fitted " + fitted + " of " + nCandidates + " beads"
+                + (reached ? "" : ", target confidence interval not reached"));
+        return results.toArray(new double[0][]);
+    }
+
+    /**
+     * @param results List of bead results (bead ID and X/Y/Z resolutions)
+     * @return true if the 95% confidence interval on the median resolution is within targetCI on all axes
+     */
+    private boolean ciReached(List<double[]> results){
+        int axis;
+        for (axis = 1; axis <= 3; axis++){
+            double[] values = new double[results.size()];
+            int n = 0;
+            for (double[] beadResult : results){
+                if (beadResult[axis] > 0 && !Double.isInfinite(beadResult[axis])){
+                    values[n++] = beadResult[axis];
+                }
+            }
+            double[] ci = dataTricks.medianConfidenceInterval(Arrays.copyOf(values, n));
+            if (ci == null || (ci[1] - ci[0]) / 2 > targetCI){
+                return false;
+            }
+        }
+        return true;
+    }
+
+
+    /**
+     * Crops a cropSize x cropSize region (and all Z) around a bead, shifting it to stay inside the image.
+     * @param cropped RandomAccessibleInterval with the 3D stack
+     * @param x x coordinate of the bead
+     * @param y y coordinate of the bead
+     * @param cropSize size (in pixels) of the square crop
+     * @return newcropped RandomAccessibleInterval with the bead crop
+     */
+    private RandomAccessibleInterval cropBead(RandomAccessibleInterval cropped, double x, double y, long cropSize){
+        long minx = 0;
+        long miny = 0;
+        long minz = 0;
+        long maxz = cropped.dimension(2);
+        if (x>cropSize/2 && x<cropped.dimension(0)-cropSize){
+            minx = (long) ceil(x-cropSize/2);
+        }
+        if (y>cropSize/2 && y<cropped.dimension(1)-cropSize){
+            miny = (long) ceil(y-cropSize/2);
+        }
+
+        if (x>=cropped.dimension(0)-cropSize){
+            minx = cropped.dimension(0)-cropSize;
+        }
+
+        if (y>=cropped.dimension(1)-cropSize){
+            miny = cropped.dimension(1)-cropSize;
+        }
+        FinalInterval interval = FinalInterval.createMinSize(minx,miny,minz,cropSize,cropSize,maxz);
+
+        return ij.op().transform().crop(cropped,interval, true);
+    }
+
+
+    /**
+     * Wraps a bead crop as an ImagePlus, saves it and extracts the resolutions from it.
+     * @param newcropped RandomAccessibleInterval with the bead crop
+     * @param beadId bead ID, written on the first column of the results
+     * @param beadFile path of the tiff file for this bead
+     * @return double[] with bead ID and X/Y/Z resolutions (multiplied by the correction factors), followed by the
+     * 3D fit columns of GetRes if fitMode is 1 or 2 (the principal axis resolutions also corrected, by the X one)
+     */
+    private double[] fitBead(RandomAccessibleInterval newcropped, int beadId, String beadFile){
+        ImagePlus IPcropped = ImageJFunctions.wrapFloat(newcropped, "test");
+        IPcropped.setDimensions(1, (int) newcropped.dimension(2), 1);
+        IPcropped.setOpenAsHyperStack(true);
+        ImageProcessor ip = IPcropped.getProcessor();
+        ip.resetMinAndMax();
+
+        IPcropped.setCalibration(calibration);
+
+        FileSaver fs = new FileSaver(IPcropped);
+        fs.saveAsTiff(beadFile);
+
+        // calls GetRes to extract the resolution form the PSFs
+        double[] qcMetrics = GetRes(IPcropped, fitMode);
+
+        // multiply by the correction factor
+        double xRes = qcMetrics[0] * corr_factor_x;
+        double yRes = qcMetrics[1] * corr_factor_y;
+        double zRes = qcMetrics[2] * corr_factor_z;
+
+        double[] beadResult = new double[qcMetrics.length + 1];
+        beadResult[0] = beadId;
+        beadResult[1] = xRes;
+        beadResult[2] = yRes;
+        beadResult[3] = zRes;
+        System.arraycopy(qcMetrics, 3, beadResult, 4, qcMetrics.length - 3);
+        if (fitMode == 2){
+            beadResult[9] *= corr_factor_x;
+            beadResult[10] *= corr_factor_x;
+        }
+        return beadResult;
+    }
+
+
     /**
      * Wrapper for creating a PSFProfiler and returning the resolutions.
+     * <p>
+     * With fitMode 1 or 2, the FWHMs come from a 3D Gaussian fitted to the whole crop (seeded with the line profile
+     * fits). If that fit does not converge to positive, finite widths, the line profile values are kept and the other
+     * fit columns are NaN. The rotated fit measures the widths along the principal axes of the PSF: the X/Y
+     * resolutions are then the FWHMs of the fitted Gaussian projected on X and Y, so that the columns mean the same
+     * in every mode, and the angle and the principal axis widths are added after the fit quality.
+     * </p>
      * @param BeadStack ImagePlus with a bead crop (MetroloJ requires ImagePlus to work)
-     * @return profiler.getResolutions() a double[] array with the X/Y/Z resolution values
+     * @param fitMode 0 for line profiles, 1 for a 3D Gaussian fit, 2 for a rotated 3D Gaussian fit
+     * @return double[] with the X/Y/Z resolutions; for fitMode 1 and 2 followed by the fitted centre (x, y, z, in the
+     * crop) and the RMS residual, and for fitMode 2 by the angle in degrees and the major and minor axis resolutions
      */
-    private static double[] GetRes(ImagePlus BeadStack){
+    private static double[] GetRes(ImagePlus BeadStack, int fitMode){
 
         PSFprofiler profiler=new PSFprofiler(BeadStack);
-        return profiler.getResolutions();
+        if (fitMode == 0){
+            return profiler.getResolutions();
+        }
+        double[] qcMetrics = new double[fitMode == 2 ? 10 : 7];
+        Arrays.fill(qcMetrics, Double.NaN);
+        gaussian3DFitter fitter = profiler.fit3D(fitMode == 2);
+        double[] fwhm = fitter.getFwhm();
+        if (!(fwhm[0] > 0 && fwhm[1] > 0 && fwhm[2] > 0 && !Double.isInfinite(fwhm[0] + fwhm[1] + fwhm[2]))){
+            System.arraycopy(profiler.getResolutions(), 0, qcMetrics, 0, 3);
+            return qcMetrics;
+        }
+        double angle = fitter.getAngle();
+        double cos2 = Math.cos(angle) * Math.cos(angle);
+        double sin2 = Math.sin(angle) * Math.sin(angle);
+        qcMetrics[0] = Math.sqrt(fwhm[0] * fwhm[0] * cos2 + fwhm[1] * fwhm[1] * sin2);
+        qcMetrics[1] = Math.sqrt(fwhm[0] * fwhm[0] * sin2 + fwhm[1] * fwhm[1] * cos2);
+        qcMetrics[2] = fwhm[2];
+        System.arraycopy(fitter.getCentre(), 0, qcMetrics, 3, 3);
+        qcMetrics[6] = fitter.getRmsResidual();
+        if (fitMode == 2){
+            qcMetrics[7] = Math.toDegrees(angle);
+            qcMetrics[8] = Math.max(fwhm[0], fwhm[1]);
+            qcMetrics[9] = Math.min(fwhm[0], fwhm[1]);
+        }
+        return qcMetrics;
 
     }
 
@@ -8,21 +8,14 @@ import fiji.plugin.trackmate.tracking.sparselap.SimpleSparseLAPTrackerFactory;
 import fiji.plugin.trackmate.util.LogRecorder;
 import ij.IJ;
 import ij.ImagePlus;
-import ij.gui.Roi;
 import ij.io.FileSaver;
 import ij.measure.Calibration;
-import ij.plugin.filter.MaximumFinder;
 import ij.process.ImageProcessor;
 import loci.formats.FormatException;
-import loci.plugins.BF;
-import loci.plugins.in.ImportProcess;
-import loci.plugins.in.ImporterOptions;
 import net.imagej.ImageJ;
 import net.imglib2.FinalInterval;
-import net.imglib2.RandomAccess;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.img.Img;
-import net.imglib2.img.array.ArrayImgs;
 import net.imglib2.img.display.imagej.ImageJFunctions;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.real.FloatType;
@@ -35,6 +28,8 @@ import java.awt.*;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
 import java.sql.Timestamp;
 import java.text.SimpleDateFormat;
 import java.util.*;
@@ -43,7 +38,6 @@ import java.util.List;
 import static fiji.plugin.trackmate.detection.DetectorKeys.*;
 import static fiji.plugin.trackmate.tracking.TrackerKeys.KEY_ALLOW_TRACK_MERGING;
 import static fiji.plugin.trackmate.tracking.TrackerKeys.KEY_ALLOW_TRACK_SPLITTING;
-import static ij.WindowManager.*;
 import static java.lang.Math.*;
 
 
@@ -104,6 +98,18 @@ public class autoStageRepro<T extends RealType<T>> extends Component implements
     @Parameter(label = "(Optional) match string for filename:")
     private String match = "";
 
+    /**
+     * batchThreads: integer, number of files read and processed at the same time.
+     */
+    @Parameter(label = "Files processed at the same time:")
+    private int batchThreads = 1;
+    /**
+     * heapBudgetMB: long, memory (in MB) that files being processed at the same time can use. 0 means automatic
+     * (3/4 of the maximum heap size).
+     */
+    @Parameter(label = "Memory budget for batch (MB, 0 = automatic):")
+    private long heapBudgetMB = 0;
+
     private Calibration calibration;
     private static final String COMMA_DELIMITER = ",";
     private static final String NEW_LINE_SEPARATOR = "\n";
@@ -383,41 +389,76 @@ public class autoStageRepro<T extends RealType<T>> extends Component implements
 
         //File selectedDir = srcDir;
 
-        List<Img> currentFiles;
         String selectedDir = srcDir[0].getParent();
         String resultPath = selectedDir + File.separator + "summary_stage.csv";
         FileWriter fw = printOutputHeader(resultPath);
 
 
-        for (final File fileEntry : Objects.requireNonNull(srcDir)){
-
+        // several files can be read and processed at the same time; rows still come out in file order
+        batchExecutor batch = new batchExecutor(batchThreads, heapBudgetMB);
+        batch.run(Objects.requireNonNull(srcDir), this::processFile, fw);
 
-            //if (fileEntry.getName().contains(match)) {
-                System.out.println("Opening file: " + fileEntry.getName());
-                String path = fileEntry.getPath();
-
-                currentFiles = readFile(path);
-                if (currentFiles == null) {
-                    continue;
-                }
-                System.out.println("Processing file: " + fileEntry.getName());
-
-                double[][][] finalResult = processing(currentFiles, path,fw,fileEntry.getName() );
-                System.out.println("Writing output: ");
-
-
-                WriteFile(fw, fileEntry.getName(), finalResult);
+        CloseFile(fw);
+        // skip irrelevant filenames, do stuff for relevant ones
 
-           // }
 
+    }
 
 
+    /**
+     * Reads and processes a single file, returning its rows for the summary file.
+     *<p>
+     * Used by the batchExecutor in run(), possibly for several files at the same time. The series of the file are read
+     * and processed one at a time. The work is done on a copy of this object (see copySettings), since readSeries
+     * stores the calibration of the current series in the object.
+     *</p>
+     * @param fileEntry File to be processed
+     * @return String with the CSV rows for this file
+     * @throws IOException if the file could not be read or a series has the wrong dimensions
+     */
+    private String processFile(File fileEntry) throws IOException {
+        autoStageRepro<T> worker = copySettings();
+        System.out.println("Opening file: " + fileEntry.getName());
+        String path = fileEntry.getPath();
+
+        StringWriter rows = new StringWriter();
+        // one series at a time: each series is processed and released before the next one is read
+        try (seriesIterator series = new seriesIterator(path, match)) {
+            while (series.hasNext()) {
+                ImagePlus imp = series.next();
+                Img image = worker.readSeries(imp);
+                if (image == null) {
+                    throw new IOException("Wrong image dimensions in " + fileEntry.getName());
+                }
+                System.out.println("Processing file: " + fileEntry.getName() + ", series " + series.getSeriesLabel());
+                double[][][] finalResult = worker.processing(Collections.singletonList(image), path, rows,
+                        fileEntry.getName());
+                WriteFile(rows, fileEntry.getName(), finalResult);
+                imp.flush();
+            }
+        } catch (FormatException e) {
+            throw new IOException(e);
         }
-
-        CloseFile(fw);
-        // skip irrelevant filenames, do stuff for relevant ones
+        System.out.println("Writing output: " + fileEntry.getName());
+        return rows.toString();
+    }
 
 
+    /**
+     * Creates a new autoStageRepro with the same parameters as this one, so that files processed at the same time
+     * don't share any per-file state.
+     * @return worker autoStageRepro object with the same parameters
+     */
+    private autoStageRepro<T> copySettings(){
+        autoStageRepro<T> worker = new autoStageRepro<>();
+        worker.ij = ij;
+        worker.beads = beads;
+        worker.minSeparation = minSeparation;
+        worker.beadSize = beadSize;
+        worker.noiseTol = noiseTol;
+        worker.srcDir = srcDir;
+        worker.match = match;
+        return worker;
     }
 
 
@@ -471,84 +512,58 @@ public class autoStageRepro<T extends RealType<T>> extends Component implements
 
 
     /**
-     * Reads a string with the path to an image file and returns an Img object.
+     * Reads a string with the path to an image file and returns a list of Img objects, one per matching series.
      * <p>
-     *     We use bioformats to open an ImagePlus, make sure that the input is a Z-stack, then generate an Img
-     *     converting the input to floats. If any of that fails, we catch an exception.
+     *     Opens the series one after the other with a seriesIterator and converts each of them with readSeries. This
+     *     keeps every matching series in memory at once, so it is only used when all of them are needed together
+     *     (autoQC_omero); run() streams the series one at a time instead. If anything fails, we catch an exception.
      * </p>
      *
      * @param arg String with the path to file to be read.
-     * @return imgFinal Img object with a Z-stack from the input file.
+     * @return toReturn List of Img objects from the input file, or null if a series has the wrong dimensions.
      */
 
     public java.util.List<Img> readFile(String arg) {
 
-        //  OpenDialog od = new OpenDialog("Open Image File...", arg);
-        //  String dir = od.getDirectory();
-        //  String name = od.getFileName();
-        //  String id = dir + name;
-        long[] dimensions = new long[]{
-                512, 512
-        };
-
-        Img<FloatType> imgFinal = ArrayImgs.floats(dimensions);
-        List<Img> toReturn = new ArrayList<Img>();
-
-        ImagePlus[] imps;
-
-        //ImagePlusReader test = new ImagePlusReader();
-
-        ImagePlus imp = new ImagePlus();
-        try {
-            //ImageReader ir = new ImageReader();
-            //ir.setId(arg);
-            ImporterOptions options = new ImporterOptions();
-            options.setId(arg);
-            options.setOpenAllSeries(true);
-            ImportProcess process = new ImportProcess(options);
-            process.execute();
-            options.setOpenAllSeries(false);
-            int i;
-            imps = new ImagePlus[1];
-            for (i = 0; i < process.getSeriesCount(); i++) {
-                if(process.getSeriesLabel(i).contains(match)){
-                    //System.out.println(process.getSeriesLabel(i));
-                    ImporterOptions int_options = new ImporterOptions();
-                    int_options.setId(arg);
-                    int_options.setSeriesOn(i,true);
-                    imps = BF.openImagePlus(int_options);
-                    imp = imps[0];
-                    //System.out.println(imp.getProperties().toString());
-                    calibration = imp.getCalibration();
-                    if (imp.getNDimensions() != 3){
-                        IJ.error("Number of image dimensions is not 3");
-                        return null;
-                    }
-
-                    toReturn.add(ImageJFunctions.convertFloat(imps[0]));
+        List<Img> toReturn = new ArrayList<>();
+        try (seriesIterator series = new seriesIterator(arg, match)) {
+            while (series.hasNext()) {
+                Img image = readSeries(series.next());
+                if (image == null) {
+                    return null;
                 }
+                toReturn.add(image);
             }
-
-
-        }catch (FormatException | IOException exc) {
+        } catch (FormatException | IOException exc) {
 
             IJ.error("Sorry, an error occurred: " + exc.getMessage());
-            imps = new ImagePlus[1];
 
         }
 
-        calibration = imp.getCalibration();
-
-        // for (ImagePlus imp : imps) imp.show();
-        // We don't need to show them
-
-
-
         return toReturn;
 
+    }
 
 
+    /**
+     * Turns a single series into an Img object.
+     * <p>
+     *     Stores the calibration of the series, makes sure that the input is a time series, then wraps it as an Img of
+     *     its own pixel type (no copy). The stages after this work on views of these 8/16-bit pixels, and only the bead
+     *     crops handed to TrackMate are seen as floats (converted on the fly by ImageJFunctions.wrapFloat).
+     * </p>
+     *
+     * @param imp ImagePlus with the series, as returned by seriesIterator
+     * @return Img object with the series, or null if it has the wrong dimensions.
+     */
+    private Img readSeries(ImagePlus imp){
+        calibration = imp.getCalibration();
+        if (imp.getNDimensions() != 3){
+            IJ.error("Number of image dimensions is not 3");
+            return null;
+        }
 
+        return ImageJFunctions.wrapReal(imp);
     }
 
 
@@ -572,7 +587,6 @@ public class autoStageRepro<T extends RealType<T>> extends Component implements
         max[0] = 0;
         max[1] = 0;
         imp.setOpenAsHyperStack( true );
-        imp.show();
 
 
         final Model model = new Model();
@@ -669,7 +683,7 @@ public class autoStageRepro<T extends RealType<T>> extends Component implements
      * @return finalResults double[][] matrix with all the displacement results for all the beads in this image
      *
      */
-    private double[][][] processing(List<Img> images, String path, FileWriter fw, String name){
+    private double[][][] processing(List<Img> images, String path, Writer fw, String name){
         //private void processing(Img<FloatType> image){
 
         double[][][] toReturn = new double[images.size()][][];
@@ -720,96 +734,25 @@ public class autoStageRepro<T extends RealType<T>> extends Component implements
             interval = FinalInterval.createMinSize(0, 0, 0, cropped.dimension(0), cropped.dimension(1), 1);
             RandomAccessibleInterval finalcrop;
             finalcrop = ij.op().transform().crop(cropped, interval, true);
-            ImageJFunctions.show(finalcrop);
-            ImagePlus imp = IJ.getImage();
-            MaximumFinder mf = new MaximumFinder();
-            Polygon pol = mf.getMaxima(imp.getProcessor(), (int) noiseTol, true);
-
-            // detect beads and measure for intensity and x/y coords
-            //IJ.run("Find Maxima...", "noise="+noiseTol+" output=[Point Selection] exclude");
-            //ImagePlus imp = IJ.getImage();
-            //IJ.saveAsTiff(imp,path+"_beads"+File.separator+"allbeads"+".tif");
-            // Gets coordinates of ROIs
-
-            //Roi test = imp.getRoi();
-            //FloatPolygon floatPolygon = test.getFloatPolygon();
-
-            float[][] resultsTable = new float[pol.npoints][3];
-
-            // loops over ROIs and get pixel Vvlue at their coordinate.
-            for (int i = 0; i < pol.npoints; i++) {
-
-                float intx = pol.xpoints[i];
-                float inty = pol.ypoints[i];
-                final RandomAccess<FloatType> r = finalcrop.randomAccess();
-                r.setPosition((int) intx, 0);
-                r.setPosition((int) inty, 1);
-                FloatType pixel = r.get();
-
-                resultsTable[i][0] = intx;
-                resultsTable[i][1] = inty;
-                resultsTable[i][2] = pixel.get();
-
-            }
+            beadDetector detector = new beadDetector(finalcrop);
+            detector.detect(noiseTol);
+            float[] candX = detector.getX();
+            float[] candY = detector.getY();
 
-
-            // Sorts the Pixel coordinates by the intensity value.
-            //java.util.Arrays.sort(resultsTable, Comparator.comparingDouble(a -> a[2]));
-            //We're now sorting for highest intensities
-            java.util.Arrays.sort(resultsTable, (v1, v2) -> Float.compare(v2[2], v1[2]));
-
-            int countSpots = 0;
-            int firstPosition = 0;
             double[] goodX = new double[beads];
             double[] goodY = new double[beads];
 
-
             // selects the selected number of pixels based on the specified criteria
-            while (countSpots < beads && firstPosition < resultsTable.length) {
-
-                float x1 = resultsTable[firstPosition][0];
-
-                float y1 = resultsTable[firstPosition][1];
-
-                int nextPosition = firstPosition + 1;
-                boolean valid = true;
-
-                while (valid && nextPosition < resultsTable.length) {
-
-                    float x2 = resultsTable[nextPosition][0];
-                    float y2 = resultsTable[nextPosition][1];
-
-                    double dist_sq = Math.pow(x1 - x2, 2) + Math.pow(y1 - y2, 2);
-
-                    if (x2 != x1 && y2 != y1 && dist_sq < Math.pow(minSeparation, 2)) {
-
-                        valid = false;
-
-                    }
-
-                    nextPosition++;
-
-
-                }
-
-
-                if (valid) {
-                    Roi beadROI = new Roi(resultsTable[firstPosition][0] - 15, resultsTable[firstPosition][1] - 15, 30, 30);
-                    ImageProcessor ip = imp.getProcessor();
-                    //ip.setRoi(beadROI);
-                    ip.setValue(10000);
-                    ip.draw(beadROI);
-                    goodX[countSpots] = resultsTable[firstPosition][0];
-                    goodY[countSpots] = resultsTable[firstPosition][1];
-                    countSpots++;
-
-                }
-
-                firstPosition++;
-
+            int[] selected = new beadSelector(candX, candY, minSeparation).select(beads);
+            for (int countSpots = 0; countSpots < selected.length; countSpots++) {
+                float x1 = candX[selected[countSpots]];
+                float y1 = candY[selected[countSpots]];
+                detector.markBead(x1, y1, 10000);
+                goodX[countSpots] = x1;
+                goodY[countSpots] = y1;
             }
 
-            IJ.saveAsTiff(imp, path + "_beads" + File.separator + "allbeads" + ".tif");
+            detector.save(path + "_beads" + File.separator + "allbeads" + ".tif");
 
 
             double[][] finalResults = new double[beads][4];
@@ -888,12 +831,6 @@ public class autoStageRepro<T extends RealType<T>> extends Component implements
 
             }
 
-            String[] titles = getImageTitles();
-            for (String title : titles) {
-                Window window = getWindow(title);
-                window.dispose();
-                removeWindow(window);
-            }
             toReturn[j] = finalResults;
             WriteThisFile(fw,name,finalResults);
         }
@@ -918,12 +855,12 @@ public class autoStageRepro<T extends RealType<T>> extends Component implements
      * @param images List of Img objects with the input Z-stacks
      * @param path String with the path to the original image file that is being processed
      * @param filenames List of Strings with all filenames for the files being processed
-     * @param fw FileWriter object for the output CSV file
+     * @param fw Writer object for the output CSV file
      *
      */
 
 
-    private void processing_omero(List<Img> images, String path, List<String> filenames, FileWriter fw){
+    private void processing_omero(List<Img> images, String path, List<String> filenames, Writer fw){
         //private void processing(Img<FloatType> image){
 
         double[][][] toReturn = new double[images.size()][][];
@@ -975,96 +912,25 @@ public class autoStageRepro<T extends RealType<T>> extends Component implements
             interval = FinalInterval.createMinSize(0, 0, 0, cropped.dimension(0), cropped.dimension(1), 1);
             RandomAccessibleInterval finalcrop;
             finalcrop = ij.op().transform().crop(cropped, interval, true);
-            ImageJFunctions.show(finalcrop);
-            ImagePlus imp = IJ.getImage();
-            MaximumFinder mf = new MaximumFinder();
-            Polygon pol = mf.getMaxima(imp.getProcessor(), (int) noiseTol, true);
-
-            // detect beads and measure for intensity and x/y coords
-            //IJ.run("Find Maxima...", "noise="+noiseTol+" output=[Point Selection] exclude");
-            //ImagePlus imp = IJ.getImage();
-            //IJ.saveAsTiff(imp,path+"_beads"+File.separator+"allbeads"+".tif");
-            // Gets coordinates of ROIs
-
-            //Roi test = imp.getRoi();
-            //FloatPolygon floatPolygon = test.getFloatPolygon();
-
-            float[][] resultsTable = new float[pol.npoints][3];
-
-            // loops over ROIs and get pixel Vvlue at their coordinate.
-            for (int i = 0; i < pol.npoints; i++) {
+            beadDetector detector = new beadDetector(finalcrop);
+            detector.detect(noiseTol);
+            float[] candX = detector.getX();
+            float[] candY = detector.getY();
 
-                float intx = pol.xpoints[i];
-                float inty = pol.ypoints[i];
-                final RandomAccess<FloatType> r = finalcrop.randomAccess();
-                r.setPosition((int) intx, 0);
-                r.setPosition((int) inty, 1);
-                FloatType pixel = r.get();
-
-                resultsTable[i][0] = intx;
-                resultsTable[i][1] = inty;
-                resultsTable[i][2] = pixel.get();
-
-            }
-
-
-            // Sorts the Pixel coordinates by the intensity value.
-            //java.util.Arrays.sort(resultsTable, Comparator.comparingDouble(a -> a[2]));
-            //We're now sorting for highest intensities
-            java.util.Arrays.sort(resultsTable, (v1, v2) -> Float.compare(v2[2], v1[2]));
-
-            int countSpots = 0;
-            int firstPosition = 0;
             double[] goodX = new double[beads];
             double[] goodY = new double[beads];
 
-
             // selects the selected number of pixels based on the specified criteria
-            while (countSpots < beads && firstPosition < resultsTable.length) {
-
-                float x1 = resultsTable[firstPosition][0];
-
-                float y1 = resultsTable[firstPosition][1];
-
-                int nextPosition = firstPosition + 1;
-                boolean valid = true;
-
-                while (valid && nextPosition < resultsTable.length) {
-
-                    float x2 = resultsTable[nextPosition][0];
-                    float y2 = resultsTable[nextPosition][1];
-
-                    double dist_sq = Math.pow(x1 - x2, 2) + Math.pow(y1 - y2, 2);
-
-                    if (x2 != x1 && y2 != y1 && dist_sq < Math.pow(minSeparation, 2)) {
-
-                        valid = false;
-
-                    }
-
-                    nextPosition++;
-
-
-                }
-
-
-                if (valid) {
-                    Roi beadROI = new Roi(resultsTable[firstPosition][0] - 15, resultsTable[firstPosition][1] - 15, 30, 30);
-                    ImageProcessor ip = imp.getProcessor();
-                    //ip.setRoi(beadROI);
-                    ip.setValue(10000);
-                    ip.draw(beadROI);
-                    goodX[countSpots] = resultsTable[firstPosition][0];
-                    goodY[countSpots] = resultsTable[firstPosition][1];
-                    countSpots++;
-
-                }
-
-                firstPosition++;
-
+            int[] selected = new beadSelector(candX, candY, minSeparation).select(beads);
+            for (int countSpots = 0; countSpots < selected.length; countSpots++) {
+                float x1 = candX[selected[countSpots]];
+                float y1 = candY[selected[countSpots]];
+                detector.markBead(x1, y1, 10000);
+                goodX[countSpots] = x1;
+                goodY[countSpots] = y1;
             }
 
-            IJ.saveAsTiff(imp, path+"_stageresults"+File.separator+name+"_allbeads"+".tif");
+            detector.save(path+"_stageresults"+File.separator+name+"_allbeads"+".tif");
 
 
             double[][] finalResults = new double[beads][4];
@@ -1143,12 +1009,6 @@ public class autoStageRepro<T extends RealType<T>> extends Component implements
 
             }
 
-            String[] titles = getImageTitles();
-            for (String title : titles) {
-                Window window = getWindow(title);
-                window.dispose();
-                removeWindow(window);
-            }
             toReturn[j] = finalResults;
             WriteThisFile(fw,name,finalResults);
         }
@@ -1164,11 +1024,11 @@ public class autoStageRepro<T extends RealType<T>> extends Component implements
      * Given a FileWriter, we append the filename of the image that was processed and the results for each bead
      * processed in that image.
      *</p>
-     * @param fileWriter FileWriter object for the output file
+     * @param fileWriter Writer object for the output file
      * @param filename string with the filename of the image currently being processed
      * @param BeadResArray double[][] matrix with the results for the current image
      */
-    private static void WriteFile(FileWriter fileWriter, String filename, double[][][] BeadResArray){
+    private static void WriteFile(Writer fileWriter, String filename, double[][][] BeadResArray){
 
 
         try {
@@ -1207,12 +1067,12 @@ public class autoStageRepro<T extends RealType<T>> extends Component implements
      * Given a FileWriter, we append the filename of the image that was processed and the results for each bead
      * processed in that image.
      *</p>
-     * @param fileWriter FileWriter object for the output file
+     * @param fileWriter Writer object for the output file
      * @param filename string with the filename of the image currently being processed
      * @param BeadResArray double[][] matrix with the results for the current image
      */
 
-    private static void WriteThisFile(FileWriter fileWriter, String filename, double[][] BeadResArray){
+    private static void WriteThisFile(Writer fileWriter, String filename, double[][] BeadResArray){
 
 
         try {
@@ -0,0 +1,141 @@
+package uk.ac.warwick.camdu;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+
+/**
+ *
+ * batchExecutor - runs one autoQC routine over a list of files, several files at a time
+ *<p>
+ * Each file is handed to a fileTask on a fixed thread pool, so at most "threads" files are read and processed at the
+ * same time. On top of that, every file has to reserve an estimate of the memory it needs from a heap budget before it
+ * starts, so a few very large files don't all get opened together. The estimate is the size of the file on disk times
+ * MEMORY_FACTOR: the decoded pixels, kept in their native type, plus the float projection and crops made from them.
+ * Compressed files decode to more than their size, so it is a rough guide rather than a bound. A file bigger than the
+ * whole budget still runs, but on its own.
+ *</p>
+ *<p>
+ * The fileTask returns the CSV rows for its file. The rows are appended to the summary file in the same order as the
+ * input list, as soon as all the files before them are done, whichever order the files actually finish in. If a file
+ * fails (unreadable, corrupt, or any exception during processing) the error is printed and the batch carries on with
+ * the next file; that file simply has no rows in the summary.
+ *</p>
+ */
+class batchExecutor {
+
+    private static final int MEMORY_FACTOR = 4;
+
+    /**
+     * Work to be done on a single file. Implementations must not share mutable state between calls, since several
+     * files are processed at the same time.
+     */
+    interface fileTask {
+        /**
+         * @param file File to be processed
+         * @return String with the CSV rows for this file
+         * @throws Exception anything that goes wrong with this file; it is reported and the batch continues
+         */
+        String process(File file) throws Exception;
+    }
+
+    private final int threads;
+    private final int budgetMB;
+    private final Semaphore heapBudget;
+
+
+    /**
+     * @param threads maximum number of files processed at the same time (values below 1 are treated as 1)
+     * @param heapBudgetMB memory (in MB) that files being processed can reserve; 0 or less means 3/4 of the maximum
+     *                     heap size of this JVM
+     */
+    batchExecutor(int threads, long heapBudgetMB){
+        this.threads = Math.max(1, threads);
+        if (heapBudgetMB <= 0){
+            heapBudgetMB = (Runtime.getRuntime().maxMemory() / 4 * 3) >> 20;
+        }
+        this.budgetMB = (int) Math.max(1, Math.min(heapBudgetMB, Integer.MAX_VALUE));
+        this.heapBudget = new Semaphore(budgetMB, true);
+    }
+
+
+    /**
+     * Processes all the files and writes their rows to the summary file, in input order.
+     * @param files File[] with the files to be processed
+     * @param task fileTask doing the reading and processing of a single file
+     * @param summary Writer for the summary CSV file (header already written). It is flushed after each file but
+     *                not closed.
+     * @return number of files that failed
+     */
+    int run(File[] files, fileTask task, Writer summary){
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(threads, Math.max(1, files.length)));
+        List<Future<String>> results = new ArrayList<>();
+        for (final File file : files){
+            results.add(pool.submit(() -> processWithinBudget(file, task)));
+        }
+        pool.shutdown();
+
+        int failed = 0;
+        for (int i = 0; i < files.length; i++){
+            String rows = null;
+            try {
+                rows = results.get(i).get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                pool.shutdownNow();
+                throw new IllegalStateException("Interrupted while processing files", e);
+            } catch (ExecutionException e) {
+                failed++;
+                System.out.println("Error processing file: " + files[i].getName() + ", skipping it.");
+                e.getCause().printStackTrace();
+            }
+            if (rows != null && summary != null){
+                try {
+                    summary.append(rows);
+                    summary.flush();
+                } catch (IOException e) {
+                    System.out.println("Error in CsvFileWriter !!!");
+                    e.printStackTrace();
+                }
+            }
+        }
+        return failed;
+    }
+
+
+    /**
+     * Reserves the estimated memory for a file, processes it and gives the memory back.
+     * @param file File to be processed
+     * @param task fileTask doing the work
+     * @return String with the CSV rows for this file
+     * @throws Exception whatever the task throws
+     */
+    private String processWithinBudget(File file, fileTask task) throws Exception {
+        int permits = estimateMB(file);
+        heapBudget.acquire(permits);
+        try {
+            return task.process(file);
+        } finally {
+            heapBudget.release(permits);
+        }
+    }
+
+
+    /**
+     * Estimates how much memory (in MB) processing a file needs, capped at the whole budget.
+     * @param file File to be processed
+     * @return estimate in MB, between 1 and the budget
+     */
+    private int estimateMB(File file){
+        long estimate = (file.length() * MEMORY_FACTOR) >> 20;
+        return (int) Math.max(1, Math.min(estimate, budgetMB));
+    }
+}
@@ -0,0 +1,140 @@
+package uk.ac.warwick.camdu;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.gui.Roi;
+import ij.plugin.filter.MaximumFinder;
+import ij.process.FloatProcessor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.view.Views;
+
+import java.awt.*;
+import java.util.Arrays;
+
+
+/**
+ *
+ * beadDetector - finds bead candidates on a 2D projection without going through ImageJ windows
+ *<p>
+ * The projection is copied once into a FloatProcessor that is never shown. MaximumFinder runs straight on that
+ * processor, and the maxima come back as primitive arrays sorted by decreasing intensity (ties keep the order in
+ * which MaximumFinder returned them, same as the old sort on the results table). The same processor is used to draw
+ * the boxes around the chosen beads and to save the "allbeads" overview image.
+ *</p>
+ */
+class beadDetector {
+
+    private final FloatProcessor fp;
+    private float[] xs = new float[0];
+    private float[] ys = new float[0];
+    private float[] intensities = new float[0];
+
+
+    /**
+     * Creates a detector from an imglib2 projection (first two dimensions are X and Y; any extra dimension is
+     * expected to have size 1)
+     * @param projection RandomAccessibleInterval with the 2D projection where beads should be detected
+     */
+    beadDetector(RandomAccessibleInterval<? extends RealType<?>> projection){
+        this(toProcessor(projection));
+    }
+
+    /**
+     * Creates a detector from a projection that is already a FloatProcessor. The processor is used as is (not
+     * copied), so bead boxes drawn by markBead end up on it.
+     * @param projection FloatProcessor with the 2D projection where beads should be detected
+     */
+    beadDetector(FloatProcessor projection){
+        this.fp = projection;
+    }
+
+
+    /**
+     * Copies the first XY plane of an imglib2 image into a new FloatProcessor.
+     * @param projection RandomAccessibleInterval with the 2D projection
+     * @return fp FloatProcessor with the same pixel values
+     */
+    private static FloatProcessor toProcessor(RandomAccessibleInterval<? extends RealType<?>> projection){
+        int width = (int) projection.dimension(0);
+        int height = (int) projection.dimension(1);
+        float[] pixels = new float[width * height];
+        int i = 0;
+        for (RealType<?> value : Views.flatIterable(projection)) {
+            pixels[i++] = value.getRealFloat();
+            if (i == pixels.length) {
+                break;
+            }
+        }
+        return new FloatProcessor(width, height, pixels);
+    }
+
+
+    /**
+     * Runs MaximumFinder on the projection and stores the maxima sorted by decreasing intensity.
+     * @param noiseTol noise tolerance for MaximumFinder (truncated to an integer, as the commands always did)
+     * @return number of maxima found
+     */
+    int detect(double noiseTol){
+        MaximumFinder mf = new MaximumFinder();
+        Polygon pol = mf.getMaxima(fp, (int) noiseTol, true);
+
+        int n = pol.npoints;
+        final float[] values = new float[n];
+        Integer[] order = new Integer[n];
+        int i;
+        for (i = 0; i < n; i++){
+            order[i] = i;
+            values[i] = fp.getf(pol.xpoints[i], pol.ypoints[i]);
+        }
+        // Arrays.sort on objects is stable, so equal intensities keep MaximumFinder's order
+        Arrays.sort(order, (v1, v2) -> Float.compare(values[v2], values[v1]));
+
+        xs = new float[n];
+        ys = new float[n];
+        intensities = new float[n];
+        for (i = 0; i < n; i++){
+            xs[i] = pol.xpoints[order[i]];
+            ys[i] = pol.ypoints[order[i]];
+            intensities[i] = values[order[i]];
+        }
+        return n;
+    }
+
+
+    /**
+     * Draws a 30x30 box around a chosen bead on the projection.
+     * @param x x coordinate of the bead
+     * @param y y coordinate of the bead
+     * @param value pixel value used to draw the box
+     */
+    void markBead(double x, double y, double value){
+        fp.setValue(value);
+        fp.draw(new Roi(x - 15, y - 15, 30, 30));
+    }
+
+
+    /**
+     * Saves the projection (with any boxes drawn on it) as a tiff file.
+     * @param path String with the path of the output file
+     */
+    void save(String path){
+        IJ.saveAsTiff(new ImagePlus("allbeads", fp), path);
+    }
+
+    float[] getX(){
+        return xs;
+    }
+
+    float[] getY(){
+        return ys;
+    }
+
+    float[] getIntensity(){
+        return intensities;
+    }
+
+    FloatProcessor getProcessor(){
+        return fp;
+    }
+}
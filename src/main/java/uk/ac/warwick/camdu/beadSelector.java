@@ -0,0 +1,160 @@
+package uk.ac.warwick.camdu;
+
+
+/**
+ *
+ * beadSelector - picks beads out of a ranked list of maxima, keeping them apart by a minimum separation
+ *<p>
+ * The rule is the one the commands have always used: going through the maxima from brightest to dimmest, a maximum
+ * is a valid bead unless some maximum ranked after it (dimmer) is closer than minSeparation, not counting maxima
+ * that share its x or its y coordinate. Valid maxima are taken in rank order until enough beads are found.
+ *</p>
+ *<p>
+ * Instead of comparing every maximum with every dimmer one, the maxima are put in a uniform grid with cells at least
+ * minSeparation wide, so only the 3x3 cells around a maximum have to be looked at. Within a cell the maxima are
+ * stored in rank order.
+ *</p>
+ */
+class beadSelector {
+
+    private final float[] xs;
+    private final float[] ys;
+    private final double minSepSq;
+
+    private float minX;
+    private float minY;
+    private double cellSize;
+    private int nCellsX;
+    private int nCellsY;
+    // maxima of cell c are cellItems[cellStart[c]] .. cellItems[cellStart[c+1]-1], in rank order
+    private int[] cellStart;
+    private int[] cellItems;
+
+
+    /**
+     * @param xs float[] with the x coordinates of the maxima, brightest first
+     * @param ys float[] with the y coordinates of the maxima, brightest first
+     * @param minSeparation minimum distance (in pixels) between a bead and any dimmer maximum
+     */
+    beadSelector(float[] xs, float[] ys, double minSeparation){
+        if (xs.length != ys.length){
+            throw new IllegalArgumentException("x and y coordinate arrays have different lengths");
+        }
+        this.xs = xs;
+        this.ys = ys;
+        this.minSepSq = minSeparation * minSeparation;
+        if (minSepSq > 0 && xs.length > 1){
+            buildGrid(Math.sqrt(minSepSq));
+        }
+    }
+
+
+    /**
+     * Puts the maxima in a uniform grid. Cells are minSeparation wide, or wider if that would give many more cells
+     * than maxima (a sparse image with a small minSeparation), so the grid never takes much more memory than the
+     * maxima themselves.
+     * @param minSeparation minimum distance between beads
+     */
+    private void buildGrid(double minSeparation){
+        int n = xs.length;
+        minX = xs[0];
+        minY = ys[0];
+        float maxX = xs[0];
+        float maxY = ys[0];
+        int i;
+        for (i = 1; i < n; i++){
+            minX = Math.min(minX, xs[i]);
+            minY = Math.min(minY, ys[i]);
+            maxX = Math.max(maxX, xs[i]);
+            maxY = Math.max(maxY, ys[i]);
+        }
+        double width = (double) maxX - minX;
+        double height = (double) maxY - minY;
+
+        cellSize = Math.max(minSeparation, Math.max(Math.sqrt(width * height / n), Math.max(width, height) / n));
+        nCellsX = (int) (width / cellSize) + 1;
+        nCellsY = (int) (height / cellSize) + 1;
+
+        int[] cellOf = new int[n];
+        cellStart = new int[nCellsX * nCellsY + 1];
+        for (i = 0; i < n; i++){
+            cellOf[i] = cellY(ys[i]) * nCellsX + cellX(xs[i]);
+            cellStart[cellOf[i] + 1]++;
+        }
+        for (i = 0; i < nCellsX * nCellsY; i++){
+            cellStart[i + 1] += cellStart[i];
+        }
+        int[] fill = new int[nCellsX * nCellsY];
+        cellItems = new int[n];
+        for (i = 0; i < n; i++){
+            cellItems[cellStart[cellOf[i]] + fill[cellOf[i]]++] = i;
+        }
+    }
+
+    private int cellX(float x){
+        return Math.min(nCellsX - 1, (int) ((x - minX) / cellSize));
+    }
+
+    private int cellY(float y){
+        return Math.min(nCellsY - 1, (int) ((y - minY) / cellSize));
+    }
+
+
+    /**
+     * Checks whether a maximum is a valid bead, i.e. no dimmer maximum is closer than minSeparation (maxima sharing
+     * its x or y coordinate are ignored).
+     * @param i rank of the maximum
+     * @return true if it is a valid bead
+     */
+    boolean isValid(int i){
+        if (cellItems == null){
+            return true;
+        }
+        float x1 = xs[i];
+        float y1 = ys[i];
+        int cx = cellX(x1);
+        int cy = cellY(y1);
+        for (int gy = Math.max(0, cy - 1); gy <= Math.min(nCellsY - 1, cy + 1); gy++){
+            for (int gx = Math.max(0, cx - 1); gx <= Math.min(nCellsX - 1, cx + 1); gx++){
+                int cell = gy * nCellsX + gx;
+                for (int k = cellStart[cell + 1] - 1; k >= cellStart[cell]; k--){
+                    int j = cellItems[k];
+                    if (j <= i){
+                        // rank order within the cell: everything left is brighter than i
+                        break;
+                    }
+                    float x2 = xs[j];
+                    float y2 = ys[j];
+                    double dx = x1 - x2;
+                    double dy = y1 - y2;
+                    if (x2 != x1 && y2 != y1 && dx * dx + dy * dy < minSepSq){
+                        return false;
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+
+    /**
+     * Goes through the maxima in rank order and returns the first valid ones.
+     * @param maxBeads number of beads wanted
+     * @return int[] with the ranks of the selected beads (at most maxBeads of them), brightest first
+     */
+    int[] select(int maxBeads){
+        int[] selected = new int[Math.max(0, Math.min(maxBeads, xs.length))];
+        int count = 0;
+        for (int i = 0; i < xs.length && count < selected.length; i++){
+            if (isValid(i)){
+                selected[count++] = i;
+            }
+        }
+        if (count < selected.length){
+            int[] trimmed = new int[count];
+            System.arraycopy(selected, 0, trimmed, 0, count);
+            return trimmed;
+        }
+        return selected;
+    }
+}
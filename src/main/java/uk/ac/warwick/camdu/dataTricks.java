@@ -7,6 +7,7 @@ package uk.ac.warwick.camdu;
 
 
 import ij.measure.Calibration;
+import java.util.Arrays;
 
 class dataTricks {
     public static final int MIN = 0;
@@ -26,6 +27,63 @@ class dataTricks {
         return coord1.length == 2 ? Math.sqrt((coord2[0] - coord1[0]) * (coord2[0] - coord1[0]) * calX * calX + (coord2[1] - coord1[1]) * (coord2[1] - coord1[1]) * calY * calY) : Math.sqrt((coord2[0] - coord1[0]) * (coord2[0] - coord1[0]) * calX * calX + (coord2[1] - coord1[1]) * (coord2[1] - coord1[1]) * calY * calY + (coord2[2] - coord1[2]) * (coord2[2] - coord1[2]) * calZ * calZ);
     }
 
+    /**
+     * Solves a small linear system in place (Gaussian elimination with partial pivoting), without allocating: used by
+     * the Levenberg-Marquardt fitters on their normal equations.
+     * @param augmented double[n][n+1] with the matrix and the right-hand side as last column (modified)
+     * @param solution double[n] receiving the solution
+     * @return false if the matrix is singular
+     */
+    static boolean solveLinearSystem(double[][] augmented, double[] solution) {
+        int n = augmented.length;
+        for(int k = 0; k < n; ++k) {
+            int pivot = k;
+            for(int i = k + 1; i < n; ++i) {
+                if (Math.abs(augmented[i][k]) > Math.abs(augmented[pivot][k])) {
+                    pivot = i;
+                }
+            }
+            if (Math.abs(augmented[pivot][k]) < 1.0E-300D) {
+                return false;
+            }
+            double[] swap = augmented[k];
+            augmented[k] = augmented[pivot];
+            augmented[pivot] = swap;
+            for(int i = k + 1; i < n; ++i) {
+                double factor = augmented[i][k] / augmented[k][k];
+                for(int j = k; j <= n; ++j) {
+                    augmented[i][j] -= factor * augmented[k][j];
+                }
+            }
+        }
+        for(int i = n - 1; i >= 0; --i) {
+            double sum = augmented[i][n];
+            for(int j = i + 1; j < n; ++j) {
+                sum -= augmented[i][j] * solution[j];
+            }
+            solution[i] = sum / augmented[i][i];
+        }
+        return true;
+    }
+
+    /**
+     * Distribution-free 95% confidence interval on the median: the order statistics of ranks n/2 -+ 1.96*sqrt(n)/2
+     * (normal approximation of the binomial), which needs at least 8 values.
+     * @param values double[] with the sample (not modified)
+     * @return double[] with the lower and upper bounds, or null if there are too few values
+     */
+    static double[] medianConfidenceInterval(double[] values) {
+        int n = values.length;
+        int lower = (int)Math.floor((double)n / 2.0D - 0.98D * Math.sqrt((double)n));
+        int upper = (int)Math.ceil(1.0D + (double)n / 2.0D + 0.98D * Math.sqrt((double)n));
+        if (lower < 1 || upper > n) {
+            return null;
+        }
+        double[] sorted = values.clone();
+        Arrays.sort(sorted);
+        return new double[]{sorted[lower - 1], sorted[upper - 1]};
+    }
+
     public static double min(double[] input) {
         return extremum(0, (double[])input);
     }
@@ -14,8 +14,8 @@ import ij.gui.Plot;
 import ij.gui.ProfilePlot;
 import ij.io.FileSaver;
 import ij.measure.Calibration;
+import ij.process.FloatProcessor;
 import ij.process.ImageProcessor;
-import ij.process.ImageStatistics;
 import java.awt.Color;
 import java.awt.Font;
 import java.util.Vector;
@@ -39,37 +39,60 @@ class fieldIllumination {
     private double distInt = 0.0D;
     private double distMax = 0.0D;
     private double dist100 = 0.0D;
+    private illuminationStats stats = null;
+    private illuminationResult result = null;
+    private int bin = 0;
     @SuppressWarnings("unchecked")
     private final Vector<fieldIlluminationArray> remarkInt = new Vector();
-    private static final String[] lineHead = new String[]{"Top-left corner", "Top-right corner", "Bottom-left corner", "Bottom-right corner", "Upper bound, middle pixel", "Lower bound, middle pixel", "Left bound, middle pixel", "Right bound, middle pixel"};
+    static final String[] lineHead = new String[]{"Top-left corner", "Top-right corner", "Bottom-left corner", "Bottom-right corner", "Upper bound, middle pixel", "Lower bound, middle pixel", "Left bound, middle pixel", "Right bound, middle pixel"};
 
     public fieldIllumination(ImagePlus im) {
+        this(im, 0);
+    }
+
+    /**
+     * @param im ImagePlus with the field illumination image
+     * @param bin if above 0, size in pixels of the blocks of a block-averaged grid: the relative intensities, maximum
+     *            and 100% zone are then measured on the grid instead of on single pixels, so hot pixels don't skew them
+     */
+    fieldIllumination(ImagePlus im, int bin) {
+        this(im, bin, true);
+    }
+
+    /**
+     * @param im ImagePlus with the field illumination image
+     * @param bin if above 0, size in pixels of the blocks of the block-averaged grid (see getMap)
+     * @param grid if true (and bin above 0), the metrics are measured on the grid instead of on single pixels
+     */
+    fieldIllumination(ImagePlus im, int bin, boolean grid) {
         this.ip = im;
+        this.bin = grid ? bin : 0;
         if (this.ip == null) {
             IJ.error("Please, open an image first...");
         } else {
             this.w = this.ip.getWidth();
             this.h = this.ip.getHeight();
             this.cal = this.ip.getCalibration();
-            this.ip.setCalibration((Calibration)null);
-            ImageStatistics is = this.ip.getStatistics(64);
-            this.xCent = is.xCenterOfMass;
-            this.yCent = is.yCenterOfMass;
-            this.ip.setCalibration(this.cal);
+            int[][] coords = getPoints(this.w, this.h);
+            this.stats = new illuminationStats(this.ip.getProcessor(), coords, Math.max(bin, 0));
+            double[] centre = this.stats.getCentreOfMass();
+            this.xCent = centre[0];
+            this.yCent = centre[1];
             this.distInt = dataTricks.dist(new double[]{this.xCent, this.yCent}, new double[]{(double)(this.w / 2), (double)(this.h / 2)}, this.cal);
             this.diag_TL_BR = this.getProfile(this.ip, new Line(0, 0, this.w - 1, this.h - 1));
             this.diag_TR_BL = this.getProfile(this.ip, new Line(this.w - 1, 0, 0, this.h - 1));
             this.horiz = this.getProfile(this.ip, new Line(0, this.h / 2 - 1, this.w - 1, this.h / 2 - 1));
             this.vert = this.getProfile(this.ip, new Line(this.w / 2 - 1, 0, this.w / 2 - 1, this.h - 1));
-            int[][] coords = new int[][]{new int[2], {this.w - 1, 0}, {0, this.h - 1}, {this.w - 1, this.h - 1}, {this.w / 2, 0}, {this.w / 2, this.h - 1}, {0, this.h / 2}, {this.w - 1, this.h / 2}};
+            double max = this.bin > 0 ? this.stats.getGridMax() : this.stats.getMax();
+            double[] intensities = this.bin > 0 ? this.stats.getGridIntensities() : this.stats.getIntensities();
 
             for(int i = 0; i < lineHead.length; ++i) {
                 fieldIlluminationArray fia = new fieldIlluminationArray();
                 fia.name = lineHead[i];
                 fia.coord = coords[i];
-                fia.intensity = this.ip.getPixel(coords[i][0], coords[i][1])[0];
-                double max = this.ip.getStatistics(16).max;
-                fia.relativeInt = fia.intensity/max;
+                fia.intensity = (int)intensities[i];
+                // block means are not truncated, so the report gives the same relative intensities as the CSV
+                fia.relativeInt = (this.bin > 0 ? intensities[i] : (double)fia.intensity) / max;
                 this.remarkInt.add(fia);
             }
 
@@ -78,38 +101,41 @@ class fieldIllumination {
 
     private ImagePlus getPattern(int stepWidth, int barWidth) {
         ImageProcessor iproc = NewImage.createImage("", this.w, this.h, 1, 8, 1).getProcessor();
-        double max = this.ip.getStatistics(16).max;
-
-        for(int y = 0; y < this.h; ++y) {
-            for(int x = 0; x < this.w; ++x) {
-                int currInt = this.ip.getPixel(x, y)[0];
-                if ((double)currInt == max) {
-                    this.xMax = (double)x;
-                    this.yMax = (double)y;
-                }
+        double max;
+        double[] centroid100;
+        if (this.bin > 0) {
+            // the grid gives the maximum and the 100% zone; brighter pixels are shown as 100%
+            max = this.stats.getGridMax();
+            double[] maxLocation = this.stats.getGridMaxLocation();
+            this.xMax = maxLocation[0];
+            this.yMax = maxLocation[1];
+            centroid100 = this.stats.getGridMaxCentroid();
+        } else {
+            max = this.stats.getMax();
+            int[] maxLocation = this.stats.getMaxLocation();
+            this.xMax = (double)maxLocation[0];
+            this.yMax = (double)maxLocation[1];
+            // only the pixels at the maximum reach the 100% class, and only if stepWidth divides 100
+            centroid100 = 100 % stepWidth == 0 ? this.stats.getMaxCentroid() : new double[]{Double.NaN, Double.NaN};
+        }
+        Object pixels = this.ip.getProcessor().getPixels();
+        byte[] pattern = (byte[])iproc.getPixels();
 
-                iproc.set(x, y, (int)((double)currInt / max * 100.0D / (double)stepWidth) * stepWidth);
-            }
+        for(int i = 0; i < pattern.length; ++i) {
+            pattern[i] = (byte)((int)(Math.min(illuminationStats.value(pixels, i) / max, 1.0D) * 100.0D / (double)stepWidth) * stepWidth);
         }
 
         this.distMax = dataTricks.dist(new double[]{this.xMax, this.yMax}, new double[]{(double)(this.w / 2), (double)(this.h / 2)}, this.cal);
-        iproc.setThreshold(100.0D, 100.0D, 2);
-        ImagePlus out = new ImagePlus("Pattern from " + this.ip.getTitle(), iproc);
-        ImageStatistics is = out.getStatistics(288);
-        iproc.resetThreshold();
-        this.xCent100 = is.xCentroid;
-        this.yCent100 = is.yCentroid;
+        this.xCent100 = centroid100[0];
+        this.yCent100 = centroid100[1];
         this.dist100 = dataTricks.dist(new double[]{this.xCent100, this.yCent100}, new double[]{(double)(this.w / 2), (double)(this.h / 2)}, this.cal);
         fieldIlluminationArray fia = new fieldIlluminationArray();
         fia.name = "Maximum found at (" + (int)this.xMax + "," + (int)this.yMax + ")";
         fia.coord = new int[]{(int)this.xMax, (int)this.yMax};
         fia.intensity = (int)max;
+        fia.relativeInt = this.bin > 0 ? 1.0D : (double)fia.intensity / max;
         this.remarkInt.add(0, fia);
 
-        for(int i = 0; i < this.remarkInt.size(); ++i) {
-            ((fieldIlluminationArray)this.remarkInt.elementAt(i)).relativeInt = (double)((fieldIlluminationArray)this.remarkInt.elementAt(i)).intensity / max;
-        }
-
         iproc.setFont(new Font("SansSerif", 1, this.w / 35));
         iproc.setColor(Color.white);
         double slope = (double)(this.h - 1) / (double)(this.w - 1);
@@ -183,13 +209,45 @@ class fieldIllumination {
     }
 
     String getStringData() {
-        String out = "\tImage centre\tCentre of intensity\tCentre of the max intensity\tCentre of the 100% zone\nCoordinates\t(" + dataTricks.round((double)(this.w / 2), 3) + ", " + dataTricks.round((double)(this.h / 2), 3) + ")\t(" + dataTricks.round(this.xCent, 3) + ", " + dataTricks.round(this.yCent, 3) + ")\t(" + dataTricks.round(this.xMax, 3) + ", " + dataTricks.round(this.yMax, 3) + ")\t(" + dataTricks.round(this.xCent100, 3) + ", " + dataTricks.round(this.yCent100, 3) + ")\n" + "Distance to image centre\t\t" + dataTricks.round(this.distInt, 3) + "µm\t" + dataTricks.round(this.distMax, 3) + "µm\t" + dataTricks.round(this.dist100, 3) + "µm\n\n" + "Location\tIntensity\tIntensity relative to max\n";
+        StringBuilder out = new StringBuilder("\tImage centre\tCentre of intensity\tCentre of the max intensity\tCentre of the 100% zone\nCoordinates\t(");
+        out.append(dataTricks.round((double)(this.w / 2), 3)).append(", ").append(dataTricks.round((double)(this.h / 2), 3)).append(")\t(");
+        out.append(dataTricks.round(this.xCent, 3)).append(", ").append(dataTricks.round(this.yCent, 3)).append(")\t(");
+        out.append(dataTricks.round(this.xMax, 3)).append(", ").append(dataTricks.round(this.yMax, 3)).append(")\t(");
+        out.append(dataTricks.round(this.xCent100, 3)).append(", ").append(dataTricks.round(this.yCent100, 3)).append(")\n");
+        out.append("Distance to image centre\t\t").append(dataTricks.round(this.distInt, 3)).append("µm\t").append(dataTricks.round(this.distMax, 3)).append("µm\t").append(dataTricks.round(this.dist100, 3)).append("µm\n\n");
+        out.append("Location\tIntensity\tIntensity relative to max\n");
 
         for(int i = 0; i < this.remarkInt.size(); ++i) {
-            out = out + ((fieldIlluminationArray)this.remarkInt.elementAt(i)).toString() + "\n";
+            out.append(((fieldIlluminationArray)this.remarkInt.elementAt(i)).toString()).append("\n");
         }
 
-        return out;
+        return out.toString();
+    }
+
+    /**
+     * Metrics of the image as a typed result, without building the text report.
+     * @return illuminationResult with the corner and edge intensities and the centre offsets
+     */
+    illuminationResult getResult() {
+        if (this.result == null) {
+            this.result = this.stats.getResult(lineHead, this.cal, this.bin > 0);
+        }
+
+        return this.result;
+    }
+
+    /**
+     * @return FloatProcessor with the mean intensity of the blocks of the grid, or null if no block size was given
+     */
+    FloatProcessor getMap() {
+        return this.stats.getMap();
+    }
+
+    /**
+     * @return int[][] with x and y of the corners and middles of the edges of a w x h image, in the order of lineHead
+     */
+    static int[][] getPoints(int w, int h) {
+        return new int[][]{new int[2], {w - 1, 0}, {0, h - 1}, {w - 1, h - 1}, {w / 2, 0}, {w / 2, h - 1}, {0, h / 2}, {w - 1, h / 2}};
     }
 
     public String[][] getCenterTableForReport() {
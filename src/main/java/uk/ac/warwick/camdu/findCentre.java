@@ -7,50 +7,166 @@ package uk.ac.warwick.camdu;
 
 
 import ij.ImagePlus;
+import ij.ImageStack;
 import ij.gui.PolygonRoi;
 import ij.gui.Wand;
 import ij.process.EllipseFitter;
 import ij.process.ImageConverter;
 import ij.process.ImageStatistics;
+import java.util.Arrays;
 
 class findCentre {
     public static final int XY = 0;
     public static final int XZ = 1;
     public static final int YZ = 2;
+    public static final int MOMENTS_METHOD = 0;
+    public static final int ELLIPSE_METHOD = 1;
+    public static final int ELLIPSE_OTSU_METHOD = 2;
+    // fraction of the peak height (above background) below which voxels are ignored by the moments
+    private static final double MOMENTS_THRESHOLD = 0.25D;
+    private final int method;
 
     findCentre() {
+        this(MOMENTS_METHOD);
+    }
+
+    /**
+     * @param method MOMENTS_METHOD (default) for background-subtracted intensity-weighted moments of the crop, or
+     *               ELLIPSE_METHOD for the segmentation and ellipse fitting of the XY and XZ projections used before,
+     *               or ELLIPSE_OTSU_METHOD for the same with the projections segmented by Otsu thresholding instead of
+     *               the iterative means
+     */
+    findCentre(int method) {
+        this.method = method;
     }
 
     double[] getAllCoordinates(ImagePlus ip) {
+        if (this.method == MOMENTS_METHOD && ip.getBitDepth() != 24) {
+            return this.getMomentsCentre(ip);
+        }
         double[] coord;
+        // one generator for both views: the stack is only read once for the XY and XZ projections
+        sideViewGenerator svg = new sideViewGenerator();
         if (ip.getNSlices() == 1) {
-            coord = this.get2DCenter(ip, 0);
+            coord = this.get2DCenter(ip, 0, svg);
         } else {
-            double[] coord2D = this.get2DCenter(ip, 0);
-            coord = new double[]{coord2D[0], coord2D[1], this.get2DCenter(ip, 1)[1]};
+            double[] coord2D = this.get2DCenter(ip, 0, svg);
+            coord = new double[]{coord2D[0], coord2D[1], this.get2DCenter(ip, 1, svg)[1]};
         }
 
         return coord;
     }
 
-    private double[] get2DCenter(ImagePlus ip, int profileType) {
+    /**
+     * Sub-pixel centre from the moments of the crop, working on the pixel values directly.
+     * <p>
+     * The background is the median of the voxels on the x/y borders of the crop. Each voxel is then weighted by how
+     * much it rises above background + MOMENTS_THRESHOLD * (peak - background), so that noise and the far tails do not
+     * pull the centre towards the middle of the crop. Coordinates use the same convention as ELLIPSE_METHOD (pixel
+     * centres at i + 0.5; for stacks, z from the XZ view rows, the first slice being 0.5).
+     * </p>
+     * @param ip ImagePlus with the bead crop (8, 16 or 32-bit; current channel and frame)
+     * @return double[] with x, y (and z for stacks) of the centre, in pixels
+     */
+    private double[] getMomentsCentre(ImagePlus ip) {
+        int width = ip.getWidth();
+        int height = ip.getHeight();
+        int depth = ip.getNSlices();
+        ImageStack stack = ip.getStack();
+        float[][] slices = new float[depth][];
+        int nBorder = depth * (width > 1 && height > 1 ? 2 * (width + height) - 4 : width * height);
+        float[] border = new float[nBorder];
+        int b = 0;
+        float peak = -Float.MAX_VALUE;
+        for(int z = 0; z < depth; ++z) {
+            int index = depth == 1 ? ip.getCurrentSlice() : ip.getStackIndex(ip.getChannel(), z + 1, ip.getFrame());
+            slices[z] = this.toFloat(stack.getPixels(index));
+            for(int y = 0; y < height; ++y) {
+                boolean edgeRow = y == 0 || y == height - 1;
+                for(int x = 0; x < width; ++x) {
+                    float value = slices[z][y * width + x];
+                    peak = Math.max(peak, value);
+                    if ((edgeRow || x == 0 || x == width - 1) && b < nBorder) {
+                        border[b++] = value;
+                    }
+                }
+            }
+        }
+
+        Arrays.sort(border, 0, b);
+        double background = b > 0 ? (double)border[b / 2] : 0.0D;
+        double threshold = background + MOMENTS_THRESHOLD * ((double)peak - background);
+        double sum = 0.0D;
+        double sumX = 0.0D;
+        double sumY = 0.0D;
+        double sumZ = 0.0D;
+        for(int z = 0; z < depth; ++z) {
+            for(int y = 0; y < height; ++y) {
+                for(int x = 0; x < width; ++x) {
+                    double weight = (double)slices[z][y * width + x] - threshold;
+                    if (weight > 0.0D) {
+                        sum += weight;
+                        sumX += weight * ((double)x + 0.5D);
+                        sumY += weight * ((double)y + 0.5D);
+                        sumZ += weight * ((double)z + 0.5D);
+                    }
+                }
+            }
+        }
+
+        if (sum <= 0.0D) {
+            // flat crop: its middle
+            sum = 1.0D;
+            sumX = (double)width / 2.0D;
+            sumY = (double)height / 2.0D;
+            sumZ = (double)depth / 2.0D;
+        }
+        return depth == 1 ? new double[]{sumX / sum, sumY / sum} : new double[]{sumX / sum, sumY / sum, sumZ / sum};
+    }
+
+    private float[] toFloat(Object pixels) {
+        if (pixels instanceof float[]) {
+            return (float[])pixels;
+        }
+        float[] values;
+        if (pixels instanceof short[]) {
+            short[] shorts = (short[])pixels;
+            values = new float[shorts.length];
+            for(int i = 0; i < shorts.length; ++i) {
+                values[i] = (float)(shorts[i] & 0xffff);
+            }
+        } else {
+            byte[] bytes = (byte[])pixels;
+            values = new float[bytes.length];
+            for(int i = 0; i < bytes.length; ++i) {
+                values[i] = (float)(bytes[i] & 255);
+            }
+        }
+        return values;
+    }
+
+    private double[] get2DCenter(ImagePlus ip, int profileType, sideViewGenerator svg) {
         double[] coord = new double[2];
         ImagePlus proj = null;
         switch(profileType) {
             case 1:
-                proj = (new sideViewGenerator()).getXZview(ip, 3, false);
+                proj = svg.getXZview(ip, 3, false);
                 break;
             case 2:
-                proj = (new sideViewGenerator()).getYZview(ip, 3, false);
+                proj = svg.getYZview(ip, 3, false);
                 break;
             case 0:
             default:
-                proj = (new sideViewGenerator()).getXYview(ip, 3);
+                proj = svg.getXYview(ip, 3);
         }
         (new ImageConverter(proj)).convertToGray8();
         proj.updateImage();
         HistogramSegmentation hs = new HistogramSegmentation(proj);
-        hs.calcLimits(2, 100, 0, true);
+        if (this.method == ELLIPSE_OTSU_METHOD && hs.getMax() > hs.getMin()) {
+            hs.getLimitsOtsu(2);
+        } else {
+            hs.calcLimits(2, 100, 0, true);
+        }
         proj = hs.getsegmentedImage(proj, 1);
         proj.updateImage();
         ImageStatistics is = proj.getStatistics(64);
@@ -6,40 +6,138 @@ package uk.ac.warwick.camdu;
 //
 
 import ij.ImagePlus;
+import ij.ImageStack;
 
 class findMax {
+    private float max;
+    private int best;
+    private int bestZ;
+
     findMax() {
     }
 
+    /**
+     * Finds the brightest voxel in a single pass over the slice arrays, without projecting the stack. Gives the same
+     * result as the maximum of the MAX projection (first one row by row) followed by the first slice reaching it at
+     * that position.
+     * @param ip ImagePlus with an 8-bit, 16-bit or 32-bit image or stack (the current channel and frame are used)
+     * @return int[] with x and y of the maximum, and its slice (starting at 1) for stacks
+     */
     int[] getAllCoordinates(ImagePlus ip) {
-        int[] coord;
         if (ip.getNSlices() == 1) {
-            coord = this.get2DCenter(ip);
-        } else {
-            int[] coord2D = this.get2DCenter((new sideViewGenerator()).getXYview(ip, 1));
-            coord = new int[]{coord2D[0], coord2D[1], 0};
-            coord[2] = this.getZmax(ip, coord[0], coord[1]);
+            return this.get2DCenter(ip);
+        }
+        this.max = 0.0F;
+        this.best = 0;
+        this.bestZ = 1;
+        ImageStack stack = ip.getStack();
+        for(int z = 1; z <= ip.getNSlices(); ++z) {
+            this.scan(stack.getPixels(ip.getStackIndex(ip.getChannel(), z, ip.getFrame())), z);
         }
 
-        return coord;
+        return new int[]{this.best % ip.getWidth(), this.best / ip.getWidth(), this.bestZ};
     }
 
-    private int[] get2DCenter(ImagePlus ip) {
-        int max = 0;
-        int[] coord = new int[2];
+    /**
+     * Same as getAllCoordinates, refined to sub-pixel precision with a parabola through the maximum and its two
+     * neighbours along each axis (no refinement on the borders, if the neighbours are not lower or if a value is not
+     * finite).
+     * @param ip ImagePlus with an 8-bit, 16-bit or 32-bit image or stack
+     * @return double[] with x and y of the maximum, and its slice (starting at 1) for stacks
+     */
+    double[] getSubPixelCoordinates(ImagePlus ip) {
+        int[] coord = this.getAllCoordinates(ip);
+        double[] refined = new double[coord.length];
+        // neighbours are read from the slice arrays, as scan() does: getVoxel does not see virtual stacks
+        ImageStack stack = ip.getStack();
+        int w = ip.getWidth();
+        int x = coord[0];
+        int y = coord[1];
+        int i = y * w + x;
+        Object pixels = coord.length > 2 ? stack.getPixels(ip.getStackIndex(ip.getChannel(), coord[2], ip.getFrame())) : ip.getProcessor().getPixels();
+        double centre = this.value(pixels, i);
+        refined[0] = x + (x > 0 && x < w - 1 ? this.parabolaOffset(this.value(pixels, i - 1), centre, this.value(pixels, i + 1)) : 0.0D);
+        refined[1] = y + (y > 0 && y < ip.getHeight() - 1 ? this.parabolaOffset(this.value(pixels, i - w), centre, this.value(pixels, i + w)) : 0.0D);
+        if (coord.length > 2) {
+            refined[2] = coord[2];
+            if (coord[2] > 1 && coord[2] < ip.getNSlices()) {
+                Object before = stack.getPixels(ip.getStackIndex(ip.getChannel(), coord[2] - 1, ip.getFrame()));
+                Object after = stack.getPixels(ip.getStackIndex(ip.getChannel(), coord[2] + 1, ip.getFrame()));
+                refined[2] += this.parabolaOffset(this.value(before, i), centre, this.value(after, i));
+            }
+        }
 
-        for(int y = 0; y < ip.getHeight(); ++y) {
-            for(int x = 0; x < ip.getWidth(); ++x) {
-                int currVal = ip.getProcessor().getPixel(x, y);
-                if (currVal > max) {
-                    coord[0] = x;
-                    coord[1] = y;
-                    max = currVal;
+        return refined;
+    }
+
+    private double parabolaOffset(double before, double centre, double after) {
+        double curvature = before - 2.0D * centre + after;
+        if (!Double.isFinite(before) || !Double.isFinite(centre) || !Double.isFinite(after) || curvature >= 0.0D) {
+            return 0.0D;
+        }
+        return Math.max(-0.5D, Math.min(0.5D, 0.5D * (before - after) / curvature));
+    }
+
+    private double value(Object pixels, int i) {
+        if (pixels instanceof byte[]) {
+            return (double)(((byte[])pixels)[i] & 255);
+        } else if (pixels instanceof short[]) {
+            return (double)(((short[])pixels)[i] & 0xffff);
+        } else if (pixels instanceof float[]) {
+            return (double)((float[])pixels)[i];
+        } else {
+            throw new IllegalArgumentException("findMax requires an 8-bit, 16-bit or 32-bit image");
+        }
+    }
+
+    /**
+     * Updates the maximum with one slice: a higher value always wins, an equal one only if it comes earlier in the
+     * row by row order (within a slice or from a later one). Only values above 0 count, as before.
+     */
+    private void scan(Object pixels, int z) {
+        if (pixels instanceof byte[]) {
+            byte[] values = (byte[])pixels;
+            for(int i = 0; i < values.length; ++i) {
+                float value = (float)(values[i] & 255);
+                if (value >= this.max && value > 0.0F) {
+                    this.update(value, i, z);
+                }
+            }
+        } else if (pixels instanceof short[]) {
+            short[] values = (short[])pixels;
+            for(int i = 0; i < values.length; ++i) {
+                float value = (float)(values[i] & 0xffff);
+                if (value >= this.max && value > 0.0F) {
+                    this.update(value, i, z);
                 }
             }
+        } else if (pixels instanceof float[]) {
+            float[] values = (float[])pixels;
+            for(int i = 0; i < values.length; ++i) {
+                float value = values[i];
+                if (value >= this.max && value > 0.0F) {
+                    this.update(value, i, z);
+                }
+            }
+        } else {
+            throw new IllegalArgumentException("findMax requires an 8-bit, 16-bit or 32-bit image");
         }
+    }
 
-        return coord;
+    private void update(float value, int i, int z) {
+        if (value > this.max || i < this.best) {
+            this.max = value;
+            this.best = i;
+            this.bestZ = z;
+        }
+    }
+
+    private int[] get2DCenter(ImagePlus ip) {
+        this.max = 0.0F;
+        this.best = 0;
+        this.bestZ = 1;
+        this.scan(ip.getProcessor().getPixels(), 1);
+        return new int[]{this.best % ip.getWidth(), this.best / ip.getWidth()};
     }
 
     public int getXmax(ImagePlus ip, int yPos) {
@@ -71,21 +169,5 @@ class findMax {
 
         return coord;
     }
-
-    private int getZmax(ImagePlus ip, int xPos, int yPos) {
-        int max = 0;
-        int coord = 1;
-
-        for(int z = 1; z <= ip.getNSlices(); ++z) {
-            ip.setSlice(z);
-            int currVal = ip.getProcessor().getPixel(xPos, yPos);
-            if (currVal > max) {
-                coord = z;
-                max = currVal;
-            }
-        }
-
-        return coord;
-    }
 }
 
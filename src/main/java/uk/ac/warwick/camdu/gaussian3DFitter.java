@@ -0,0 +1,377 @@
+package uk.ac.warwick.camdu;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Calibration;
+import ij.process.FloatProcessor;
+
+
+/**
+ *
+ * gaussian3DFitter - Levenberg-Marquardt fit of a 3D Gaussian to a whole bead crop
+ *<p>
+ * Fits f = B + A*exp(-(u^2/(2*sx^2) + v^2/(2*sy^2) + w^2/(2*sz^2))) to every voxel of the crop, where (u, v, w) is the
+ * position relative to the centre (cx, cy, cz), optionally rotated by an angle theta around the optical axis to follow
+ * astigmatic or tilted PSFs (u and v are then along the principal axes of the PSF). Positions are in calibrated units,
+ * voxel (i, j, k) being at (i*pixelWidth, j*pixelHeight, k*pixelDepth), as for the PSFprofiler line profiles, so the
+ * centre has sub-voxel precision and the FWHMs can be compared directly.
+ *</p>
+ *<p>
+ * Using all the voxels makes the fit much less sensitive to noise and to the brightest voxel being off-centre than the
+ * three line profiles, at the cost of more work per bead. The solver keeps the derivatives analytic and accumulates the
+ * normal equations while going over the voxels, without storing the Jacobian, and all its buffers are allocated once
+ * and reused between fits: nothing is allocated inside the iterations. A fitter is not thread-safe; the beads are
+ * fitted in parallel by giving each thread its own fitter (one per PSFprofiler, as autoPSF does with its fitting
+ * threads).
+ *</p>
+ */
+class gaussian3DFitter {
+
+    static final int OFFSET = 0;
+    static final int AMPLITUDE = 1;
+    static final int CX = 2;
+    static final int CY = 3;
+    static final int CZ = 4;
+    static final int SX = 5;
+    static final int SY = 6;
+    static final int SZ = 7;
+    static final int THETA = 8;
+
+    private static final int MAX_ITERATIONS = 100;
+    private static final double TOLERANCE = 1e-9;
+    private static final double MAX_LAMBDA = 1e10;
+
+    private final boolean rotated;
+    private final int nParams;
+    private final double[] params;
+    private final double[] trial;
+    private final double[] gradient;
+    private final double[] step;
+    private final double[] derivatives;
+    private final double[][] hessian;
+    private final double[][] system;
+
+    private float[] voxels = new float[0];
+    private int width;
+    private int height;
+    private int depth;
+    private double pixelWidth;
+    private double pixelHeight;
+    private double pixelDepth;
+    private String unit = "pixel";
+    private double sse = Double.NaN;
+    private int iterations = 0;
+    private boolean converged = false;
+
+
+    /**
+     * @param rotated if true, also fits the angle of the PSF around the optical axis
+     */
+    gaussian3DFitter(boolean rotated){
+        this.rotated = rotated;
+        nParams = rotated ? 9 : 8;
+        params = new double[nParams];
+        trial = new double[nParams];
+        gradient = new double[nParams];
+        step = new double[nParams];
+        derivatives = new double[nParams];
+        hessian = new double[nParams][nParams];
+        system = new double[nParams][nParams + 1];
+    }
+
+
+    /**
+     * Fits the current channel and frame of a bead crop.
+     * @param ip ImagePlus with the bead stack (8, 16 or 32-bit, calibrated)
+     * @param start double[] with starting values for B, A, cx, cy, cz, sx, sy and sz (calibrated units)
+     * @return true if the fit converged
+     */
+    boolean fit(ImagePlus ip, double[] start){
+        if (start.length < 8){
+            throw new IllegalArgumentException("gaussian3DFitter needs 8 starting values");
+        }
+        readVoxels(ip);
+        System.arraycopy(start, 0, params, 0, 8);
+        if (rotated){
+            params[THETA] = 0;
+        }
+
+        double lambda = 1e-3;
+        sse = accumulate(params, true);
+        converged = false;
+        int i, j;
+        for (iterations = 0; iterations < MAX_ITERATIONS && !converged; iterations++){
+            boolean improved = false;
+            while (!improved && lambda < MAX_LAMBDA){
+                for (i = 0; i < nParams; i++){
+                    for (j = 0; j < nParams; j++){
+                        system[i][j] = hessian[i][j];
+                    }
+                    system[i][i] += lambda * Math.max(hessian[i][i], 1e-12);
+                    system[i][nParams] = gradient[i];
+                }
+                if (!dataTricks.solveLinearSystem(system, step)){
+                    lambda *= 10;
+                    continue;
+                }
+                for (i = 0; i < nParams; i++){
+                    trial[i] = params[i] + step[i];
+                }
+                double trialSse = accumulate(trial, false);
+                if (trialSse <= sse){
+                    converged = sse - trialSse <= TOLERANCE * Math.max(sse, Double.MIN_NORMAL);
+                    System.arraycopy(trial, 0, params, 0, nParams);
+                    sse = accumulate(params, true);
+                    lambda = Math.max(lambda / 10, 1e-12);
+                    improved = true;
+                } else {
+                    lambda *= 10;
+                }
+            }
+            if (!improved){
+                converged = true;
+            }
+        }
+        normalise();
+        return converged;
+    }
+
+
+    private void readVoxels(ImagePlus ip){
+        ImageStack stack = ip.getStack();
+        Calibration cal = ip.getCalibration();
+        width = ip.getWidth();
+        height = ip.getHeight();
+        depth = ip.getNSlices();
+        pixelWidth = cal.pixelWidth;
+        pixelHeight = cal.pixelHeight;
+        pixelDepth = cal.pixelDepth;
+        unit = cal.getUnit();
+        int plane = width * height;
+        if (voxels.length < plane * depth){
+            voxels = new float[plane * depth];
+        }
+        int z, i;
+        for (z = 0; z < depth; z++){
+            Object pixels = stack.getPixels(ip.getStackIndex(ip.getChannel(), z + 1, ip.getFrame()));
+            int base = z * plane;
+            if (pixels instanceof float[]){
+                System.arraycopy(pixels, 0, voxels, base, plane);
+            } else if (pixels instanceof short[]){
+                short[] values = (short[]) pixels;
+                for (i = 0; i < plane; i++){
+                    voxels[base + i] = values[i] & 0xffff;
+                }
+            } else if (pixels instanceof byte[]){
+                byte[] values = (byte[]) pixels;
+                for (i = 0; i < plane; i++){
+                    voxels[base + i] = values[i] & 0xff;
+                }
+            } else {
+                throw new IllegalArgumentException("gaussian3DFitter requires an 8-bit, 16-bit or 32-bit stack");
+            }
+        }
+    }
+
+    /**
+     * Goes over all the voxels once: returns the sum of squared residuals and, if asked, builds the normal equations
+     * (J^T.J in hessian, J^T.r in gradient) at the same time.
+     */
+    private double accumulate(double[] p, boolean normalEquations){
+        double offset = p[OFFSET];
+        double amplitude = p[AMPLITUDE];
+        double cx = p[CX];
+        double cy = p[CY];
+        double cz = p[CZ];
+        double sx2 = p[SX] * p[SX];
+        double sy2 = p[SY] * p[SY];
+        double sz2 = p[SZ] * p[SZ];
+        double cos = rotated ? Math.cos(p[THETA]) : 1;
+        double sin = rotated ? Math.sin(p[THETA]) : 0;
+        int j, k;
+        if (normalEquations){
+            for (j = 0; j < nParams; j++){
+                gradient[j] = 0;
+                for (k = 0; k < nParams; k++){
+                    hessian[j][k] = 0;
+                }
+            }
+        }
+        double sum = 0;
+        int x, y, z;
+        int index = 0;
+        for (z = 0; z < depth; z++){
+            double w = z * pixelDepth - cz;
+            double qz = w * w / (2 * sz2);
+            for (y = 0; y < height; y++){
+                double dy = y * pixelHeight - cy;
+                for (x = 0; x < width; x++, index++){
+                    double dx = x * pixelWidth - cx;
+                    double u = dx * cos + dy * sin;
+                    double v = -dx * sin + dy * cos;
+                    double g = Math.exp(-(u * u / (2 * sx2) + v * v / (2 * sy2) + qz));
+                    double r = voxels[index] - (offset + amplitude * g);
+                    sum += r * r;
+                    if (!normalEquations){
+                        continue;
+                    }
+                    double ag = amplitude * g;
+                    derivatives[OFFSET] = 1;
+                    derivatives[AMPLITUDE] = g;
+                    derivatives[CX] = ag * (u * cos / sx2 - v * sin / sy2);
+                    derivatives[CY] = ag * (u * sin / sx2 + v * cos / sy2);
+                    derivatives[CZ] = ag * w / sz2;
+                    derivatives[SX] = ag * u * u / (sx2 * p[SX]);
+                    derivatives[SY] = ag * v * v / (sy2 * p[SY]);
+                    derivatives[SZ] = ag * w * w / (sz2 * p[SZ]);
+                    if (rotated){
+                        derivatives[THETA] = -ag * u * v * (1 / sx2 - 1 / sy2);
+                    }
+                    for (j = 0; j < nParams; j++){
+                        double dj = derivatives[j];
+                        gradient[j] += dj * r;
+                        for (k = 0; k <= j; k++){
+                            hessian[j][k] += dj * derivatives[k];
+                        }
+                    }
+                }
+            }
+        }
+        if (normalEquations){
+            for (j = 0; j < nParams; j++){
+                for (k = j + 1; k < nParams; k++){
+                    hessian[j][k] = hessian[k][j];
+                }
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * Positive sigmas, and an angle between -90 and 90 degrees.
+     */
+    private void normalise(){
+        params[SX] = Math.abs(params[SX]);
+        params[SY] = Math.abs(params[SY]);
+        params[SZ] = Math.abs(params[SZ]);
+        if (rotated){
+            double theta = Math.atan(Math.tan(params[THETA]));
+            params[THETA] = Double.isNaN(theta) ? 0 : theta;
+        }
+    }
+
+
+    /**
+     * @return double[] with all the fitted parameters (B, A, cx, cy, cz, sx, sy, sz and theta if rotated)
+     */
+    double[] getParams(){
+        return params.clone();
+    }
+
+    /**
+     * @return double[] with the centre of the bead (x, y, z) in calibrated units
+     */
+    double[] getCentre(){
+        return new double[]{params[CX], params[CY], params[CZ]};
+    }
+
+    /**
+     * @return double[] with the FWHM along x, y and z (along the principal axes of the PSF if rotated)
+     */
+    double[] getFwhm(){
+        return new double[]{gaussianFitter.FWHM_FACTOR * params[SX], gaussianFitter.FWHM_FACTOR * params[SY],
+                gaussianFitter.FWHM_FACTOR * params[SZ]};
+    }
+
+    /**
+     * @return angle of the PSF around the optical axis in radians (0 if not rotated)
+     */
+    double getAngle(){
+        return rotated ? params[THETA] : 0;
+    }
+
+    /**
+     * @return sum of squared residuals
+     */
+    double getSSE(){
+        return sse;
+    }
+
+    /**
+     * @return root mean square of the residuals
+     */
+    double getRmsResidual(){
+        return Math.sqrt(sse / ((double) width * height * depth));
+    }
+
+    /**
+     * @return R^2 adjusted for the number of parameters, as CurveFitter.getFitGoodness()
+     */
+    double getFitGoodness(){
+        int n = width * height * depth;
+        double mean = 0;
+        int i;
+        for (i = 0; i < n; i++){
+            mean += voxels[i];
+        }
+        mean /= n;
+        double ssd = 0;
+        for (i = 0; i < n; i++){
+            ssd += (voxels[i] - mean) * (voxels[i] - mean);
+        }
+        int degreesOfFreedom = n - nParams;
+        if (ssd <= 0 || degreesOfFreedom <= 0){
+            return 0;
+        }
+        return 1.0 - (sse / degreesOfFreedom) * ((n - 1) / ssd);
+    }
+
+    /**
+     * @return number of iterations of the last fit
+     */
+    int getIterations(){
+        return iterations;
+    }
+
+    /**
+     * @return true if the last fit converged
+     */
+    boolean hasConverged(){
+        return converged;
+    }
+
+    /**
+     * @return ImagePlus with the residuals (data - fit) of the last fit, as a calibrated 32-bit stack
+     */
+    ImagePlus getResiduals(){
+        double cos = rotated ? Math.cos(params[THETA]) : 1;
+        double sin = rotated ? Math.sin(params[THETA]) : 0;
+        ImageStack stack = new ImageStack(width, height);
+        int x, y, z;
+        int index = 0;
+        for (z = 0; z < depth; z++){
+            float[] plane = new float[width * height];
+            double w = z * pixelDepth - params[CZ];
+            for (y = 0; y < height; y++){
+                double dy = y * pixelHeight - params[CY];
+                for (x = 0; x < width; x++, index++){
+                    double dx = x * pixelWidth - params[CX];
+                    double u = dx * cos + dy * sin;
+                    double v = -dx * sin + dy * cos;
+                    double g = Math.exp(-(u * u / (2 * params[SX] * params[SX]) + v * v / (2 * params[SY] * params[SY])
+                            + w * w / (2 * params[SZ] * params[SZ])));
+                    plane[y * width + x] = (float) (voxels[index] - (params[OFFSET] + params[AMPLITUDE] * g));
+                }
+            }
+            stack.addSlice(new FloatProcessor(width, height, plane));
+        }
+        ImagePlus residuals = new ImagePlus("Residuals", stack);
+        Calibration cal = new Calibration();
+        cal.pixelWidth = pixelWidth;
+        cal.pixelHeight = pixelHeight;
+        cal.pixelDepth = pixelDepth;
+        cal.setUnit(unit);
+        residuals.setCalibration(cal);
+        return residuals;
+    }
+}
@@ -0,0 +1,272 @@
+package uk.ac.warwick.camdu;
+
+
+/**
+ *
+ * gaussianFitter - Levenberg-Marquardt fit of a 1D Gaussian profile
+ *<p>
+ * Fits y = a + (b-a)*exp(-(x-c)^2/(2*d^2)), the same function as CurveFitter.GAUSSIAN (a: offset, b: peak, c: centre,
+ * d: sigma), with analytic derivatives instead of CurveFitter's simplex with restarts. Starting values come from the
+ * profile itself: minimum and maximum for a and b, the centroid of the points above half maximum for c and the width
+ * at half maximum for d. The work buffers are kept between fits, so one fitter can be reused for all the profiles of
+ * a bead (and for all the beads handled by one thread).
+ *</p>
+ *<p>
+ * getFitGoodness() is CurveFitter's R^2, adjusted for the number of parameters, and getFwhm() is 2*sqrt(2*ln2)*d, as
+ * PSFprofiler reported it with CurveFitter. A fitter is not thread-safe.
+ *</p>
+ */
+class gaussianFitter {
+
+    static final double FWHM_FACTOR = 2.0 * Math.sqrt(2.0 * Math.log(2.0));
+
+    private static final int N_PARAMS = 4;
+    private static final int MAX_ITERATIONS = 200;
+    private static final double TOLERANCE = 1e-10;
+    private static final double MAX_LAMBDA = 1e10;
+
+    private final double[] params = new double[N_PARAMS];
+    private final double[] trial = new double[N_PARAMS];
+    private final double[] gradient = new double[N_PARAMS];
+    private final double[] step = new double[N_PARAMS];
+    private final double[][] hessian = new double[N_PARAMS][N_PARAMS];
+    private final double[][] system = new double[N_PARAMS][N_PARAMS + 1];
+    private double[] jacobian = new double[0];
+    private double[] residuals = new double[0];
+
+    private double[] x;
+    private double[] y;
+    private int n;
+    private double sse = Double.NaN;
+    private int iterations = 0;
+
+
+    /**
+     * Fits a profile.
+     * @param x double[] with the positions
+     * @param y double[] with the intensities
+     * @return true if the fit converged before the maximum number of iterations
+     */
+    boolean fit(double[] x, double[] y){
+        if (x.length != y.length || x.length < N_PARAMS){
+            throw new IllegalArgumentException("gaussianFitter needs at least 4 points, with as many x as y values");
+        }
+        this.x = x;
+        this.y = y;
+        n = x.length;
+        if (jacobian.length < n * N_PARAMS){
+            jacobian = new double[n * N_PARAMS];
+            residuals = new double[n];
+        }
+        initialGuess();
+
+        double lambda = 1e-3;
+        sse = evaluate(params, true);
+        boolean converged = false;
+        int i, j;
+        for (iterations = 0; iterations < MAX_ITERATIONS && !converged; iterations++){
+            buildNormalEquations();
+            boolean improved = false;
+            while (!improved && lambda < MAX_LAMBDA){
+                for (i = 0; i < N_PARAMS; i++){
+                    for (j = 0; j < N_PARAMS; j++){
+                        system[i][j] = hessian[i][j];
+                    }
+                    system[i][i] += lambda * Math.max(hessian[i][i], 1e-12);
+                    system[i][N_PARAMS] = gradient[i];
+                }
+                if (!dataTricks.solveLinearSystem(system, step)){
+                    lambda *= 10;
+                    continue;
+                }
+                for (i = 0; i < N_PARAMS; i++){
+                    trial[i] = params[i] + step[i];
+                }
+                double trialSse = evaluate(trial, false);
+                if (trialSse <= sse){
+                    converged = sse - trialSse <= TOLERANCE * Math.max(sse, Double.MIN_NORMAL);
+                    System.arraycopy(trial, 0, params, 0, N_PARAMS);
+                    sse = evaluate(params, true);
+                    lambda = Math.max(lambda / 10, 1e-12);
+                    improved = true;
+                } else {
+                    lambda *= 10;
+                }
+            }
+            if (!improved){
+                // no step reduces the error any more: we are at the minimum
+                converged = true;
+            }
+        }
+        params[3] = Math.abs(params[3]);
+        return converged;
+    }
+
+
+    /**
+     * Starting values: a and b from the extremes, c and d from the points above half maximum.
+     */
+    private void initialGuess(){
+        double min = y[0];
+        double max = y[0];
+        int maxIndex = 0;
+        int i;
+        for (i = 1; i < n; i++){
+            if (y[i] < min){
+                min = y[i];
+            }
+            if (y[i] > max){
+                max = y[i];
+                maxIndex = i;
+            }
+        }
+        double halfMax = (min + max) / 2;
+        double weights = 0;
+        double centroid = 0;
+        int first = maxIndex;
+        int last = maxIndex;
+        while (first > 0 && y[first - 1] > halfMax){
+            first--;
+        }
+        while (last < n - 1 && y[last + 1] > halfMax){
+            last++;
+        }
+        for (i = first; i <= last; i++){
+            double w = y[i] - halfMax;
+            weights += w;
+            centroid += w * x[i];
+        }
+        double spacing = Math.abs(x[n - 1] - x[0]) / (n - 1);
+        params[0] = min;
+        params[1] = max;
+        params[2] = weights > 0 ? centroid / weights : x[maxIndex];
+        params[3] = Math.max(spacing / 2, (Math.abs(x[last] - x[first]) + spacing) / FWHM_FACTOR);
+    }
+
+    /**
+     * @return sum of squared residuals for the given parameters; also fills residuals and the Jacobian if asked
+     */
+    private double evaluate(double[] p, boolean fillJacobian){
+        double a = p[0];
+        double amplitude = p[1] - p[0];
+        double c = p[2];
+        double d = p[3];
+        double d2 = d * d;
+        double sum = 0;
+        int i;
+        for (i = 0; i < n; i++){
+            double dx = x[i] - c;
+            double e = Math.exp(-dx * dx / (2 * d2));
+            double r = y[i] - (a + amplitude * e);
+            sum += r * r;
+            if (fillJacobian){
+                int k = i * N_PARAMS;
+                residuals[i] = r;
+                jacobian[k] = 1 - e;
+                jacobian[k + 1] = e;
+                jacobian[k + 2] = amplitude * e * dx / d2;
+                jacobian[k + 3] = amplitude * e * dx * dx / (d2 * d);
+            }
+        }
+        return sum;
+    }
+
+    private void buildNormalEquations(){
+        int i, j, k;
+        for (j = 0; j < N_PARAMS; j++){
+            gradient[j] = 0;
+            for (k = 0; k < N_PARAMS; k++){
+                hessian[j][k] = 0;
+            }
+        }
+        for (i = 0; i < n; i++){
+            int row = i * N_PARAMS;
+            for (j = 0; j < N_PARAMS; j++){
+                double jj = jacobian[row + j];
+                gradient[j] += jj * residuals[i];
+                for (k = 0; k <= j; k++){
+                    hessian[j][k] += jj * jacobian[row + k];
+                }
+            }
+        }
+        for (j = 0; j < N_PARAMS; j++){
+            for (k = j + 1; k < N_PARAMS; k++){
+                hessian[j][k] = hessian[k][j];
+            }
+        }
+    }
+
+
+    /**
+     * @return double[] with a, b, c and d (copy)
+     */
+    double[] getParams(){
+        return params.clone();
+    }
+
+    /**
+     * @return FWHM of the fitted Gaussian, in the units of x
+     */
+    double getFwhm(){
+        return FWHM_FACTOR * params[3];
+    }
+
+    /**
+     * @return sum of squared residuals of the fit
+     */
+    double getSSE(){
+        return sse;
+    }
+
+    /**
+     * @return number of iterations of the last fit
+     */
+    int getIterations(){
+        return iterations;
+    }
+
+    /**
+     * Same as CurveFitter.getFitGoodness(): R^2 adjusted for the 4 parameters, 0 if it can't be computed.
+     * @return goodness of the fit, 1 being best
+     */
+    double getFitGoodness(){
+        double mean = 0;
+        int i;
+        for (i = 0; i < n; i++){
+            mean += y[i];
+        }
+        mean /= n;
+        double ssd = 0;
+        for (i = 0; i < n; i++){
+            ssd += (y[i] - mean) * (y[i] - mean);
+        }
+        int degreesOfFreedom = n - N_PARAMS;
+        if (ssd <= 0 || degreesOfFreedom == 0){
+            return 0;
+        }
+        return 1.0 - (sse / degreesOfFreedom) * ((n - 1) / ssd);
+    }
+
+    /**
+     * @param xValue position
+     * @return value of the fitted function at this position
+     */
+    double f(double xValue){
+        double dx = xValue - params[2];
+        return params[0] + (params[1] - params[0]) * Math.exp(-dx * dx / (2 * params[3] * params[3]));
+    }
+
+    /**
+     * @return String with the parameters and fit statistics, in the same layout as the end of
+     * CurveFitter.getResultString()
+     */
+    String getResultString(){
+        return "\nIterations: " + iterations
+                + "\na = " + dataTricks.round(params[0], 5)
+                + "\nb = " + dataTricks.round(params[1], 5)
+                + "\nc = " + dataTricks.round(params[2], 5)
+                + "\nd = " + dataTricks.round(params[3], 5)
+                + "\nSum of residuals squared: " + dataTricks.round(sse, 5)
+                + "\nR^2: " + dataTricks.round(getFitGoodness(), 5);
+    }
+}
@@ -0,0 +1,210 @@
+package uk.ac.warwick.camdu;
+
+import ij.process.FloatProcessor;
+
+
+/**
+ *
+ * illuminationModel - smooth 2D polynomial model of the illumination of a field, for flat-field correction
+ *<p>
+ * Fits I(u, v) = sum of c_ij * u^i * v^j, for i + j up to the order of the model, to the block map of illuminationStats
+ * by linear least squares (normal equations, solved with dataTricks.solveLinearSystem). u and v are the positions of
+ * the block centres relative to the image centre, scaled to [-1, 1] across the image, which keeps the normal equations
+ * well conditioned. The map has a few thousand blocks at most, so the fit is immediate whatever the image size.
+ *</p>
+ *<p>
+ * getFlatField() evaluates the model on a grid of any size covering the image, divided by its maximum: dividing an
+ * image by it corrects the illumination. Terms are ordered by degree, then by decreasing power of u: 1, u, v, u^2,
+ * uv, v^2...
+ *</p>
+ */
+class illuminationModel {
+
+    private final int order;
+    private final int nTerms;
+    private final int[][] powers;
+    private double[] coefficients;
+    private double rSquared = Double.NaN;
+    private int width = 0;
+    private int height = 0;
+
+
+    /**
+     * @param order highest total degree of the polynomial (1 to 6)
+     */
+    illuminationModel(int order){
+        if (order < 1 || order > 6){
+            throw new IllegalArgumentException("The illumination model order must be between 1 and 6");
+        }
+        this.order = order;
+        nTerms = (order + 1) * (order + 2) / 2;
+        powers = new int[nTerms][2];
+        int degree, i;
+        int k = 0;
+        for (degree = 0; degree <= order; degree++){
+            for (i = degree; i >= 0; i--){
+                powers[k][0] = i;
+                powers[k][1] = degree - i;
+                k++;
+            }
+        }
+        coefficients = new double[nTerms];
+    }
+
+
+    /**
+     * Fits the model to a block map.
+     * @param map FloatProcessor with the mean intensity of each block, as given by illuminationStats.getMap()
+     * @param bin size of the blocks in pixels
+     * @param width width of the image in pixels
+     * @param height height of the image in pixels
+     * @return false if the blocks don't determine the model (too few of them for its order)
+     */
+    boolean fit(FloatProcessor map, int bin, int width, int height){
+        this.width = width;
+        this.height = height;
+        double[][] system = new double[nTerms][nTerms + 1];
+        double[] terms = new double[nTerms];
+        float[] means = (float[]) map.getPixels();
+        int bx, by, j, k;
+        for (by = 0; by < map.getHeight(); by++){
+            double v = scale(illuminationStats.getBlockCentre(by, bin, height), height);
+            for (bx = 0; bx < map.getWidth(); bx++){
+                double value = means[by * map.getWidth() + bx];
+                fillTerms(scale(illuminationStats.getBlockCentre(bx, bin, width), width), v, terms);
+                for (j = 0; j < nTerms; j++){
+                    for (k = 0; k <= j; k++){
+                        system[j][k] += terms[j] * terms[k];
+                    }
+                    system[j][nTerms] += terms[j] * value;
+                }
+            }
+        }
+        for (j = 0; j < nTerms; j++){
+            for (k = j + 1; k < nTerms; k++){
+                system[j][k] = system[k][j];
+            }
+        }
+        if (map.getWidth() * map.getHeight() < nTerms || !dataTricks.solveLinearSystem(system, coefficients)){
+            return false;
+        }
+
+        double mean = 0;
+        for (float m : means){
+            mean += m;
+        }
+        mean /= means.length;
+        double ssd = 0;
+        double sse = 0;
+        for (by = 0; by < map.getHeight(); by++){
+            double y = illuminationStats.getBlockCentre(by, bin, height);
+            for (bx = 0; bx < map.getWidth(); bx++){
+                double value = means[by * map.getWidth() + bx];
+                double residual = value - f(illuminationStats.getBlockCentre(bx, bin, width), y);
+                sse += residual * residual;
+                ssd += (value - mean) * (value - mean);
+            }
+        }
+        rSquared = ssd > 0 ? 1.0 - sse / ssd : 0;
+        return true;
+    }
+
+    /**
+     * @return position scaled to [-1, 1] across an axis of the given size
+     */
+    private static double scale(double position, int size){
+        return (position - size / 2.0) / (size / 2.0);
+    }
+
+    private void fillTerms(double u, double v, double[] terms){
+        int k;
+        for (k = 0; k < nTerms; k++){
+            terms[k] = Math.pow(u, powers[k][0]) * Math.pow(v, powers[k][1]);
+        }
+    }
+
+
+    /**
+     * @param x position in pixels of the image
+     * @param y position in pixels of the image
+     * @return intensity given by the model at this position
+     */
+    double f(double x, double y){
+        double u = scale(x, width);
+        double v = scale(y, height);
+        double value = 0;
+        int k;
+        for (k = 0; k < nTerms; k++){
+            value += coefficients[k] * Math.pow(u, powers[k][0]) * Math.pow(v, powers[k][1]);
+        }
+        return value;
+    }
+
+    /**
+     * Flat-field image: the model at the centre of each pixel of a w x h grid covering the whole image, divided by its
+     * highest value. Evaluated row by row, with the powers of v computed once per row.
+     * @param w width of the flat-field image (the image width for a full size one)
+     * @param h height of the flat-field image
+     * @return FloatProcessor with the normalised model, 1 at its brightest point
+     */
+    FloatProcessor getFlatField(int w, int h){
+        float[] pixels = new float[w * h];
+        double[] rowCoefficients = new double[order + 1];
+        double max = Double.NEGATIVE_INFINITY;
+        int x, y, k;
+        for (y = 0; y < h; y++){
+            double v = scale((y + 0.5) * height / h, height);
+            // model along the row: a polynomial in u alone
+            for (k = 0; k <= order; k++){
+                rowCoefficients[k] = 0;
+            }
+            for (k = 0; k < nTerms; k++){
+                rowCoefficients[powers[k][0]] += coefficients[k] * Math.pow(v, powers[k][1]);
+            }
+            for (x = 0; x < w; x++){
+                double u = scale((x + 0.5) * width / w, width);
+                double value = rowCoefficients[order];
+                for (k = order - 1; k >= 0; k--){
+                    value = value * u + rowCoefficients[k];
+                }
+                pixels[y * w + x] = (float) value;
+                max = Math.max(max, value);
+            }
+        }
+        for (x = 0; x < pixels.length; x++){
+            pixels[x] /= max;
+        }
+        FloatProcessor flatField = new FloatProcessor(w, h, pixels);
+        flatField.resetMinAndMax();
+        return flatField;
+    }
+
+
+    /**
+     * @return double[] with the coefficients of the terms (copy)
+     */
+    double[] getCoefficients(){
+        return coefficients.clone();
+    }
+
+    /**
+     * @return String[] with the names of the terms, e.g. "u^2 v"
+     */
+    String[] getTermNames(){
+        String[] names = new String[nTerms];
+        int k;
+        for (k = 0; k < nTerms; k++){
+            String u = powers[k][0] == 0 ? "" : (powers[k][0] == 1 ? "u" : "u^" + powers[k][0]);
+            String v = powers[k][1] == 0 ? "" : (powers[k][1] == 1 ? "v" : "v^" + powers[k][1]);
+            names[k] = u.isEmpty() && v.isEmpty() ? "1" : (u + " " + v).trim();
+        }
+        return names;
+    }
+
+    /**
+     * @return R^2 of the fit on the blocks of the map
+     */
+    double getRSquared(){
+        return rSquared;
+    }
+}
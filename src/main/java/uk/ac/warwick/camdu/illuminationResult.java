@@ -0,0 +1,159 @@
+package uk.ac.warwick.camdu;
+
+
+/**
+ *
+ * illuminationResult - field illumination metrics of one image
+ *<p>
+ * Immutable result of fieldIllumination: the intensities at the four corners and at the middle of the four edges,
+ * absolute and relative to the maximum of the image, and the offsets from the image centre of the centre of intensity,
+ * of the maximum and of the centroid of the pixels at the maximum. autoFOV reads the metrics from here instead of
+ * parsing the text report, which is only built when it is saved.
+ *</p>
+ *<p>
+ * Points are in the order of the report: top-left, top-right, bottom-left and bottom-right corners, then the middle
+ * of the upper, lower, left and right bounds. Positions are in pixels, offsets in calibrated units.
+ *</p>
+ */
+final class illuminationResult {
+
+    static final int N_CORNERS = 4;
+
+    private final String[] names;
+    private final double[] intensities;
+    private final double max;
+    private final double[] centreOfIntensity;
+    private final double[] maxLocation;
+    private final double[] maxZoneCentroid;
+    private final double[] offsets;
+
+
+    /**
+     * @param names String[] with the names of the points
+     * @param intensities double[] with the intensities at the points
+     * @param max maximum intensity of the image
+     * @param centreOfIntensity double[] with x and y of the centre of intensity
+     * @param maxLocation double[] with x and y of the maximum
+     * @param maxZoneCentroid double[] with x and y of the centroid of the pixels at the maximum
+     * @param offsets double[] with the distances of the three centres above to the image centre
+     */
+    illuminationResult(String[] names, double[] intensities, double max, double[] centreOfIntensity,
+                       double[] maxLocation, double[] maxZoneCentroid, double[] offsets){
+        if (names.length != intensities.length || intensities.length < N_CORNERS){
+            throw new IllegalArgumentException("illuminationResult needs a name and an intensity for each corner");
+        }
+        this.names = names.clone();
+        this.intensities = intensities.clone();
+        this.max = max;
+        this.centreOfIntensity = centreOfIntensity.clone();
+        this.maxLocation = maxLocation.clone();
+        this.maxZoneCentroid = maxZoneCentroid.clone();
+        this.offsets = offsets.clone();
+    }
+
+
+    /**
+     * @return number of points (corners and edges)
+     */
+    int getNPoints(){
+        return intensities.length;
+    }
+
+    /**
+     * @param point index of the point
+     * @return String with the name of the point
+     */
+    String getName(int point){
+        return names[point];
+    }
+
+    /**
+     * @param point index of the point
+     * @return intensity at the point
+     */
+    double getIntensity(int point){
+        return intensities[point];
+    }
+
+    /**
+     * @param point index of the point
+     * @return intensity at the point relative to the maximum of the image
+     */
+    double getRelativeIntensity(int point){
+        return intensities[point] / max;
+    }
+
+    /**
+     * @return maximum intensity of the image
+     */
+    double getMax(){
+        return max;
+    }
+
+    /**
+     * Value written by autoFOV: the darkest of the four corners relative to the maximum (1 at most).
+     * @return lowest relative corner intensity
+     */
+    double getMinCornerIntensity(){
+        double minVal = 1.0;
+        int i;
+        for (i = 0; i < N_CORNERS; i++){
+            minVal = Math.min(minVal, getRelativeIntensity(i));
+        }
+        return minVal;
+    }
+
+    /**
+     * @return lowest relative intensity over all the points, corners and edges
+     */
+    double getUniformity(){
+        double minVal = 1.0;
+        int i;
+        for (i = 0; i < intensities.length; i++){
+            minVal = Math.min(minVal, getRelativeIntensity(i));
+        }
+        return minVal;
+    }
+
+    /**
+     * @return double[] with x and y of the centre of intensity
+     */
+    double[] getCentreOfIntensity(){
+        return centreOfIntensity.clone();
+    }
+
+    /**
+     * @return double[] with x and y of the maximum
+     */
+    double[] getMaxLocation(){
+        return maxLocation.clone();
+    }
+
+    /**
+     * @return double[] with x and y of the centroid of the pixels at the maximum
+     */
+    double[] getMaxZoneCentroid(){
+        return maxZoneCentroid.clone();
+    }
+
+    /**
+     * @return distance from the centre of intensity to the image centre
+     */
+    double getCentreOfIntensityOffset(){
+        return offsets[0];
+    }
+
+    /**
+     * @return distance from the maximum to the image centre
+     */
+    double getMaxOffset(){
+        return offsets[1];
+    }
+
+    /**
+     * @return distance from the centroid of the pixels at the maximum to the image centre
+     */
+    double getMaxZoneOffset(){
+        return offsets[2];
+    }
+}
@@ -0,0 +1,397 @@
+package uk.ac.warwick.camdu;
+
+import ij.measure.Calibration;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+
+
+/**
+ *
+ * illuminationStats - intensity statistics of a field illumination image in a single pass
+ *<p>
+ * Reads the pixel array once, row by row, and gives together everything fieldIllumination used to get from separate
+ * ImageStatistics calls and getPixel loops: the maximum and where it is, the centre of mass, the centroid of the
+ * pixels at the maximum (the 100% zone of the pattern) and the intensities at a list of points (corners and middle of
+ * the edges). Nothing is allocated per pixel.
+ *</p>
+ *<p>
+ * The rows can also be given a strip at a time (addRows), in order, so that an image too large to be opened at once
+ * can be read in strips (see autoFOV's tiled mode): only the sums are kept, plus, if a bin size is given, a map of the
+ * mean intensity in bin x bin blocks, so memory does not depend on the size of the image.
+ *</p>
+ *<p>
+ * With a block map, the metrics can also be taken from the map instead of single pixels (getResult with grid set):
+ * relative intensities and the 100% zone then do not depend on a single hot pixel. The block means and the brightest
+ * blocks are worked out once, when the last row has been added, and shared by all the grid getters.
+ *</p>
+ *<p>
+ * Positions follow ImageJ: the centre of mass and the centroid are in pixels, measured from the top-left corner of
+ * the image (a pixel's centre is at x + 0.5), as ImageStatistics gives them without calibration. The location of the
+ * maximum is its last occurrence in row by row order, as fieldIllumination.getPattern() found it.
+ *</p>
+ */
+class illuminationStats {
+
+    private final int width;
+    private final int height;
+    private final int[][] points;
+    private final int bin;
+    private int rowsDone = 0;
+    private double max = Double.NEGATIVE_INFINITY;
+    private long maxIndex = 0;
+    private double sum = 0.0D;
+    private double xSum = 0.0D;
+    private double ySum = 0.0D;
+    private double maxCount = 0.0D;
+    private double maxXSum = 0.0D;
+    private double maxYSum = 0.0D;
+    private final double[] intensities;
+    private double[] blockSums = null;
+    private int blocksX = 0;
+    private int blocksY = 0;
+    private float[] gridMeans = null;
+    private double[] gridMaximum = null;
+
+
+    /**
+     * Statistics of a whole image.
+     * @param proc ImageProcessor with the 8-bit, 16-bit or 32-bit image
+     * @param points int[][] with the x and y of the points whose intensity is wanted
+     */
+    illuminationStats(ImageProcessor proc, int[][] points){
+        this(proc, points, 0);
+    }
+
+    /**
+     * Statistics of a whole image, with a map of the mean intensity in blocks.
+     * @param proc ImageProcessor with the 8-bit, 16-bit or 32-bit image
+     * @param points int[][] with the x and y of the points whose intensity is wanted
+     * @param bin size in pixels of the blocks of the intensity map (0: no map)
+     */
+    illuminationStats(ImageProcessor proc, int[][] points, int bin){
+        this(proc.getWidth(), proc.getHeight(), points, bin);
+        this.addRows(proc.getPixels(), 0, proc.getHeight());
+    }
+
+    /**
+     * Empty statistics, to be filled with addRows.
+     * @param width width of the image
+     * @param height height of the image
+     * @param points int[][] with the x and y of the points whose intensity is wanted
+     * @param bin size in pixels of the blocks of the intensity map (0: no map)
+     */
+    illuminationStats(int width, int height, int[][] points, int bin){
+        this.width = width;
+        this.height = height;
+        this.points = points;
+        this.bin = bin;
+        this.intensities = new double[points.length];
+        if (bin > 0) {
+            this.blocksX = (width + bin - 1) / bin;
+            this.blocksY = (height + bin - 1) / bin;
+            this.blockSums = new double[this.blocksX * this.blocksY];
+        }
+    }
+
+    /**
+     * Adds a strip of whole rows; strips must come in order, from the top of the image.
+     * @param pixels byte[], short[] or float[] with nRows rows of the image
+     * @param firstRow index in the image of the first row of the strip
+     * @param nRows number of rows in the strip
+     */
+    void addRows(Object pixels, int firstRow, int nRows){
+        if (!(pixels instanceof byte[]) && !(pixels instanceof short[]) && !(pixels instanceof float[])){
+            throw new IllegalArgumentException("illuminationStats expects an 8-bit, 16-bit or 32-bit image");
+        }
+        if (firstRow != this.rowsDone || firstRow + nRows > this.height){
+            throw new IllegalArgumentException("Rows " + firstRow + " to " + (firstRow + nRows - 1) + " do not follow row " + (this.rowsDone - 1));
+        }
+        for(int y = 0; y < nRows; ++y) {
+            this.scanRow(pixels, y, firstRow + y);
+        }
+
+        for(int i = 0; i < this.points.length; ++i) {
+            int y = this.points[i][1] - firstRow;
+            if (y >= 0 && y < nRows) {
+                this.intensities[i] = value(pixels, y * this.width + this.points[i][0]);
+            }
+        }
+
+        this.rowsDone += nRows;
+        if (this.bin > 0 && this.rowsDone == this.height) {
+            this.gridMeans = this.computeGridMeans();
+            this.gridMaximum = this.findGridMaximum();
+        }
+    }
+
+    /**
+     * Adds one row to the maximum, to the intensity-weighted sums, to the sums of the positions at the maximum (which
+     * start again whenever a higher value is found) and to the blocks of the map.
+     */
+    private void scanRow(Object pixels, int row, int y) {
+        int offset = row * this.width;
+        long imageOffset = (long)y * (long)this.width;
+        double rowSum = 0.0D;
+        double rowXSum = 0.0D;
+        double best = this.max;
+        long bestIndex = this.maxIndex;
+        double count = this.maxCount;
+        double xMax = this.maxXSum;
+        double yMax = this.maxYSum;
+        int blockRow = this.bin > 0 ? y / this.bin * this.blocksX : 0;
+        for(int x = 0; x < this.width; ++x) {
+            double v = value(pixels, offset + x);
+            rowSum += v;
+            rowXSum += v * (double)x;
+            if (v > best) {
+                best = v;
+                count = 0.0D;
+                xMax = 0.0D;
+                yMax = 0.0D;
+            }
+            if (v == best) {
+                bestIndex = imageOffset + (long)x;
+                ++count;
+                xMax += (double)x;
+                yMax += (double)y;
+            }
+            if (this.bin > 0) {
+                this.blockSums[blockRow + x / this.bin] += v;
+            }
+        }
+
+        this.max = best;
+        this.maxIndex = bestIndex;
+        this.maxCount = count;
+        this.maxXSum = xMax;
+        this.maxYSum = yMax;
+        this.sum += rowSum;
+        this.xSum += rowXSum;
+        this.ySum += rowSum * (double)y;
+    }
+
+    /**
+     * @return value of a pixel of a byte[], short[] or float[] pixel array
+     */
+    static double value(Object pixels, int index) {
+        if (pixels instanceof byte[]) {
+            return (double)(((byte[])pixels)[index] & 255);
+        } else if (pixels instanceof short[]) {
+            return (double)(((short[])pixels)[index] & 0xffff);
+        } else {
+            return (double)((float[])pixels)[index];
+        }
+    }
+
+
+    /**
+     * @return maximum intensity of the image
+     */
+    double getMax() {
+        return this.max;
+    }
+
+    /**
+     * @return int[] with x and y of the (last) pixel at the maximum
+     */
+    int[] getMaxLocation() {
+        return new int[]{(int)(this.maxIndex % (long)this.width), (int)(this.maxIndex / (long)this.width)};
+    }
+
+    /**
+     * @return double[] with the x and y of the intensity-weighted centre of the image, in pixels
+     */
+    double[] getCentreOfMass() {
+        return new double[]{this.xSum / this.sum + 0.5D, this.ySum / this.sum + 0.5D};
+    }
+
+    /**
+     * @return double[] with the x and y of the centroid of the pixels at the maximum, in pixels
+     */
+    double[] getMaxCentroid() {
+        return new double[]{this.maxXSum / this.maxCount + 0.5D, this.maxYSum / this.maxCount + 0.5D};
+    }
+
+    /**
+     * @return double[] with the intensities at the points given to the constructor, in the same order
+     */
+    double[] getIntensities() {
+        return this.intensities.clone();
+    }
+
+    /**
+     * Map of the mean intensity in bin x bin blocks (the blocks on the right and bottom edges can be smaller).
+     * @return FloatProcessor with the map, or null if no bin size was given
+     */
+    FloatProcessor getMap() {
+        if (this.bin <= 0) {
+            return null;
+        }
+        FloatProcessor map = new FloatProcessor(this.blocksX, this.blocksY, this.getGridMeans().clone());
+        map.resetMinAndMax();
+        return map;
+    }
+
+    /**
+     * @return float[] with the mean intensity of each block, row by row, from the sums so far
+     */
+    private float[] computeGridMeans() {
+        float[] means = new float[this.blockSums.length];
+        for(int by = 0; by < this.blocksY; ++by) {
+            int rows = Math.min(this.bin, this.height - by * this.bin);
+            for(int bx = 0; bx < this.blocksX; ++bx) {
+                int columns = Math.min(this.bin, this.width - bx * this.bin);
+                means[by * this.blocksX + bx] = (float)(this.blockSums[by * this.blocksX + bx] / (double)(rows * columns));
+            }
+        }
+
+        return means;
+    }
+
+    /**
+     * @return size in pixels of the blocks of the map (0: no map)
+     */
+    int getBin() {
+        return this.bin;
+    }
+
+    /**
+     * Brightest block of the map, and the centroid of the blocks that reach it.
+     * @return double[] with the mean intensity of the block, x and y of its centre and x and y of the centroid, in
+     * pixels of the image
+     */
+    private double[] getGridMaximum() {
+        if (this.gridMaximum != null) {
+            return this.gridMaximum;
+        }
+        return this.findGridMaximum();
+    }
+
+    private double[] findGridMaximum() {
+        float[] means = this.getGridMeans();
+        double best = Double.NEGATIVE_INFINITY;
+        double[] location = new double[2];
+        double count = 0.0D;
+        double xSum = 0.0D;
+        double ySum = 0.0D;
+        for(int i = 0; i < means.length; ++i) {
+            double x = getBlockCentre(i % this.blocksX, this.bin, this.width);
+            double y = getBlockCentre(i / this.blocksX, this.bin, this.height);
+            if ((double)means[i] > best) {
+                best = (double)means[i];
+                count = 0.0D;
+                xSum = 0.0D;
+                ySum = 0.0D;
+            }
+            if ((double)means[i] == best) {
+                location[0] = x;
+                location[1] = y;
+                ++count;
+                xSum += x;
+                ySum += y;
+            }
+        }
+
+        return new double[]{best, location[0], location[1], xSum / count, ySum / count};
+    }
+
+    private float[] getGridMeans() {
+        if (this.bin <= 0) {
+            throw new IllegalArgumentException("illuminationStats was created without a block map");
+        }
+        // cached once the image is complete; only a partly read image needs them worked out again
+        return this.gridMeans != null ? this.gridMeans : this.computeGridMeans();
+    }
+
+    /**
+     * @return position, in pixels of the image, of the centre of a block along an axis of the given size
+     */
+    static double getBlockCentre(int block, int bin, int size) {
+        int start = block * bin;
+        return (double)start + (double)Math.min(bin, size - start) / 2.0D;
+    }
+
+    /**
+     * @return double[] with the mean intensity of the blocks of the map containing the points given to the constructor
+     */
+    double[] getGridIntensities() {
+        float[] means = this.getGridMeans();
+        double[] values = new double[this.points.length];
+        for(int i = 0; i < this.points.length; ++i) {
+            values[i] = (double)means[this.points[i][1] / this.bin * this.blocksX + this.points[i][0] / this.bin];
+        }
+
+        return values;
+    }
+
+    /**
+     * @return highest mean intensity of a block of the map
+     */
+    double getGridMax() {
+        return this.getGridMaximum()[0];
+    }
+
+    /**
+     * @return double[] with x and y, in pixels, of the centre of the (last) brightest block of the map
+     */
+    double[] getGridMaxLocation() {
+        double[] maximum = this.getGridMaximum();
+        return new double[]{maximum[1], maximum[2]};
+    }
+
+    /**
+     * @return double[] with x and y, in pixels, of the centroid of the brightest blocks of the map
+     */
+    double[] getGridMaxCentroid() {
+        double[] maximum = this.getGridMaximum();
+        return new double[]{maximum[3], maximum[4]};
+    }
+
+    /**
+     * Metrics of the image, as fieldIllumination gives them.
+     * @param names String[] with the names of the points given to the constructor
+     * @param cal Calibration of the image, for the distances to the image centre
+     * @return illuminationResult with the intensities at the points and the centre offsets
+     */
+    illuminationResult getResult(String[] names, Calibration cal) {
+        return this.getResult(names, cal, false);
+    }
+
+    /**
+     * Metrics of the image, from single pixels as fieldIllumination gives them, or from the block map: the intensities
+     * at the points are then the means of their blocks, relative to the brightest block, and the maximum and 100% zone
+     * are the brightest blocks, so that a single hot pixel does not change them.
+     * @param names String[] with the names of the points given to the constructor
+     * @param cal Calibration of the image, for the distances to the image centre
+     * @param grid true to measure on the block map (needs a bin size)
+     * @return illuminationResult with the intensities at the points and the centre offsets
+     */
+    illuminationResult getResult(String[] names, Calibration cal, boolean grid) {
+        double[] centre = new double[]{(double)(this.width / 2), (double)(this.height / 2)};
+        double[] centreOfMass = this.getCentreOfMass();
+        double maximum;
+        double[] location;
+        double[] centroid;
+        double[] values;
+        if (grid) {
+            double[] gridMaximum = this.getGridMaximum();
+            maximum = gridMaximum[0];
+            location = new double[]{gridMaximum[1], gridMaximum[2]};
+            centroid = new double[]{gridMaximum[3], gridMaximum[4]};
+            values = this.getGridIntensities();
+        } else {
+            int[] maxLocation = this.getMaxLocation();
+            maximum = this.max;
+            location = new double[]{(double)maxLocation[0], (double)maxLocation[1]};
+            centroid = this.getMaxCentroid();
+            values = this.getIntensities();
+            for(int i = 0; i < values.length; ++i) {
+                // same truncation as fieldIllumination's report
+                values[i] = (double)((int)values[i]);
+            }
+        }
+
+        double[] offsets = new double[]{dataTricks.dist(centreOfMass, centre, cal), dataTricks.dist(location, centre, cal), dataTricks.dist(centroid, centre, cal)};
+        return new illuminationResult(names, values, maximum, centreOfMass, location, centroid, offsets);
+    }
+}
@@ -0,0 +1,425 @@
+package uk.ac.warwick.camdu;
+
+import ij.ImageStack;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+
+/**
+ *
+ * orthoProjector - XY, XZ and YZ projections of a stack in a single pass
+ *<p>
+ * Gives the same views as a ZProjector projection of the stack (XY), of its XZ reslice (XZ) and of its YZ reslices
+ * (YZ), for all the ZProjector methods (sideViewGenerator.AVG_METHOD to MEDIAN_METHOD), but without reslicing: each
+ * slice is read once, row by row, and gives row z of the XZ and YZ views directly (reduced along y and x) while also
+ * being added to the XY projection. The slices are split between threads for large stacks; each thread only writes
+ * its own rows of the side views and its own partial XY projection, which are merged at the end. The median XY view
+ * needs all the values of a pixel at once, so it is computed in a second pass split by rows.
+ *</p>
+ *<p>
+ * As with ZProjector, MAX and MIN keep the type of the stack; the other methods give 32-bit views. RGB stacks are not
+ * handled.
+ *</p>
+ */
+class orthoProjector {
+
+    // below this number of voxels the projections are computed in the calling thread
+    private static final long PARALLEL_VOXELS = 1L << 21;
+
+    private final ImageStack stack;
+    private final int method;
+    private final int width;
+    private final int height;
+    private final int depth;
+    private int threads = Runtime.getRuntime().availableProcessors();
+
+    private ImageProcessor xy = null;
+    private ImageProcessor xz = null;
+    private ImageProcessor yz = null;
+
+
+    /**
+     * @param stack ImageStack (8-bit, 16-bit or 32-bit) to project
+     * @param method projection method, one of the sideViewGenerator (or ZProjector) method constants
+     */
+    orthoProjector(ImageStack stack, int method){
+        if (method < sideViewGenerator.AVG_METHOD || method > sideViewGenerator.MEDIAN_METHOD){
+            throw new IllegalArgumentException("Unknown projection method: " + method);
+        }
+        if (stack.getBitDepth() == 24){
+            throw new IllegalArgumentException("orthoProjector does not handle RGB stacks");
+        }
+        this.stack = stack;
+        this.method = method;
+        width = stack.getWidth();
+        height = stack.getHeight();
+        depth = stack.getSize();
+    }
+
+
+    /**
+     * @param threads maximum number of threads used for large stacks (1 to always project in the calling thread)
+     */
+    void setThreads(int threads){
+        this.threads = Math.max(1, threads);
+    }
+
+    /**
+     * @return ImageProcessor with the XY projection (width x height)
+     */
+    ImageProcessor getXY(){
+        project();
+        return xy;
+    }
+
+    /**
+     * @return ImageProcessor with the XZ projection (width x number of slices, first slice on top)
+     */
+    ImageProcessor getXZ(){
+        project();
+        return xz;
+    }
+
+    /**
+     * @return ImageProcessor with the YZ projection (height x number of slices, first slice on top), as the
+     * projection of the YZ reslices
+     */
+    ImageProcessor getYZ(){
+        project();
+        return yz;
+    }
+
+
+    private synchronized void project(){
+        if (xy != null){
+            return;
+        }
+        boolean keepMin = method == sideViewGenerator.MIN_METHOD;
+        boolean keepMax = method == sideViewGenerator.MAX_METHOD;
+        boolean keepSum = method == sideViewGenerator.AVG_METHOD || method == sideViewGenerator.SUM_METHOD
+                || method == sideViewGenerator.SD_METHOD;
+        boolean keepSumSq = method == sideViewGenerator.SD_METHOD;
+
+        float[] xzPixels = new float[width * depth];
+        float[] yzPixels = new float[height * depth];
+        int nChunks = (threads > 1 && (long) width * height * depth >= PARALLEL_VOXELS) ? Math.min(threads, depth) : 1;
+        partialProjection[] partials = new partialProjection[nChunks];
+        int k;
+        for (k = 0; k < nChunks; k++){
+            partials[k] = new partialProjection(width * height, keepMin, keepMax, keepSum, keepSumSq,
+                    k * depth / nChunks, (k + 1) * depth / nChunks);
+        }
+
+        if (nChunks == 1){
+            projectSlices(partials[0], xzPixels, yzPixels);
+        } else {
+            runInParallel(nChunks, chunk -> projectSlices(partials[chunk], xzPixels, yzPixels));
+        }
+
+        float[] xyPixels = new float[width * height];
+        if (method == sideViewGenerator.MEDIAN_METHOD){
+            int nRowChunks = nChunks == 1 ? 1 : Math.min(threads, height);
+            if (nRowChunks == 1){
+                medianRows(xyPixels, 0, height);
+            } else {
+                runInParallel(nRowChunks, chunk -> medianRows(xyPixels, chunk * height / nRowChunks,
+                        (chunk + 1) * height / nRowChunks));
+            }
+        } else {
+            partialProjection total = partials[0];
+            for (k = 1; k < nChunks; k++){
+                total.merge(partials[k]);
+            }
+            int i;
+            for (i = 0; i < xyPixels.length; i++){
+                xyPixels[i] = total.get(i, depth, method);
+            }
+        }
+
+        xz = toOutput(new FloatProcessor(width, depth, xzPixels));
+        yz = toOutput(new FloatProcessor(height, depth, yzPixels));
+        xy = toOutput(new FloatProcessor(width, height, xyPixels));
+    }
+
+
+    /**
+     * Projects the slices of one chunk: their rows of the XZ and YZ views, and their partial XY projection.
+     */
+    private void projectSlices(partialProjection partial, float[] xzPixels, float[] yzPixels){
+        boolean median = method == sideViewGenerator.MEDIAN_METHOD;
+        double[] colSum = new double[width];
+        double[] colSumSq = new double[width];
+        float[] colMin = new float[width];
+        float[] colMax = new float[width];
+        float[] values = median ? new float[Math.max(width, height)] : null;
+        int x, y, z;
+        for (z = partial.firstSlice; z < partial.lastSlice; z++){
+            float[] pixels = floatPixels(z);
+            Arrays.fill(colSum, 0);
+            Arrays.fill(colSumSq, 0);
+            Arrays.fill(colMin, Float.POSITIVE_INFINITY);
+            Arrays.fill(colMax, Float.NEGATIVE_INFINITY);
+            for (y = 0; y < height; y++){
+                int row = y * width;
+                double rowSum = 0;
+                double rowSumSq = 0;
+                float rowMin = Float.POSITIVE_INFINITY;
+                float rowMax = Float.NEGATIVE_INFINITY;
+                for (x = 0; x < width; x++){
+                    float value = pixels[row + x];
+                    rowSum += value;
+                    rowSumSq += (double) value * value;
+                    rowMin = Math.min(rowMin, value);
+                    rowMax = Math.max(rowMax, value);
+                    colSum[x] += value;
+                    colSumSq[x] += (double) value * value;
+                    colMin[x] = Math.min(colMin[x], value);
+                    colMax[x] = Math.max(colMax[x], value);
+                }
+                if (median){
+                    System.arraycopy(pixels, row, values, 0, width);
+                    yzPixels[z * height + y] = median(values, width);
+                } else {
+                    yzPixels[z * height + y] = reduce(rowSum, rowSumSq, rowMin, rowMax, width);
+                }
+            }
+            for (x = 0; x < width; x++){
+                if (median){
+                    for (y = 0; y < height; y++){
+                        values[y] = pixels[y * width + x];
+                    }
+                    xzPixels[z * width + x] = median(values, height);
+                } else {
+                    xzPixels[z * width + x] = reduce(colSum[x], colSumSq[x], colMin[x], colMax[x], height);
+                }
+            }
+            if (!median){
+                partial.add(pixels);
+            }
+        }
+    }
+
+    /**
+     * Median XY projection of rows firstRow (included) to lastRow (excluded).
+     */
+    private void medianRows(float[] xyPixels, int firstRow, int lastRow){
+        int n = (lastRow - firstRow) * width;
+        float[][] columns = new float[n][depth];
+        int i, z;
+        for (z = 0; z < depth; z++){
+            float[] pixels = floatPixels(z);
+            for (i = 0; i < n; i++){
+                columns[i][z] = pixels[firstRow * width + i];
+            }
+        }
+        for (i = 0; i < n; i++){
+            xyPixels[firstRow * width + i] = median(columns[i], depth);
+        }
+    }
+
+
+    private float reduce(double sum, double sumSq, float min, float max, int n){
+        switch (method){
+            case sideViewGenerator.MAX_METHOD:
+                return max;
+            case sideViewGenerator.MIN_METHOD:
+                return min;
+            case sideViewGenerator.SUM_METHOD:
+                return (float) sum;
+            case sideViewGenerator.SD_METHOD:
+                return standardDeviation(sum, sumSq, n);
+            case sideViewGenerator.AVG_METHOD:
+            default:
+                return (float) (sum / n);
+        }
+    }
+
+    /**
+     * Same estimate as ZProjector: sample standard deviation, 0 if the variance is not positive.
+     */
+    private static float standardDeviation(double sum, double sumSq, int n){
+        if (n < 2){
+            return 0;
+        }
+        double variance = (n * sumSq - sum * sum) / n;
+        return variance > 0 ? (float) Math.sqrt(variance / (n - 1.0)) : 0;
+    }
+
+    /**
+     * Same as ZProjector: middle value, or the mean of the two middle values for an even number of values. Sorts the
+     * first n values of the array.
+     */
+    private static float median(float[] values, int n){
+        Arrays.sort(values, 0, n);
+        int middle = n / 2;
+        if ((n & 1) == 0){
+            return (values[middle - 1] + values[middle]) / 2f;
+        }
+        return values[middle];
+    }
+
+
+    /**
+     * @param z slice index, starting at 0
+     * @return float[] with the pixel values of the slice (the stack's own array for 32-bit stacks, do not modify)
+     */
+    private float[] floatPixels(int z){
+        Object pixels = stack.getPixels(z + 1);
+        if (pixels instanceof float[]){
+            return (float[]) pixels;
+        }
+        float[] values = new float[width * height];
+        int i;
+        if (pixels instanceof short[]){
+            short[] shorts = (short[]) pixels;
+            for (i = 0; i < values.length; i++){
+                values[i] = shorts[i] & 0xffff;
+            }
+        } else {
+            byte[] bytes = (byte[]) pixels;
+            for (i = 0; i < values.length; i++){
+                values[i] = bytes[i] & 0xff;
+            }
+        }
+        return values;
+    }
+
+    private ImageProcessor toOutput(FloatProcessor fp){
+        if (method != sideViewGenerator.MAX_METHOD && method != sideViewGenerator.MIN_METHOD){
+            fp.resetMinAndMax();
+            return fp;
+        }
+        ImageProcessor output;
+        switch (stack.getBitDepth()){
+            case 8:
+                output = fp.convertToByteProcessor(false);
+                break;
+            case 16:
+                output = fp.convertToShortProcessor(false);
+                break;
+            default:
+                output = fp;
+        }
+        output.resetMinAndMax();
+        return output;
+    }
+
+
+    private interface chunkTask {
+        void run(int chunk);
+    }
+
+    private void runInParallel(int nChunks, chunkTask task){
+        ExecutorService pool = Executors.newFixedThreadPool(nChunks);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            int k;
+            for (k = 0; k < nChunks; k++){
+                final int chunk = k;
+                futures.add(pool.submit(() -> task.run(chunk)));
+            }
+            for (Future<?> future : futures){
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while projecting", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Projection failed", e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+
+    /**
+     * XY projection of a range of slices, only keeping what the projection method needs.
+     */
+    private static class partialProjection {
+        final int firstSlice;
+        final int lastSlice;
+        final int size;
+        final float[] min;
+        final float[] max;
+        final double[] sum;
+        final double[] sumSq;
+
+        partialProjection(int n, boolean keepMin, boolean keepMax, boolean keepSum, boolean keepSumSq,
+                          int firstSlice, int lastSlice){
+            this.firstSlice = firstSlice;
+            this.lastSlice = lastSlice;
+            size = n;
+            min = keepMin ? new float[n] : null;
+            max = keepMax ? new float[n] : null;
+            sum = keepSum ? new double[n] : null;
+            sumSq = keepSumSq ? new double[n] : null;
+            if (min != null){
+                Arrays.fill(min, Float.POSITIVE_INFINITY);
+            }
+            if (max != null){
+                Arrays.fill(max, Float.NEGATIVE_INFINITY);
+            }
+        }
+
+        void add(float[] pixels){
+            int i;
+            for (i = 0; i < pixels.length; i++){
+                float value = pixels[i];
+                if (min != null && value < min[i]){
+                    min[i] = value;
+                }
+                if (max != null && value > max[i]){
+                    max[i] = value;
+                }
+                if (sum != null){
+                    sum[i] += value;
+                }
+                if (sumSq != null){
+                    sumSq[i] += (double) value * value;
+                }
+            }
+        }
+
+        void merge(partialProjection other){
+            int i;
+            for (i = 0; i < size; i++){
+                if (min != null){
+                    min[i] = Math.min(min[i], other.min[i]);
+                }
+                if (max != null){
+                    max[i] = Math.max(max[i], other.max[i]);
+                }
+                if (sum != null){
+                    sum[i] += other.sum[i];
+                }
+                if (sumSq != null){
+                    sumSq[i] += other.sumSq[i];
+                }
+            }
+        }
+
+        float get(int i, int n, int method){
+            switch (method){
+                case sideViewGenerator.MAX_METHOD:
+                    return max[i];
+                case sideViewGenerator.MIN_METHOD:
+                    return min[i];
+                case sideViewGenerator.SUM_METHOD:
+                    return (float) sum[i];
+                case sideViewGenerator.SD_METHOD:
+                    return standardDeviation(sum[i], sumSq[i], n);
+                case sideViewGenerator.AVG_METHOD:
+                default:
+                    return (float) (sum[i] / n);
+            }
+        }
+    }
+}
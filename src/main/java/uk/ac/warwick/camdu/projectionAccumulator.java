@@ -0,0 +1,61 @@
+package uk.ac.warwick.camdu;
+
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+
+
+/**
+ *
+ * projectionAccumulator - builds a maximum Z projection one plane at a time, while the planes are being read
+ *<p>
+ * Each plane passed to add() updates a running maximum, so the projection is ready as soon as the last plane has been
+ * read, without going over the stack again. The maximum is the same as a MAX projection with imagej-ops (values are
+ * taken as floats).
+ *</p>
+ */
+class projectionAccumulator {
+
+    private final int width;
+    private final int height;
+    private final float[] max;
+    private boolean first = true;
+
+
+    /**
+     * @param width width of the planes
+     * @param height height of the planes
+     */
+    projectionAccumulator(int width, int height){
+        this.width = width;
+        this.height = height;
+        max = new float[width * height];
+    }
+
+
+    /**
+     * Adds a plane to the projection.
+     * @param ip ImageProcessor with the plane (8-bit, 16-bit or 32-bit)
+     */
+    void add(ImageProcessor ip){
+        if (ip.getWidth() != width || ip.getHeight() != height){
+            throw new IllegalArgumentException("Plane size does not match the projection size");
+        }
+        int i;
+        int n = width * height;
+        for (i = 0; i < n; i++){
+            float value = ip.getf(i);
+            if (first || value > max[i]){
+                max[i] = value;
+            }
+        }
+        first = false;
+    }
+
+
+    /**
+     * @return FloatProcessor with the maximum projection
+     */
+    FloatProcessor getMax(){
+        return new FloatProcessor(width, height, max.clone());
+    }
+}
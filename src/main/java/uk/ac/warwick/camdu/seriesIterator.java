@@ -0,0 +1,313 @@
+package uk.ac.warwick.camdu;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Calibration;
+import ij.process.ImageProcessor;
+import loci.formats.FormatException;
+import loci.formats.meta.MetadataRetrieve;
+import loci.plugins.in.ImagePlusReader;
+import loci.plugins.in.ImportProcess;
+import loci.plugins.in.ImporterOptions;
+import loci.plugins.util.ImageProcessorReader;
+import ome.units.UNITS;
+import ome.units.quantity.Length;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+
+/**
+ *
+ * seriesIterator - opens the series of a file one at a time, parsing the file metadata only once
+ *<p>
+ * The file is set up by a single ImportProcess (with all series on, so Bio-Formats works out the ranges for every
+ * series). Each call to next() then switches the importer options to the next series whose label contains the match
+ * string and reads only that series through an ImagePlusReader sharing the same ImportProcess, so the file is
+ * not parsed again. Nothing is kept between calls: once the caller drops (or flushes) the ImagePlus returned by
+ * next(), that series can be garbage collected before the next one is decoded.
+ *</p>
+ *<p>
+ * If a crop (setCrop) or a single channel (setChannel) is asked for, the series is instead read plane by plane
+ * straight from the Bio-Formats reader of the ImportProcess, asking it only for the central region and for the planes
+ * of that channel. Only those pixels are decoded and kept, and the calibration is taken from the OME metadata.
+ *</p>
+ *<p>
+ * In that mode a projectionAccumulator can also be fed with the planes of one channel of the first time point as they
+ * are read (setProjection), so the maximum Z projection of each series is available as soon as next() returns.
+ *</p>
+ *<p>
+ * nextReader() moves to the next series without reading it, for callers that read it a region at a time.
+ *</p>
+ *<p>
+ * The underlying reader stays open until close() is called.
+ *</p>
+ */
+class seriesIterator implements Closeable {
+
+    private final ImportProcess process;
+    private final String match;
+    private int nextSeries = -1;
+    private int currentSeries = -1;
+    private int cropWidth = 0;
+    private int cropHeight = 0;
+    private int channel = -1;
+    private int projectionChannel = -1;
+    private projectionAccumulator projection = null;
+
+
+    /**
+     * Parses the file metadata and finds the first matching series.
+     * @param path String with the path to the image file
+     * @param match only series whose label contains this String are returned (empty String matches everything)
+     * @throws FormatException if Bio-Formats can't read the file
+     * @throws IOException if the file can't be read
+     */
+    seriesIterator(String path, String match) throws FormatException, IOException {
+        this.match = match == null ? "" : match;
+        ImporterOptions options = new ImporterOptions();
+        options.setId(path);
+        options.setOpenAllSeries(true);
+        process = new ImportProcess(options);
+        if (!process.execute()){
+            throw new IOException("Could not set up Bio-Formats importer for " + path);
+        }
+        options.setOpenAllSeries(false);
+        nextSeries = findSeries(0);
+    }
+
+
+    /**
+     * Finds the next series whose label contains the match string.
+     * @param from first series index to look at
+     * @return index of the series, or -1 if there are no more
+     */
+    private int findSeries(int from){
+        int i;
+        for (i = from; i < process.getSeriesCount(); i++){
+            if (process.getSeriesLabel(i).contains(match)){
+                return i;
+            }
+        }
+        return -1;
+    }
+
+
+    /**
+     * Reads only a region at the centre of each series (the whole image along any axis where it is not larger than
+     * the crop). The region starts at size/2 - crop/2, the same as the crops the commands do after reading.
+     * @param width width of the region in pixels (0 or less: no crop)
+     * @param height height of the region in pixels (0 or less: no crop)
+     */
+    void setCrop(int width, int height){
+        cropWidth = width;
+        cropHeight = height;
+    }
+
+    /**
+     * Reads only one channel of each series.
+     * @param c channel index, starting at 0 (past the last channel: last channel; negative: all channels)
+     */
+    void setChannel(int c){
+        channel = c;
+    }
+
+
+    /**
+     * Accumulates the maximum Z projection of one channel (first time point only) while each series is read. Forces
+     * the series to be read plane by plane.
+     * @param c channel index among the channels that are read (0 if setChannel was used)
+     */
+    void setProjection(int c){
+        projectionChannel = c;
+    }
+
+    /**
+     * @return projectionAccumulator with the projection of the series last returned by next(), or null if no
+     * projection was asked for
+     */
+    projectionAccumulator getProjection(){
+        return projection;
+    }
+
+
+    /**
+     * @return true if there is at least one more matching series
+     */
+    boolean hasNext(){
+        return nextSeries >= 0;
+    }
+
+
+    /**
+     * Reads the next matching series.
+     * @return ImagePlus with the series
+     * @throws FormatException if Bio-Formats can't read the series
+     * @throws IOException if the file can't be read
+     */
+    ImagePlus next() throws FormatException, IOException {
+        if (nextSeries < 0){
+            throw new IllegalStateException("No more series to read");
+        }
+        currentSeries = nextSeries;
+        nextSeries = findSeries(currentSeries + 1);
+
+        projection = null;
+        if (cropWidth > 0 || cropHeight > 0 || channel >= 0 || projectionChannel >= 0){
+            return readRegion(currentSeries);
+        }
+
+        ImporterOptions options = process.getOptions();
+        options.clearSeries();
+        options.setSeriesOn(currentSeries, true);
+        ImagePlus[] imps = new ImagePlusReader(process).openImagePlus();
+        if (imps == null || imps.length == 0){
+            throw new IOException("Could not read series " + getSeriesLabel());
+        }
+        return imps[0];
+    }
+
+
+    /**
+     * Moves to the next matching series without reading any pixels, for callers that read it a region at a time
+     * (e.g. in strips, for planes too large for an ImagePlus).
+     * @return ImageProcessorReader set to the series; it stays owned by this iterator
+     */
+    ImageProcessorReader nextReader(){
+        if (nextSeries < 0){
+            throw new IllegalStateException("No more series to read");
+        }
+        currentSeries = nextSeries;
+        nextSeries = findSeries(currentSeries + 1);
+
+        projection = null;
+        ImageProcessorReader reader = process.getReader();
+        reader.setSeries(currentSeries);
+        return reader;
+    }
+
+    /**
+     * @return Calibration in microns of the series last returned by next() or nextReader(), from the OME metadata
+     */
+    Calibration getCalibration(){
+        return readCalibration(currentSeries);
+    }
+
+
+    /**
+     * Reads the central region and the chosen channel of a series, plane by plane, from the Bio-Formats reader.
+     * @param series index of the series
+     * @return ImagePlus with the cropped series, stacked in ImageJ (CZT) order and calibrated in microns
+     * @throws FormatException if Bio-Formats can't read the series
+     * @throws IOException if the file can't be read
+     */
+    private ImagePlus readRegion(int series) throws FormatException, IOException {
+        ImageProcessorReader reader = process.getReader();
+        reader.setSeries(series);
+        int sizeX = reader.getSizeX();
+        int sizeY = reader.getSizeY();
+        int sizeC = reader.getSizeC();
+        int sizeZ = reader.getSizeZ();
+        int sizeT = reader.getSizeT();
+        // RGB images have several channels stored in each plane
+        int rgb = Math.max(1, reader.getRGBChannelCount());
+
+        int x = 0;
+        int y = 0;
+        int w = sizeX;
+        int h = sizeY;
+        if (cropWidth > 0 && sizeX > cropWidth){
+            x = sizeX / 2 - cropWidth / 2;
+            w = cropWidth;
+        }
+        if (cropHeight > 0 && sizeY > cropHeight){
+            y = sizeY / 2 - cropHeight / 2;
+            h = cropHeight;
+        }
+        int firstC = 0;
+        int nC = sizeC;
+        if (channel >= 0){
+            firstC = Math.min(channel, sizeC - 1);
+            nC = 1;
+        }
+        if (projectionChannel >= 0){
+            projection = new projectionAccumulator(w, h);
+        }
+
+        ImageStack stack = new ImageStack(w, h);
+        int c, z, t;
+        for (t = 0; t < sizeT; t++){
+            for (z = 0; z < sizeZ; z++){
+                for (c = firstC; c < firstC + nC; c++){
+                    ImageProcessor[] ips = reader.openProcessors(reader.getIndex(z, c / rgb, t), x, y, w, h);
+                    stack.addSlice(ips[c % rgb]);
+                    if (projection != null && t == 0 && c - firstC == Math.min(projectionChannel, nC - 1)){
+                        projection.add(ips[c % rgb]);
+                    }
+                }
+            }
+        }
+
+        ImagePlus imp = new ImagePlus(getSeriesLabel(), stack);
+        imp.setDimensions(nC, sizeZ, sizeT);
+        if (imp.getNDimensions() > 3){
+            imp.setOpenAsHyperStack(true);
+        }
+        imp.setCalibration(readCalibration(series));
+        return imp;
+    }
+
+
+    /**
+     * Builds an ImageJ calibration from the physical pixel sizes in the OME metadata of a series.
+     * @param series index of the series
+     * @return Calibration in microns (or the default, uncalibrated one if the metadata has no pixel sizes)
+     */
+    private Calibration readCalibration(int series){
+        Calibration cal = new Calibration();
+        MetadataRetrieve meta = process.getOMEMetadata();
+        if (meta == null){
+            return cal;
+        }
+        Length sizeX = meta.getPixelsPhysicalSizeX(series);
+        Length sizeY = meta.getPixelsPhysicalSizeY(series);
+        Length sizeZ = meta.getPixelsPhysicalSizeZ(series);
+        if (sizeX != null){
+            cal.pixelWidth = sizeX.value(UNITS.MICROMETER).doubleValue();
+            cal.setUnit("micron");
+        }
+        if (sizeY != null){
+            cal.pixelHeight = sizeY.value(UNITS.MICROMETER).doubleValue();
+            cal.setUnit("micron");
+        }
+        if (sizeZ != null){
+            cal.pixelDepth = sizeZ.value(UNITS.MICROMETER).doubleValue();
+        }
+        return cal;
+    }
+
+
+    /**
+     * @return index (within the file) of the series last returned by next()
+     */
+    int getSeriesIndex(){
+        return currentSeries;
+    }
+
+    /**
+     * @return label of the series last returned by next()
+     */
+    String getSeriesLabel(){
+        return currentSeries < 0 ? "" : process.getSeriesLabel(currentSeries);
+    }
+
+
+    /**
+     * Closes the underlying Bio-Formats reader.
+     * @throws IOException if closing the reader fails
+     */
+    @Override
+    public void close() throws IOException {
+        process.getReader().close();
+    }
+}
@@ -7,6 +7,7 @@ package uk.ac.warwick.camdu;
 
 
 import ij.ImagePlus;
+import ij.ImageStack;
 import ij.gui.Line;
 import ij.gui.NewImage;
 import ij.measure.Calibration;
@@ -25,12 +26,24 @@ class sideViewGenerator {
     public static final int SUM_METHOD = 3;
     public static final int SD_METHOD = 4;
     public static final int MEDIAN_METHOD = 5;
+    private orthoProjector projector = null;
+    private ImageStack projectedStack = null;
+    private int projectedType = -1;
 
     sideViewGenerator() {
     }
 
     ImagePlus getXYview(ImagePlus ip, int projType) {
+        return this.xyView(ip, projType, this.getProjector(ip, projType));
+    }
+
+    private ImagePlus xyView(ImagePlus ip, int projType, orthoProjector projector) {
         Calibration cal = ip.getCalibration();
+        if (projector != null) {
+            ImagePlus output = new ImagePlus("XY view", projector.getXY());
+            output.setCalibration(cal);
+            return output;
+        }
         ip.setCalibration(new Calibration());
         ZProjector zp = new ZProjector(ip);
         zp.setMethod(projType);
@@ -41,12 +54,29 @@ class sideViewGenerator {
         return output;
     }
 
+    /**
+     * All three views come from a single pass over the stack (orthoProjector), except for RGB images and hyperstacks
+     * with several channels or frames, which keep the ZProjector/Slicer path. The projector of the last stack and
+     * method is kept, so asking the same generator for several views of a stack only reads it once.
+     */
+    private orthoProjector getProjector(ImagePlus ip, int projType) {
+        if (ip.getBitDepth() == 24 || ip.getNChannels() > 1 || ip.getNFrames() > 1) {
+            return null;
+        }
+        if (this.projector == null || this.projectedStack != ip.getStack() || this.projectedType != projType) {
+            this.projector = new orthoProjector(ip.getStack(), projType);
+            this.projectedStack = ip.getStack();
+            this.projectedType = projType;
+        }
+        return this.projector;
+    }
+
     ImagePlus getXZview(ImagePlus ip, int projType, boolean keepCalibration) {
-        return this.sideView(ip, projType, keepCalibration, 0);
+        return this.sideView(ip, projType, keepCalibration, 0, this.getProjector(ip, projType));
     }
 
     ImagePlus getYZview(ImagePlus ip, int projType, boolean keepCalibration) {
-        return this.sideView(ip, projType, keepCalibration, 1);
+        return this.sideView(ip, projType, keepCalibration, 1, this.getProjector(ip, projType));
     }
 
     ImagePlus getPanelView(ImagePlus ip, int projType, boolean keepCalibration, boolean addScaleBar, int size, boolean addCross, double[] coordCross, int crossRadius) {
@@ -54,7 +84,8 @@ class sideViewGenerator {
         Calibration cal = ip.getCalibration();
         double xzRatio = cal.pixelDepth / cal.pixelWidth;
         double yzRatio = cal.pixelDepth / cal.pixelHeight;
-        ImageProcessor xy = this.getXYview(ip, projType).getProcessor();
+        orthoProjector projector = this.getProjector(ip, projType);
+        ImageProcessor xy = this.xyView(ip, projType, projector).getProcessor();
         if (addCross) {
             int[] coord = new int[]{(int)(coordCross[0] + 0.5D), (int)(coordCross[1] + 0.5D)};
             this.addCross(xy, coord, crossRadius);
@@ -67,7 +98,7 @@ class sideViewGenerator {
             this.addScaleBar(xy, cal, size);
         }
 
-        ImageProcessor xz = this.getXZview(ip, projType, keepCalibration).getProcessor();
+        ImageProcessor xz = this.sideView(ip, projType, keepCalibration, 0, projector).getProcessor();
         if (addCross) {
             int[] coord = new int[]{(int)(coordCross[0] + 0.5D), keepCalibration ? (int)(xzRatio * (coordCross[2] + 0.5D)) : (int)(coordCross[2] + 0.5D)};
             this.addCross(xz, coord, crossRadius);
@@ -76,7 +107,7 @@ class sideViewGenerator {
         xz.setColor(Color.white);
         xz.setFont(font);
         xz.drawString("XZ", 3, 15);
-        ImageProcessor yz = this.getYZview(ip, projType, keepCalibration).getProcessor().rotateRight();
+        ImageProcessor yz = this.sideView(ip, projType, keepCalibration, 1, projector).getProcessor().rotateRight();
         yz.flipHorizontal();
         if (addCross) {
             int[] coord = new int[]{keepCalibration ? (int)(yzRatio * (coordCross[2] + 0.5D)) : (int)(coordCross[2] + 0.5D), (int)(coordCross[1] + 0.5D)};
@@ -96,33 +127,15 @@ class sideViewGenerator {
         return new ImagePlus("Panel view", iproc);
     }
 
-    private ImagePlus sideView(ImagePlus ip, int projType, boolean keepCalibration, int view) {
-        Calibration cal = ip.getCalibration();
-        ip.setCalibration(new Calibration());
-        ImagePlus reslicedStack = null;
-        if (view == 0) {
-            reslicedStack = (new Slicer()).reslice(ip);
+    private ImagePlus sideView(ImagePlus ip, int projType, boolean keepCalibration, int view, orthoProjector projector) {
+        Calibration cal = ip.getCalibration().copy();
+        ImagePlus output;
+        if (projector != null) {
+            output = new ImagePlus(view == 0 ? "XZ view" : "YZ view", view == 0 ? projector.getXZ() : projector.getYZ());
         } else {
-            for(int i = 0; i < ip.getWidth(); ++i) {
-                Line line = new Line(i, 0, i, ip.getHeight() - 1);
-                ip.setRoi(line);
-                ImagePlus slice = (new Slicer()).reslice(ip);
-                if (i == 0) {
-                    reslicedStack = NewImage.createImage("YZ view", slice.getWidth(), slice.getHeight(), ip.getWidth(), slice.getBitDepth(), 1);
-                }
-
-                reslicedStack.setSlice(i + 1);
-                reslicedStack.setProcessor("YZ view", slice.getProcessor());
-            }
-
-            ip.killRoi();
+            output = this.reslicedView(ip, projType, view);
         }
 
-        ip.setCalibration(cal);
-        ZProjector zp = new ZProjector(reslicedStack);
-        zp.setMethod(projType);
-        zp.doProjection();
-        ImagePlus output = zp.getProjection();
         if (keepCalibration) {
             ImageProcessor iproc = output.getProcessor();
             iproc.setInterpolate(true);
@@ -149,6 +162,35 @@ class sideViewGenerator {
         return output;
     }
 
+    private ImagePlus reslicedView(ImagePlus ip, int projType, int view) {
+        Calibration cal = ip.getCalibration();
+        ip.setCalibration(new Calibration());
+        ImagePlus reslicedStack = null;
+        if (view == 0) {
+            reslicedStack = (new Slicer()).reslice(ip);
+        } else {
+            for(int i = 0; i < ip.getWidth(); ++i) {
+                Line line = new Line(i, 0, i, ip.getHeight() - 1);
+                ip.setRoi(line);
+                ImagePlus slice = (new Slicer()).reslice(ip);
+                if (i == 0) {
+                    reslicedStack = NewImage.createImage("YZ view", slice.getWidth(), slice.getHeight(), ip.getWidth(), slice.getBitDepth(), 1);
+                }
+
+                reslicedStack.setSlice(i + 1);
+                reslicedStack.setProcessor("YZ view", slice.getProcessor());
+            }
+
+            ip.killRoi();
+        }
+
+        ip.setCalibration(cal);
+        ZProjector zp = new ZProjector(reslicedStack);
+        zp.setMethod(projType);
+        zp.doProjection();
+        return zp.getProjection();
+    }
+
     private void addScaleBar(ImageProcessor ip, Calibration cal, int barWidth) {
         int fraction = 20;
         int barWidthInPixels = (int)((double)barWidth / cal.pixelWidth);